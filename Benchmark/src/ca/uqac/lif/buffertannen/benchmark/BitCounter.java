@@ -0,0 +1,63 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the bits produced by a benchmark. JMH reports this count as a
+ * secondary result named <tt>bits</tt>, in the same unit as the score of
+ * the benchmark; dividing it by that score gives the number of bits per
+ * operation (that is, per message or per delta).
+ * @author sylvain
+ *
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class BitCounter
+{
+  protected long m_bits;
+
+  @Setup(Level.Iteration)
+  public void reset()
+  {
+    m_bits = 0;
+  }
+
+  /**
+   * Adds bits to the count
+   * @param bits The number of bits
+   */
+  public void add(int bits)
+  {
+    m_bits += bits;
+  }
+
+  /**
+   * Returns the number of bits counted in the current iteration
+   * @return The number of bits
+   */
+  public long bits()
+  {
+    return m_bits;
+  }
+}
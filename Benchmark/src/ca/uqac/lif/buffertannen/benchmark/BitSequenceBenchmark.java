@@ -0,0 +1,100 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+
+/**
+ * Measures the basic operations on bit sequences
+ * @author sylvain
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitSequenceBenchmark
+{
+  protected String m_binaryString;
+
+  protected byte[] m_bytes;
+
+  protected BitSequence m_sequence;
+
+  protected BitSequence m_word;
+
+  @Setup
+  public void setup() throws BitFormatException
+  {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < 512; i++)
+    {
+      out.append((i * 7) % 3 == 0 ? "1" : "0");
+    }
+    m_binaryString = out.toString();
+    m_sequence = new BitSequence(m_binaryString);
+    m_bytes = m_sequence.toByteArray();
+    m_word = new BitSequence(0x2a5f, 16);
+  }
+
+  @Benchmark
+  public BitSequence fromString()
+  {
+    return new BitSequence(m_binaryString);
+  }
+
+  @Benchmark
+  public BitSequence fromBytes() throws BitFormatException
+  {
+    return new BitSequence(m_bytes, m_bytes.length * 8);
+  }
+
+  @Benchmark
+  public BitSequence fromInt() throws BitFormatException
+  {
+    return new BitSequence(0x2a5f, 16);
+  }
+
+  @Benchmark
+  public int intValue()
+  {
+    return m_word.intValue();
+  }
+
+  @Benchmark
+  public byte[] toByteArray()
+  {
+    return m_sequence.toByteArray();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+import ca.uqac.lif.buffertannen.message.TypeMismatchException;
+import ca.uqac.lif.buffertannen.protocol.Receiver;
+import ca.uqac.lif.buffertannen.protocol.Sender;
+
+/**
+ * Measures the end-to-end throughput of messages, from the moment they
+ * are given to a sender to the moment they are polled from a receiver.
+ * One operation corresponds to one message; the bits sent are counted
+ * by a {@link BitCounter}.
+ * @author sylvain
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommunicationBenchmark
+{
+  /**
+   * The number of distinct messages cycled through
+   */
+  protected static final int NUM_VARIANTS = 64;
+
+  @Param({Fixtures.BOOK, Fixtures.NESTED, Fixtures.LIST})
+  public String m_message;
+
+  protected SchemaElement[] m_messages;
+
+  protected Sender m_sender;
+
+  protected Receiver m_receiver;
+
+  protected int m_index;
+
+  @Setup
+  public void setup() throws ReadException, TypeMismatchException
+  {
+    m_messages = new SchemaElement[NUM_VARIANTS];
+    for (int i = 0; i < NUM_VARIANTS; i++)
+    {
+      m_messages[i] = Fixtures.variant(m_message, i);
+    }
+    m_sender = new Sender();
+    m_sender.setSchema(0, Fixtures.schema(m_message));
+    m_receiver = new Receiver();
+    m_index = 0;
+  }
+
+  @Benchmark
+  public SchemaElement sendReceive(BitCounter counter)
+  {
+    m_sender.addMessage(0, m_messages[m_index]);
+    m_index = (m_index + 1) % NUM_VARIANTS;
+    BitSequence bs = m_sender.pollBitSequence();
+    while (bs != null)
+    {
+      counter.add(bs.size());
+      m_receiver.putBitSequence(bs);
+      bs = m_sender.pollBitSequence();
+    }
+    SchemaElement out = null;
+    SchemaElement se = m_receiver.pollMessage();
+    while (se != null)
+    {
+      out = se;
+      se = m_receiver.pollMessage();
+    }
+    return out;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
+import ca.uqac.lif.buffertannen.message.CannotComputeDeltaException;
+import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.Schema;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+import ca.uqac.lif.buffertannen.message.TypeMismatchException;
+
+/**
+ * Measures the computation and application of deltas between two
+ * messages that differ by a single value. The size of the deltas is
+ * counted by a {@link BitCounter}.
+ * @author sylvain
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaBenchmark
+{
+  @Param({Fixtures.BOOK, Fixtures.NESTED, Fixtures.LIST})
+  public String m_message;
+
+  protected SchemaElement m_reference;
+
+  protected SchemaElement m_changed;
+
+  protected SchemaElement m_delta;
+
+  protected Schema m_schema;
+
+  protected BitSequence m_bits;
+
+  protected BitWriter m_writer;
+
+  @Setup
+  public void setup() throws ReadException, TypeMismatchException, CannotComputeDeltaException, BitFormatException
+  {
+    m_reference = Fixtures.message(m_message);
+    m_changed = Fixtures.variant(m_message, 1);
+    m_schema = new Schema(m_reference);
+    m_delta = SchemaElement.createFromDelta(m_reference, m_changed);
+    m_bits = m_delta.toBitSequence(true);
+    m_writer = new BitWriter();
+  }
+
+  @Benchmark
+  public BitSequence createFromDelta(BitCounter counter) throws TypeMismatchException, CannotComputeDeltaException, BitFormatException
+  {
+    BitSequence bs = SchemaElement.createFromDelta(m_reference, m_changed).toBitSequence(true);
+    counter.add(bs.size());
+    return bs;
+  }
+
+  @Benchmark
+  public SchemaElement readContentsFromDelta() throws ReadException
+  {
+    SchemaElement.ElementInt ei = m_schema.newInstance().readContentsFromBitSequence(new BitReader(m_bits), true);
+    SchemaElement se = m_schema.newInstance();
+    se.readContentsFromDelta(m_reference, ei.m_element);
+    return se;
+  }
+
+  @Benchmark
+  public BitWriter codecEncodeDelta(BitCounter counter) throws TypeMismatchException, CannotComputeDeltaException, BitFormatException
+  {
+    m_writer.reset();
+    m_schema.encodeDelta(m_reference, m_changed, m_writer);
+    counter.add(m_writer.size());
+    return m_writer;
+  }
+
+  @Benchmark
+  public SchemaElement codecDecodeDelta() throws ReadException
+  {
+    return m_schema.decodeDelta(m_reference, new BitReader(m_bits));
+  }
+}
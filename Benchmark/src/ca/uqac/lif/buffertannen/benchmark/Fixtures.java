@@ -0,0 +1,211 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+import ca.uqac.lif.buffertannen.message.TypeMismatchException;
+
+/**
+ * The schemas and messages used by the benchmarks. They are the book
+ * example of the Readme, and the schemas found in the test data of
+ * <tt>CoreTest</tt>.
+ * @author sylvain
+ *
+ */
+public class Fixtures
+{
+  /**
+   * The names of the messages available, as used in the benchmarks'
+   * parameters
+   */
+  public static final String BOOK = "book";
+  public static final String NESTED = "nested";
+  public static final String LIST = "list";
+
+  protected static final String BOOK_SCHEMA = "FixedMap {\n"
+      + "  \"title\" : Smallscii,\n"
+      + "  \"price\" : Integer(5),\n"
+      + "  \"chapters\" : List [\n"
+      + "    FixedMap {\n"
+      + "      \"name\" : Smallscii,\n"
+      + "      \"length\" : Integer(8),\n"
+      + "      \"type\" : Enum {\"normal\", \"appendix\"}\n"
+      + "    }\n"
+      + "  ]\n"
+      + "}";
+
+  protected static final String BOOK_MESSAGE = "{\n"
+      + "  \"title\" : \"hello world\",\n"
+      + "  \"price\" : 21,\n"
+      + "  \"chapters\" : [\n"
+      + "    { \"name\" : \"chapter 1\", \"length\" : 3, \"type\" : \"normal\" },\n"
+      + "    { \"name\" : \"chapter 2\", \"length\" : 7, \"type\" : \"normal\" },\n"
+      + "    { \"name\" : \"conclusion\", \"length\" : 2, \"type\" : \"appendix\" }\n"
+      + "  ]\n"
+      + "}";
+
+  /* Same as CoreTest's data/Schema-2.txt and data/Message-1.txt */
+  protected static final String NESTED_SCHEMA = "FixedMap {\n"
+      + "  \"key1\" : Smallscii,\n"
+      + "  \"key2\" : FixedMap {\n"
+      + "    \"subkey1\" : Integer(3),\n"
+      + "    \"subkey2\" : Smallscii\n"
+      + "  },\n"
+      + "  \"key3\" : Integer(4)\n"
+      + "}";
+
+  protected static final String NESTED_MESSAGE = "{\n"
+      + "  \"key1\" : \"Hello\",\n"
+      + "  \"key2\" : {\n"
+      + "    \"subkey1\" : 3,\n"
+      + "    \"subkey2\" : \"abc\"\n"
+      + "  },\n"
+      + "  \"key3\" : 10\n"
+      + "}";
+
+  /* Same as CoreTest's data/Schema-3.txt and data/Message-2.txt */
+  protected static final String LIST_SCHEMA = "List [\n"
+      + "  Smallscii\n"
+      + "]";
+
+  protected static final String LIST_MESSAGE = "[\n"
+      + "  \"1\", \"Hello\",\n"
+      + "  \"Another one\"\n"
+      + "]";
+
+  private Fixtures()
+  {
+    super();
+  }
+
+  /**
+   * Gets the text of the schema of a message
+   * @param name The name of the message
+   * @return The schema, as a string
+   */
+  public static String schemaText(String name)
+  {
+    if (BOOK.equals(name))
+    {
+      return BOOK_SCHEMA;
+    }
+    if (NESTED.equals(name))
+    {
+      return NESTED_SCHEMA;
+    }
+    if (LIST.equals(name))
+    {
+      return LIST_SCHEMA;
+    }
+    throw new IllegalArgumentException("Unknown message " + name);
+  }
+
+  /**
+   * Gets the text of a message
+   * @param name The name of the message
+   * @return The message, as a string
+   */
+  public static String messageText(String name)
+  {
+    if (BOOK.equals(name))
+    {
+      return BOOK_MESSAGE;
+    }
+    if (NESTED.equals(name))
+    {
+      return NESTED_MESSAGE;
+    }
+    if (LIST.equals(name))
+    {
+      return LIST_MESSAGE;
+    }
+    throw new IllegalArgumentException("Unknown message " + name);
+  }
+
+  /**
+   * Gets the schema of a message
+   * @param name The name of the message
+   * @return The schema
+   * @throws ReadException If the schema cannot be parsed
+   */
+  public static SchemaElement schema(String name) throws ReadException
+  {
+    return SchemaElement.parseSchemaFromString(schemaText(name));
+  }
+
+  /**
+   * Gets a message
+   * @param name The name of the message
+   * @return The message
+   * @throws ReadException If the message cannot be parsed
+   */
+  public static SchemaElement message(String name) throws ReadException
+  {
+    SchemaElement se = schema(name);
+    se.readContentsFromString(messageText(name));
+    return se;
+  }
+
+  /**
+   * Gets the path of the value changed in the variants of a message
+   * @param name The name of the message
+   * @return The path expression
+   */
+  public static String path(String name)
+  {
+    if (BOOK.equals(name))
+    {
+      return "[chapters][1][length]";
+    }
+    if (NESTED.equals(name))
+    {
+      return "[key3]";
+    }
+    return "[1]";
+  }
+
+  /**
+   * Gets a variant of a message, where a single value has been changed.
+   * Successive values of <tt>k</tt> produce distinct variants, which can
+   * be used to simulate a stream of slowly-changing messages; the
+   * changed value stays within the delta range of its schema.
+   * @param name The name of the message
+   * @param k A number used to produce the changed value
+   * @return The message
+   * @throws ReadException If the message cannot be parsed
+   * @throws TypeMismatchException If the value cannot be changed
+   */
+  public static SchemaElement variant(String name, int k) throws ReadException, TypeMismatchException
+  {
+    SchemaElement se = message(name);
+    if (BOOK.equals(name))
+    {
+      se.put(path(name), 7 + (k % 64));
+    }
+    else if (NESTED.equals(name))
+    {
+      se.put(path(name), 10 + (k % 4));
+    }
+    else
+    {
+      se.put(path(name), "hello " + (k % 10));
+    }
+    return se;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+import ca.uqac.lif.buffertannen.protocol.Frame;
+import ca.uqac.lif.buffertannen.protocol.MessageSegment;
+
+/**
+ * Measures the encoding and decoding of a frame filled with message
+ * segments
+ * @author sylvain
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark
+{
+  protected Frame m_frame;
+
+  protected BitSequence m_bits;
+
+  @Setup
+  public void setup() throws ReadException, BitFormatException
+  {
+    SchemaElement se = Fixtures.message(Fixtures.BOOK);
+    BitSequence contents = se.toBitSequence();
+    m_frame = new Frame();
+    m_frame.setMaxLength(Frame.MAX_LENGTH - 1);
+    int size = m_frame.getHeaderSize();
+    for (int i = 0; ; i++)
+    {
+      MessageSegment ms = new MessageSegment();
+      ms.setSequenceNumber(i);
+      ms.setSchemaNumber(0);
+      ms.setContents(contents);
+      if (size + ms.getSize() > Frame.MAX_LENGTH - 1)
+      {
+        break;
+      }
+      size += ms.getSize();
+      m_frame.add(ms);
+    }
+    m_bits = m_frame.toBitSequence();
+  }
+
+  @Benchmark
+  public BitSequence toBitSequence()
+  {
+    return m_frame.toBitSequence();
+  }
+
+  @Benchmark
+  public Frame fromBitSequence() throws ReadException
+  {
+    Frame f = new Frame();
+    f.fromBitSequence(new BitSequence(m_bits));
+    return f;
+  }
+}
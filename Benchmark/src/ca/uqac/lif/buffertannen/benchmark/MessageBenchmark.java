@@ -0,0 +1,147 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
+import ca.uqac.lif.buffertannen.message.CompiledPath;
+import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.Schema;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+
+/**
+ * Measures the encoding and decoding of complete messages, both through
+ * the element tree and through a schema's compiled codec, as well as the
+ * parsing of their text representation. The size of the encoded
+ * messages is counted by a {@link BitCounter}.
+ * @author sylvain
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark
+{
+  @Param({Fixtures.BOOK, Fixtures.NESTED, Fixtures.LIST})
+  public String m_message;
+
+  protected SchemaElement m_element;
+
+  protected Schema m_schema;
+
+  protected BitSequence m_bits;
+
+  protected BitWriter m_writer;
+
+  protected String m_path;
+
+  protected CompiledPath m_compiledPath;
+
+  protected String m_schemaText;
+
+  protected String m_messageText;
+
+  @Setup
+  public void setup() throws ReadException, BitFormatException
+  {
+    m_element = Fixtures.message(m_message);
+    m_schema = new Schema(m_element);
+    m_bits = m_element.toBitSequence();
+    m_writer = new BitWriter();
+    m_path = Fixtures.path(m_message);
+    m_compiledPath = m_schema.compilePath(m_path);
+    m_schemaText = Fixtures.schemaText(m_message);
+    m_messageText = Fixtures.messageText(m_message);
+  }
+
+  @Benchmark
+  public BitSequence encode(BitCounter counter) throws BitFormatException
+  {
+    BitSequence bs = m_element.toBitSequence();
+    counter.add(bs.size());
+    return bs;
+  }
+
+  @Benchmark
+  public SchemaElement decode() throws ReadException
+  {
+    SchemaElement se = m_schema.newInstance();
+    se.fromBitSequence(new BitReader(m_bits));
+    return se;
+  }
+
+  @Benchmark
+  public BitWriter codecEncode(BitCounter counter) throws BitFormatException
+  {
+    m_writer.reset();
+    m_schema.encode(m_element, m_writer);
+    counter.add(m_writer.size());
+    return m_writer;
+  }
+
+  @Benchmark
+  public SchemaElement codecDecode() throws ReadException
+  {
+    return m_schema.decode(new BitReader(m_bits));
+  }
+
+  @Benchmark
+  public SchemaElement get()
+  {
+    return m_element.get(m_path);
+  }
+
+  @Benchmark
+  public SchemaElement compiledGet()
+  {
+    return m_compiledPath.get(m_element);
+  }
+
+  @Benchmark
+  public SchemaElement parseSchema() throws ReadException
+  {
+    return SchemaElement.parseSchemaFromString(m_schemaText);
+  }
+
+  @Benchmark
+  public SchemaElement parseMessage() throws ReadException
+  {
+    SchemaElement se = m_schema.newInstance();
+    se.readContentsFromString(m_messageText);
+    return se;
+  }
+}
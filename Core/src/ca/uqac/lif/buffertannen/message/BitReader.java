@@ -0,0 +1,136 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+/**
+ * Reads the contents of a {@link BitSequence} from left to right.
+ * The reader keeps a cursor on the next bit to read; contrarily to
+ * {@link BitSequence#truncatePrefix(int)}, reading a field simply moves
+ * this cursor forward, and never modifies nor copies the underlying
+ * sequence. A frame can hence be decoded in a single pass over its bits.
+ * @author sylvain
+ *
+ */
+public class BitReader
+{
+  /**
+   * The sequence to read from
+   */
+  protected BitSequence m_sequence;
+
+  /**
+   * The position of the next bit to read
+   */
+  protected int m_position;
+
+  /**
+   * The position past the last bit that can be read
+   */
+  protected int m_end;
+
+  /**
+   * Creates a reader positioned at the beginning of a bit sequence
+   * @param bs The sequence to read from
+   */
+  public BitReader(BitSequence bs)
+  {
+    this(bs, 0, bs.size());
+  }
+
+  /**
+   * Creates a reader over a portion of a bit sequence
+   * @param bs The sequence to read from
+   * @param start The position of the first bit to read
+   * @param length The number of bits that can be read from that position
+   */
+  public BitReader(BitSequence bs, int start, int length)
+  {
+    super();
+    m_sequence = bs;
+    m_position = start;
+    m_end = start + length;
+  }
+
+  /**
+   * Returns the position of the next bit to read in the
+   * underlying sequence
+   * @return The position
+   */
+  public int position()
+  {
+    return m_position;
+  }
+
+  /**
+   * Returns the number of bits that remain to be read
+   * @return The number of bits
+   */
+  public int remaining()
+  {
+    return m_end - m_position;
+  }
+
+  /**
+   * Reads a single bit
+   * @return The bit
+   * @throws ReadException If there is no bit left to read
+   */
+  public boolean readBit() throws ReadException
+  {
+    if (m_position >= m_end)
+    {
+      throw new ReadException("End of bit sequence reached");
+    }
+    return m_sequence.get(m_position++);
+  }
+
+  /**
+   * Reads a group of bits and interprets them as an unsigned integer,
+   * with the most significant bit being read first
+   * @param width The number of bits to read (at most 32)
+   * @return The value
+   * @throws ReadException If fewer than <tt>width</tt> bits remain
+   */
+  public int readBits(int width) throws ReadException
+  {
+    if (width > m_end - m_position)
+    {
+      throw new ReadException("End of bit sequence reached");
+    }
+    int value = (int) m_sequence.read(m_position, width);
+    m_position += width;
+    return value;
+  }
+
+  /**
+   * Reads a group of bits as a new bit sequence
+   * @param length The number of bits to read
+   * @return The sequence
+   * @throws ReadException If fewer than <tt>length</tt> bits remain
+   */
+  public BitSequence readSequence(int length) throws ReadException
+  {
+    if (length > m_end - m_position)
+    {
+      throw new ReadException("End of bit sequence reached");
+    }
+    BitSequence out = m_sequence.subSequence(m_position, length);
+    m_position += length;
+    return out;
+  }
+}
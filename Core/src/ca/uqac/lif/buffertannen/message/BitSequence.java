@@ -17,18 +17,24 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
-import java.util.Vector;
+import java.io.Serializable;
+import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Base64;
 
 /**
  * Representation of a sequence of bits. This sequence can be converted
  * to/from an array of bytes.
+ * <p>
+ * Bits are packed into an array of <tt>long</tt> words, the first bit of
+ * the sequence being the most significant bit of the first word. This
+ * way, reading or appending a field of up to 64 bits amounts to a couple
+ * of shift operations, instead of one operation per bit.
  * 
  * @author sylvain
  *
  */
-public class BitSequence extends Vector<Boolean>
+public class BitSequence implements Serializable
 {
 
   /**
@@ -36,12 +42,34 @@ public class BitSequence extends Vector<Boolean>
    */
   private static final long serialVersionUID = 1L;
   
+  /**
+   * Number of bits in a word of the backing array
+   */
+  protected static final int WORD_SIZE = 64;
+
+  /**
+   * Number of words allocated for an empty sequence
+   */
+  protected static final int DEFAULT_CAPACITY = 2;
+
+  /**
+   * The words containing the bits of the sequence
+   */
+  protected long[] m_words;
+
+  /**
+   * The number of bits in the sequence
+   */
+  protected int m_size;
+
   /**
    * Empty constructor. Constructs a bit sequence of length 0.
    */
   public BitSequence()
   {
     super();
+    m_words = new long[DEFAULT_CAPACITY];
+    m_size = 0;
   }
   
   /**
@@ -73,29 +101,22 @@ public class BitSequence extends Vector<Boolean>
    */
   protected void readFromBytes(byte[] array, int length) throws BitFormatException
   {
-    int num_bytes = (int) Math.ceil(((float) length) / 8f);
-    int cur_length = 0;
+    int num_bytes = (length + 7) / 8;
     if (num_bytes > array.length)
     {
       // Error: length is longer than the length of the array
       throw new BitFormatException();
     }
-    for (int i = 0; i < num_bytes && cur_length < length; i++)
+    ensureCapacity(m_size + length);
+    int full_bytes = length / 8;
+    for (int i = 0; i < full_bytes; i++)
     {
-      byte b = array[i];
-      for (int j = 7; j >= 0 && cur_length < length; j--)
-      {
-        int val = (b >> j) & 1;
-        if (val == 1)
-        {
-          this.add(true);
-        }
-        else
-        {
-          this.add(false);
-        }
-        cur_length++;
-      }
+      append(array[i] & 0xFF, 8);
+    }
+    int remaining = length % 8;
+    if (remaining > 0)
+    {
+      append((array[full_bytes] & 0xFF) >>> (8 - remaining), remaining);
     }    
   }
   
@@ -110,25 +131,16 @@ public class BitSequence extends Vector<Boolean>
   public BitSequence(int value, int length) throws BitFormatException
   {
     this();
-    int power_length = (int) Math.pow(2, length);
-    if (value > power_length)
+    if (length < 0)
     {
-      // Error: length is too short to accommodate value
-      throw new BitFormatException();
+      length = 0;
     }
-    for (int i = 1; i < power_length; i *= 2)
+    if (value < 0 || (length < 32 && value >= (1L << length)))
     {
-      int b = value & i;
-      if (b == 0)
-      {
-        this.insertElementAt(false, 0);
-      }
-      else
-      {
-        this.insertElementAt(true, 0);
-        value -= b;
-      }
+      // Error: length is too short to accommodate value
+      throw new BitFormatException();
     }
+    append(value, length);
   }
   
   /**
@@ -141,17 +153,28 @@ public class BitSequence extends Vector<Boolean>
     this();
     for (int i = 0; i < s.length(); i++)
     {
-      String c = s.substring(i, i+1);
-      if (c.compareTo("0") == 0)
+      char c = s.charAt(i);
+      if (c == '0')
       {
-        this.add(false);
+        add(false);
       }
-      else if (c.compareTo("1") == 0)
+      else if (c == '1')
       {
-        this.add(true);
+        add(true);
       }
     }
   }
+
+  /**
+   * Constructs a bit sequence that is a copy of another one
+   * @param bs The sequence to copy
+   */
+  public BitSequence(BitSequence bs)
+  {
+    super();
+    m_words = Arrays.copyOf(bs.m_words, Math.max(DEFAULT_CAPACITY, wordsFor(bs.m_size)));
+    m_size = bs.m_size;
+  }
   
   /**
    * Displays the content of a byte as a string of 0 and 1
@@ -185,6 +208,213 @@ public class BitSequence extends Vector<Boolean>
     return ba.toString();
   }
   
+  /**
+   * Returns the number of bits in the sequence
+   * @return The number of bits
+   */
+  public int size()
+  {
+    return m_size;
+  }
+
+  /**
+   * Determines if the sequence contains no bits
+   * @return true if the sequence is empty, false otherwise
+   */
+  public boolean isEmpty()
+  {
+    return m_size == 0;
+  }
+
+  /**
+   * Removes all the bits of the sequence
+   */
+  public void clear()
+  {
+    Arrays.fill(m_words, 0, wordsFor(m_size), 0L);
+    m_size = 0;
+  }
+
+  /**
+   * Gets the bit at some position in the sequence
+   * @param index The position
+   * @return The value of the bit
+   */
+  public boolean get(int index)
+  {
+    if (index < 0 || index >= m_size)
+    {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+    }
+    return (m_words[index >>> 6] & (1L << (63 - (index & 63)))) != 0;
+  }
+
+  /**
+   * Sets the bit at some position in the sequence
+   * @param index The position
+   * @param b The value of the bit
+   */
+  public void set(int index, boolean b)
+  {
+    if (index < 0 || index >= m_size)
+    {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+    }
+    long mask = 1L << (63 - (index & 63));
+    if (b)
+    {
+      m_words[index >>> 6] |= mask;
+    }
+    else
+    {
+      m_words[index >>> 6] &= ~mask;
+    }
+  }
+
+  /**
+   * Appends a bit at the end of the sequence
+   * @param b The bit to append
+   * @return Always true
+   */
+  public boolean add(boolean b)
+  {
+    ensureCapacity(m_size + 1);
+    if (b)
+    {
+      m_words[m_size >>> 6] |= 1L << (63 - (m_size & 63));
+    }
+    m_size++;
+    return true;
+  }
+
+  /**
+   * Appends the contents of another sequence at the end of this one
+   * @param bs The sequence to append
+   * @return true if the sequence changed as a result of the call
+   */
+  public boolean addAll(BitSequence bs)
+  {
+    int length = bs.m_size;
+    if (length == 0)
+    {
+      return false;
+    }
+    ensureCapacity(m_size + length);
+    int full_words = length >>> 6;
+    for (int i = 0; i < full_words; i++)
+    {
+      append(bs.m_words[i], WORD_SIZE);
+    }
+    int remaining = length & 63;
+    if (remaining > 0)
+    {
+      append(bs.m_words[full_words] >>> (WORD_SIZE - remaining), remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Computes the exclusive or of this sequence with another one, and
+   * stores the result in this sequence. If the other sequence is
+   * longer, this sequence is first padded with zeros to the same length.
+   * @param bs The other sequence
+   */
+  public void xor(BitSequence bs)
+  {
+    if (bs.m_size > m_size)
+    {
+      // Bits past the end of the sequence are always zero
+      ensureCapacity(bs.m_size);
+      m_size = bs.m_size;
+    }
+    int words = wordsFor(bs.m_size);
+    for (int i = 0; i < words; i++)
+    {
+      m_words[i] ^= bs.m_words[i];
+    }
+  }
+
+  /**
+   * Appends the <i>n</i> least significant bits of a value at the end of
+   * the sequence, most significant bit first. Bits of the value beyond
+   * the width are ignored.
+   * @param value The value
+   * @param width The number of bits to append (between 0 and 64)
+   */
+  protected void append(long value, int width)
+  {
+    if (width <= 0)
+    {
+      return;
+    }
+    ensureCapacity(m_size + width);
+    if (width < WORD_SIZE)
+    {
+      value &= (1L << width) - 1;
+    }
+    int word = m_size >>> 6;
+    int free = WORD_SIZE - (m_size & 63);
+    if (width <= free)
+    {
+      m_words[word] |= value << (free - width);
+    }
+    else
+    {
+      int overflow = width - free;
+      m_words[word] |= value >>> overflow;
+      m_words[word + 1] |= value << (WORD_SIZE - overflow);
+    }
+    m_size += width;
+  }
+
+  /**
+   * Reads a group of consecutive bits from the sequence, and returns them
+   * as the least significant bits of a number (the first bit read being
+   * the most significant).
+   * @param start The position of the first bit to read
+   * @param width The number of bits to read (between 0 and 64)
+   * @return The value
+   */
+  protected long read(int start, int width)
+  {
+    if (width <= 0)
+    {
+      return 0;
+    }
+    int word = start >>> 6;
+    int offset = start & 63;
+    long value = m_words[word] << offset;
+    if (offset + width > WORD_SIZE)
+    {
+      value |= m_words[word + 1] >>> (WORD_SIZE - offset);
+    }
+    return value >>> (WORD_SIZE - width);
+  }
+
+  /**
+   * Makes sure the backing array can contain a given number of bits
+   * @param num_bits The number of bits
+   */
+  protected void ensureCapacity(int num_bits)
+  {
+    // One extra word, so that appending never writes past the array
+    int needed = wordsFor(num_bits) + 1;
+    if (needed > m_words.length)
+    {
+      m_words = Arrays.copyOf(m_words, Math.max(needed, m_words.length * 2));
+    }
+  }
+
+  /**
+   * Computes the number of words necessary to hold a number of bits
+   * @param num_bits The number of bits
+   * @return The number of words
+   */
+  protected static int wordsFor(int num_bits)
+  {
+    return (num_bits + WORD_SIZE - 1) >>> 6;
+  }
+
   /**
    * Outputs the sequence of bits as an array of bytes.
    * The last byte is padded with zeros if the number of bits
@@ -194,21 +424,12 @@ public class BitSequence extends Vector<Boolean>
    */
   public byte[] toByteArray()
   {
-    int byte_size = (int) Math.ceil(((float) this.size()) / 8f);
+    int byte_size = (m_size + 7) / 8;
     byte[] out = new byte[byte_size];
-    int byte_pos = 0;
-    for (int i = 0; i < this.size(); i += 8)
+    for (int i = 0; i < byte_size; i++)
     {
-      byte b = 0;
-      for (byte j = 0; j < 8 && i + j < this.size(); j++)
-      {
-        if (this.elementAt(i + j) == true)
-        {
-          b |= 1 << (7 - j);
-        }
-      }
-      out[byte_pos] = b;
-      byte_pos++;
+      // Bits past the end of the sequence are always zero
+      out[i] = (byte) (m_words[i >>> 3] >>> (56 - 8 * (i & 7)));
     }
     return out;
   }
@@ -283,23 +504,18 @@ public class BitSequence extends Vector<Boolean>
   /**
    * Returns the contents of a bit sequence as an integer value,
    * with the most significant bit being the first of the sequence.
+   * If the sequence is longer than 32 bits, only its last 32 bits
+   * are taken into account.
    * 
    * @return The integer value
    */
   public int intValue()
   {
-    int out = 0;
-    int pos = 0;
-    for (int i = (int) Math.pow(2, this.size() - 1); i >= 1; i /= 2)
+    if (m_size <= 32)
     {
-      boolean b = this.get(pos);
-      if (b == true)
-      {
-        out += i;
-      }
-      pos++;
+      return (int) read(0, m_size);
     }
-    return out;
+    return (int) read(m_size - 32, 32);
   }
   
   /**
@@ -310,25 +526,52 @@ public class BitSequence extends Vector<Boolean>
    */
   public BitSequence subSequence(int start, int length)
   {
-    BitSequence bs = new BitSequence();
-    if (start < 0 || start + length > this.size())
+    if (start < 0 || length < 0 || start + length > m_size)
     {
       // Invalid bounds
       return null;
     }
-    for (int i = start; i < start + length; i++)
+    BitSequence bs = new BitSequence();
+    bs.ensureCapacity(length);
+    int pos = start;
+    int end = start + length;
+    while (end - pos >= WORD_SIZE)
     {
-      if (this.get(i))
-      {
-        bs.add(true);
-      }
-      else
-      {
-        bs.add(false);
-      }
+      bs.append(read(pos, WORD_SIZE), WORD_SIZE);
+      pos += WORD_SIZE;
     }
+    bs.append(read(pos, end - pos), end - pos);
     return bs;
   }
+
+  /**
+   * Removes the last bits of the sequence, keeping only its first
+   * bits
+   * @param size The number of bits to keep. If this value is greater
+   *   than the length of the sequence, nothing happens.
+   */
+  protected void truncateSuffix(int size)
+  {
+    if (size < 0)
+    {
+      size = 0;
+    }
+    if (size >= m_size)
+    {
+      return;
+    }
+    int word = size >>> 6;
+    if ((size & 63) == 0)
+    {
+      m_words[word] = 0L;
+    }
+    else
+    {
+      m_words[word] &= ~(-1L >>> (size & 63));
+    }
+    Arrays.fill(m_words, word + 1, wordsFor(m_size), 0L);
+    m_size = size;
+  }
   
   /**
    * Truncates the bit sequence off the first n bits
@@ -344,18 +587,76 @@ public class BitSequence extends Vector<Boolean>
       // Nothing to do
       return this;
     }
-    if (to >= this.size())
+    if (to >= m_size)
     {
-      out = this.subSequence(0,  this.size());
+      out = new BitSequence(this);
       this.clear();
+      return out;
     }
-    else
+    out = this.subSequence(0, to);
+    // Shift the remaining bits to the beginning of the array
+    int new_size = m_size - to;
+    int shift_words = to >>> 6;
+    int shift_bits = to & 63;
+    int num_words = wordsFor(new_size);
+    for (int i = 0; i < num_words; i++)
+    {
+      long w = m_words[i + shift_words] << shift_bits;
+      if (shift_bits > 0 && i + shift_words + 1 < m_words.length)
+      {
+        w |= m_words[i + shift_words + 1] >>> (WORD_SIZE - shift_bits);
+      }
+      m_words[i] = w;
+    }
+    Arrays.fill(m_words, num_words, wordsFor(m_size), 0L);
+    m_size = new_size;
+    // Clear the bits past the new end of the sequence
+    if ((new_size & 63) != 0)
     {
-      out = this.subSequence(0, to);
-      this.removeRange(0, to);      
+      m_words[num_words - 1] &= -1L << (WORD_SIZE - (new_size & 63));
     }
     return out;
   }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (o == this)
+    {
+      return true;
+    }
+    if (!(o instanceof BitSequence))
+    {
+      return false;
+    }
+    BitSequence bs = (BitSequence) o;
+    if (bs.m_size != m_size)
+    {
+      return false;
+    }
+    // Bits past the end of both sequences are always zero
+    int num_words = wordsFor(m_size);
+    for (int i = 0; i < num_words; i++)
+    {
+      if (m_words[i] != bs.m_words[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int h = m_size;
+    int num_words = wordsFor(m_size);
+    for (int i = 0; i < num_words; i++)
+    {
+      h = 31 * h + (int) (m_words[i] ^ (m_words[i] >>> 32));
+    }
+    return h;
+  }
   
   @Override
   public String toString()
@@ -366,14 +667,13 @@ public class BitSequence extends Vector<Boolean>
   public String toString(int group)
   {
     StringBuilder out = new StringBuilder();
-    for (int i = 0; i < this.size(); i++)
+    for (int i = 0; i < m_size; i++)
     {
       if (i > 1 && group > 0 && (i % group) == 0)
       {
         out.append(" ");
       }
-      boolean b = this.get(i);
-      if (b == true)
+      if (get(i))
       {
         out.append("1");
       }
@@ -0,0 +1,150 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+/**
+ * Appends bits at the end of a {@link BitSequence}. Contrarily to
+ * building one small sequence per field and concatenating them with
+ * {@link BitSequence#addAll(BitSequence)}, fields are packed directly
+ * into the destination sequence. A single writer can be reused
+ * for multiple frames by calling {@link #reset()}.
+ * @author sylvain
+ *
+ */
+public class BitWriter
+{
+  /**
+   * The sequence bits are written into
+   */
+  protected BitSequence m_sequence;
+
+  /**
+   * Creates a writer over a new empty sequence
+   */
+  public BitWriter()
+  {
+    this(new BitSequence());
+  }
+
+  /**
+   * Creates a writer that appends bits at the end of an existing
+   * sequence
+   * @param bs The sequence to write into
+   */
+  public BitWriter(BitSequence bs)
+  {
+    super();
+    m_sequence = bs;
+  }
+
+  /**
+   * Writes a single bit
+   * @param b The bit
+   */
+  public void writeBit(boolean b)
+  {
+    m_sequence.add(b);
+  }
+
+  /**
+   * Writes a non-negative value over a fixed number of bits, most
+   * significant bit first
+   * @param value The value
+   * @param width The number of bits to use (at most 64)
+   * @throws BitFormatException If the value is negative or cannot be
+   *   represented with this number of bits
+   */
+  public void writeBits(long value, int width) throws BitFormatException
+  {
+    if (value < 0 || (width < 63 && value >= (1L << width)))
+    {
+      throw new BitFormatException("Value " + value + " does not fit in " + width + " bits");
+    }
+    m_sequence.append(value, width);
+  }
+
+  /**
+   * Writes a number of 0 bits
+   * @param count The number of bits to write
+   */
+  public void writeZeros(int count)
+  {
+    while (count > 0)
+    {
+      int width = Math.min(count, BitSequence.WORD_SIZE);
+      m_sequence.append(0, width);
+      count -= width;
+    }
+  }
+
+  /**
+   * Writes the contents of a bit sequence
+   * @param bs The sequence
+   */
+  public void write(BitSequence bs)
+  {
+    m_sequence.addAll(bs);
+  }
+
+  /**
+   * Returns the number of bits written so far
+   * @return The number of bits
+   */
+  public int size()
+  {
+    return m_sequence.size();
+  }
+
+  /**
+   * Discards the bits written after some position
+   * @param size The number of bits to keep, typically a value
+   *   previously returned by {@link #size()}
+   */
+  public void rewind(int size)
+  {
+    m_sequence.truncateSuffix(size);
+  }
+
+  /**
+   * Discards all the bits written so far, keeping the allocated
+   * space for reuse
+   */
+  public void reset()
+  {
+    m_sequence.clear();
+  }
+
+  /**
+   * Returns the sequence this writer appends to. Writing more bits
+   * modifies the sequence that is returned.
+   * @return The sequence
+   */
+  public BitSequence getSequence()
+  {
+    return m_sequence;
+  }
+
+  /**
+   * Returns a copy of the bits written so far
+   * @return The sequence
+   */
+  public BitSequence toBitSequence()
+  {
+    return new BitSequence(m_sequence);
+  }
+}
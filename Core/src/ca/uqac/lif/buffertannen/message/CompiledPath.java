@@ -0,0 +1,282 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A path expression, such as <tt>[chapters][3][length]</tt>, resolved
+ * once against a schema. Map keys are turned into the index of the
+ * corresponding value and list indices into integers, so that the
+ * element at the end of the path can be accessed in any message of
+ * that schema without parsing the path again. Integers and strings are
+ * read and written directly, without going through {@link Object}.
+ * <p>
+ * A compiled path is immutable, and can hence be shared.
+ * @author sylvain
+ *
+ */
+public class CompiledPath
+{
+  /**
+   * The path expression
+   */
+  protected final String m_path;
+  
+  /**
+   * For each step of the path, the index of the value in a map, or the
+   * index of the element in a list
+   */
+  protected final int[] m_indices;
+  
+  /**
+   * For each step of the path, the key of the value in a map, or null
+   * for a list
+   */
+  protected final String[] m_names;
+  
+  /**
+   * For each step of the path, the keys of the map in the schema, or
+   * null for a list. Maps of the messages of a schema share its keys;
+   * a map with other keys is looked up by name.
+   */
+  protected final Object[] m_keySets;
+  
+  /**
+   * Compiles a path expression against a schema
+   * @param schema The schema
+   * @param path The path expression
+   * @throws ReadException If the path is malformed, or does not exist
+   *   in the schema
+   */
+  public CompiledPath(SchemaElement schema, String path) throws ReadException
+  {
+    super();
+    m_path = path;
+    List<Integer> indices = new ArrayList<Integer>();
+    List<String> names = new ArrayList<String>();
+    List<Object> key_sets = new ArrayList<Object>();
+    SchemaElement current = schema;
+    String remaining = path.trim();
+    while (!remaining.isEmpty())
+    {
+      if (remaining.startsWith("."))
+      {
+        remaining = remaining.substring(1);
+      }
+      int closing_bracket_pos = remaining.indexOf("]");
+      if (!remaining.startsWith("[") || closing_bracket_pos < 0)
+      {
+        throw new ReadException("Invalid path expression " + path);
+      }
+      String step = remaining.substring(1, closing_bracket_pos);
+      remaining = remaining.substring(closing_bracket_pos + 1).trim();
+      if (current instanceof FixedMapElement)
+      {
+        FixedMapElement map = (FixedMapElement) current;
+        int index = map.indexOfKey(step);
+        if (index < 0)
+        {
+          throw new ReadException("No key " + step + " in path expression " + path);
+        }
+        indices.add(index);
+        names.add(step);
+        key_sets.add(map.m_keys);
+        current = map.m_values.get(index);
+      }
+      else if (current instanceof ListElement)
+      {
+        int index = -1;
+        try
+        {
+          index = Integer.parseInt(step.trim());
+        }
+        catch (NumberFormatException e)
+        {
+          // Dealt with below
+        }
+        if (index < 0)
+        {
+          throw new ReadException("Invalid list index " + step + " in path expression " + path);
+        }
+        indices.add(index);
+        names.add(null);
+        key_sets.add(null);
+        current = ((ListElement) current).m_elementType;
+      }
+      else
+      {
+        throw new ReadException("Path expression " + path + " goes past a leaf element");
+      }
+    }
+    m_indices = new int[indices.size()];
+    for (int i = 0; i < m_indices.length; i++)
+    {
+      m_indices[i] = indices.get(i);
+    }
+    m_names = names.toArray(new String[names.size()]);
+    m_keySets = key_sets.toArray();
+  }
+  
+  /**
+   * Gets the element at the end of the path in a message
+   * @param message The message
+   * @return The element, or null if the message has no such element
+   */
+  public SchemaElement get(SchemaElement message)
+  {
+    SchemaElement current = message;
+    for (int i = 0; i < m_indices.length; i++)
+    {
+      int index = m_indices[i];
+      if (m_names[i] != null)
+      {
+        if (!(current instanceof FixedMapElement))
+        {
+          return null;
+        }
+        FixedMapElement map = (FixedMapElement) current;
+        Vector<String> keys = map.m_keys;
+        if (keys != m_keySets[i])
+        {
+          index = map.indexOfKey(m_names[i]);
+          if (index < 0)
+          {
+            return null;
+          }
+        }
+        current = map.m_values.get(index);
+      }
+      else
+      {
+        if (!(current instanceof ListElement))
+        {
+          return null;
+        }
+        List<SchemaElement> contents = ((ListElement) current).m_contents;
+        if (index >= contents.size())
+        {
+          return null;
+        }
+        current = contents.get(index);
+      }
+    }
+    return current;
+  }
+  
+  /**
+   * Gets the value of the integer at the end of the path in a message
+   * @param message The message
+   * @return The value
+   * @throws TypeMismatchException If the message has no integer at the
+   *   end of the path
+   */
+  public int getInt(SchemaElement message) throws TypeMismatchException
+  {
+    return getInteger(message).m_value;
+  }
+  
+  /**
+   * Sets the value of the integer at the end of the path in a message
+   * @param message The message
+   * @param value The value
+   * @throws TypeMismatchException If the message has no integer at the
+   *   end of the path, or if the value is out of the integer's range
+   */
+  public void setInt(SchemaElement message, int value) throws TypeMismatchException
+  {
+    IntegerElement ie = getInteger(message);
+    if (value < 0 || value >= (1L << ie.m_range))
+    {
+      throw new TypeMismatchException("Integer value out of range");
+    }
+    ie.m_value = value;
+  }
+  
+  /**
+   * Gets the string at the end of the path in a message
+   * @param message The message
+   * @return The contents of the Smallscii string, or the value of the
+   *   enumeration
+   * @throws TypeMismatchException If the message has no string or
+   *   enumeration at the end of the path
+   */
+  public String getString(SchemaElement message) throws TypeMismatchException
+  {
+    SchemaElement e = get(message);
+    if (e instanceof SmallsciiElement)
+    {
+      return ((SmallsciiElement) e).m_contents;
+    }
+    if (e instanceof EnumElement)
+    {
+      return ((EnumElement) e).m_value;
+    }
+    throw new TypeMismatchException("No string at " + m_path);
+  }
+  
+  /**
+   * Sets the string at the end of the path in a message
+   * @param message The message
+   * @param value The contents of the Smallscii string, or the value of
+   *   the enumeration
+   * @throws TypeMismatchException If the message has no string or
+   *   enumeration at the end of the path
+   */
+  public void setString(SchemaElement message, String value) throws TypeMismatchException
+  {
+    SchemaElement e = get(message);
+    if (e instanceof SmallsciiElement)
+    {
+      ((SmallsciiElement) e).m_contents = value;
+    }
+    else if (e instanceof EnumElement)
+    {
+      ((EnumElement) e).m_value = value;
+    }
+    else
+    {
+      throw new TypeMismatchException("No string at " + m_path);
+    }
+  }
+  
+  /**
+   * Gets the integer at the end of the path in a message
+   * @param message The message
+   * @return The integer
+   * @throws TypeMismatchException If there is no integer at the end of
+   *   the path
+   */
+  protected IntegerElement getInteger(SchemaElement message) throws TypeMismatchException
+  {
+    SchemaElement e = get(message);
+    if (!(e instanceof IntegerElement))
+    {
+      throw new TypeMismatchException("No integer at " + m_path);
+    }
+    return (IntegerElement) e;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return m_path;
+  }
+}
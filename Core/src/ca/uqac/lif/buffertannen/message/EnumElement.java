@@ -19,10 +19,13 @@ package ca.uqac.lif.buffertannen.message;
 
 import java.util.Vector;
 
-import ca.uqac.lif.util.MutableString;
-
 public class EnumElement extends SchemaElement
 {
+  /**
+   * The possible values of the enumeration. They are part of the schema:
+   * they are shared between an enumeration and its copies, and are hence
+   * never modified in place (a new vector is created instead).
+   */
   protected Vector<String> m_constants;
   
   protected String m_value;
@@ -44,46 +47,34 @@ public class EnumElement extends SchemaElement
   
   public void addToSchema(String constant)
   {
-    m_constants.add(constant);
+    Vector<String> constants = new Vector<String>(m_constants);
+    constants.add(constant);
+    m_constants = constants;
   }
 
   @Override
-  public BitSequence toBitSequence(boolean as_delta)
+  public void writeTo(BitWriter w, boolean as_delta) throws BitFormatException
   {
     int num_bits = (int) Math.ceil((Math.log(m_constants.size()) / LOG_2));
     int pos = m_constants.indexOf(m_value);
-    if (pos < 0)
-    {
-      // Not supposed to happen
-      assert false;
-    }
-    BitSequence bs = new BitSequence();
     if (as_delta)
     {
       // Send a single 1 bit, indicating a change
-      bs.add(true);
-    }
-    try
-    {
-      bs.addAll(new BitSequence(pos, num_bits));
-    } catch (BitFormatException e)
-    {
-      // Do nothing
+      w.writeBit(true);
     }
-    return bs;
+    w.writeBits(pos, num_bits);
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  public int fromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     int num_bits = (int) Math.ceil((Math.log(m_constants.size()) / LOG_2));
-    if (num_bits > bs.size())
+    if (num_bits > r.remaining())
     {
       // Invalid input
       throw new ReadException();
     }
-    BitSequence sub = bs.truncatePrefix(num_bits);
-    int index = sub.intValue();
+    int index = r.readBits(num_bits);
     if (index < 0 || index >= m_constants.size())
     {
       // Invalid value
@@ -97,10 +88,7 @@ public class EnumElement extends SchemaElement
   public SchemaElement copy()
   {
     EnumElement out = new EnumElement();
-    for (int i = 0; i < m_constants.size(); i++)
-    {
-      out.m_constants.add(m_constants.get(i));
-    }
+    out.m_constants = m_constants;
     out.m_value = m_value;
     return out;
   }
@@ -142,52 +130,41 @@ public class EnumElement extends SchemaElement
     return "EnumElement " + m_constants.toString();
   }
   
-  public BitSequence schemaToBitSequence()
+  @Override
+  public void writeSchemaTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = null;
-    try
-    {
-      // Write element type
-      out = new BitSequence(SCHEMA_ENUM, SCHEMA_WIDTH);
-      // Write number of constants
-      out.addAll(new BitSequence(m_constants.size(), ENUM_SIZE_WIDTH));
-      // Encode each element of the enum, as a null-terminated string
-      for (String element : m_constants)
-      {
-        SmallsciiElement sse = new SmallsciiElement(element);
-        out.addAll(sse.toBitSequence());
-      }
-    } 
-    catch (BitFormatException e)
+    // Write element type
+    w.writeBits(SCHEMA_ENUM, SCHEMA_WIDTH);
+    // Write number of constants
+    w.writeBits(m_constants.size(), ENUM_SIZE_WIDTH);
+    // Encode each element of the enum, as a null-terminated string
+    for (String element : m_constants)
     {
-      // Not supposed to happen
-      assert false;
+      SmallsciiElement.writeString(w, element);
     }
-    return out;
   }
   
   @Override
-  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  protected int readSchemaFromBitSequence(BitReader r) throws ReadException
   {
     int bits_read = 0;
-    BitSequence data;
     // Read number of constants
-    if (bs.size() < ENUM_SIZE_WIDTH)
+    if (r.remaining() < ENUM_SIZE_WIDTH)
     {
       throw new ReadException("Cannot read number of constants in enumeration");
     }
-    data = bs.truncatePrefix(ENUM_SIZE_WIDTH);
+    int num_constants = r.readBits(ENUM_SIZE_WIDTH);
     bits_read += ENUM_SIZE_WIDTH;
-    int num_constants = data.intValue();
+    m_constants = new Vector<String>(m_constants);
     // Read each constant
     for (int i = 0; i < num_constants; i++)
     {
-      if (bs.isEmpty())
+      if (r.remaining() == 0)
       {
         throw new ReadException("Cannot read all constants in enumeration");
       }
       SmallsciiElement ss_constant = new SmallsciiElement();
-      int read = ss_constant.fromBitSequence(bs);
+      int read = ss_constant.fromBitSequence(r);
       bits_read += read;
       m_constants.add(ss_constant.m_contents);
     }
@@ -195,52 +172,41 @@ public class EnumElement extends SchemaElement
   }
   
   @Override
-  protected void readSchemaFromString(MutableString s) throws ReadException
+  protected void readSchemaFromString(TextCursor s) throws ReadException
   {
-    s.truncateSubstring("Enum".length());
-    s.trim();
-    if (!s.startsWith("{"))
-    {
-      throw new ReadException("Invalid definition of an Enum");
-    }
-    int index = s.indexOf("}", 1);
-    if (index < 0)
+    s.skip("Enum".length());
+    s.skipWhitespace();
+    if (!s.consume('{'))
     {
       throw new ReadException("Invalid definition of an Enum");
     }
-    MutableString value_string = s.truncateSubstring(index + 1);
-    value_string.replaceAll("\\{", ""); // With backslashes, since it is a regex
-    value_string.replaceAll("\\}", "");
-    MutableString[] values = value_string.split(",");
-    for (MutableString value : values)
+    m_constants = new Vector<String>(m_constants);
+    do
     {
-      value.trim();
+      String value = s.readUntil(",}");
+      if (value == null)
+      {
+        throw new ReadException("Invalid definition of an Enum");
+      }
       if (value.isEmpty())
       {
         throw new ReadException("Empty value inside Enum");
       }
-      value.replaceAll("\"", "");
-      m_constants.add(value.toString());
-    }
-    //s.truncateSubstring(index + 1);
+      m_constants.add(value);
+    } while (s.consume(','));
+    // The only other delimiter is the closing brace
+    s.consume('}');
     return;
   }
   
   @Override
-  protected void readContentsFromString(MutableString s) throws ReadException
+  protected void readContentsFromString(TextCursor s) throws ReadException
   {
-    if (!s.startsWith("\""))
-    {
-      throw new ReadException("Error reading Enum value");
-    }
-    int index = s.indexOf("\"", 1);
-    if (index < 0)
+    String str_val = s.readQuoted();
+    if (str_val == null)
     {
       throw new ReadException("Error reading Enum value");
     }
-    MutableString value = s.truncateSubstring(index + 1);
-    value.replaceAll("\"", "");
-    String str_val = value.toString();
     if (!m_constants.contains(str_val))
     {
       throw new ReadException("Enum value not in domain");
@@ -17,17 +17,27 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
-import ca.uqac.lif.util.MutableString;
-
 public class FixedMapElement extends SchemaElement
 {
   // We use two vectors rather than a map to store key-value pairs,
-  // because the ordering of the keys is important
+  // because the ordering of the keys is important. The keys are part of
+  // the schema: they are shared between a map and its copies, and are
+  // hence never modified in place (a new vector is created instead).
   protected Vector<String> m_keys;
   protected Vector<SchemaElement> m_values;
   
+  /**
+   * The position of each key in {@link #m_keys}, so that keys are not
+   * looked up by scanning the vector. Like the keys, the index is part of
+   * the schema: it is shared between a map and its copies, and replaced
+   * along with the keys instead of being modified.
+   */
+  protected Map<String,Integer> m_keyIndex;
+  
   /**
    *  The number of bits to encode the number of keys in the map.
    *  For example, if set to 6, then the map will contain at most
@@ -40,14 +50,49 @@ public class FixedMapElement extends SchemaElement
     super();
     m_keys = new Vector<String>();
     m_values = new Vector<SchemaElement>();
+    m_keyIndex = new HashMap<String,Integer>();
   }
   
   public void addToSchema(String key, SchemaElement type)
   {
-    m_keys.add(key);
+    Vector<String> keys = new Vector<String>(m_keys);
+    keys.add(key);
+    m_keys = keys;
+    m_keyIndex = indexKeys(keys);
     m_values.add(type);
   }
   
+  /**
+   * Gets the position of a key
+   * @param key The key
+   * @return The position, or -1 if the map has no such key
+   */
+  protected int indexOfKey(String key)
+  {
+    Integer index = m_keyIndex.get(key);
+    if (index == null)
+    {
+      return -1;
+    }
+    return index;
+  }
+  
+  /**
+   * Builds the index of a vector of keys
+   * @param keys The keys
+   * @return The position of each key; if a key appears more than once,
+   *   its first position
+   */
+  protected static Map<String,Integer> indexKeys(Vector<String> keys)
+  {
+    Map<String,Integer> index = new HashMap<String,Integer>(keys.size() * 2);
+    for (int i = keys.size() - 1; i >= 0; i--)
+    {
+      index.put(keys.get(i), i);
+    }
+    return index;
+  }
+  
   public SchemaElement get(String path)
   {
     if (path.isEmpty())
@@ -67,7 +112,7 @@ public class FixedMapElement extends SchemaElement
       return null;
     }
     String key_to_get = path.substring(1, closing_bracket_pos);
-    int value_index = m_keys.indexOf(key_to_get);
+    int value_index = indexOfKey(key_to_get);
     if (value_index < 0)
     {
       // Invalid expression
@@ -83,33 +128,30 @@ public class FixedMapElement extends SchemaElement
   }
 
   @Override
-  public BitSequence toBitSequence(boolean as_delta) throws BitFormatException
+  public void writeTo(BitWriter w, boolean as_delta) throws BitFormatException
   {
-    BitSequence out = new BitSequence();
     if (as_delta)
     {
       // Send a single 1 bit, indicating a change
-      out.add(true);
+      w.writeBit(true);
     }
     for (int i = 0; i < m_keys.size(); i++)
     {
       SchemaElement value = m_values.get(i);
-      out.addAll(value.toBitSequence(as_delta));
+      value.writeTo(w, as_delta);
     }
-    return out;
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  public int fromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     int bits_read = 0;
     for (int i = 0; i < m_keys.size(); i++)
     {
       SchemaElement value = m_values.get(i);
-      ElementInt ei = value.readContentsFromBitSequence(bs, as_delta);
+      ElementInt ei = value.readContentsFromBitSequence(r, as_delta);
       m_values.set(i, ei.m_element);
       bits_read += ei.m_int;
-      //bs.truncatePrefix(read);
     }
     return bits_read;
   }
@@ -117,9 +159,10 @@ public class FixedMapElement extends SchemaElement
   public SchemaElement copy()
   {
     FixedMapElement out = new FixedMapElement();
-    for (int i = 0; i < m_keys.size(); i++)
+    out.m_keys = m_keys;
+    out.m_keyIndex = m_keyIndex;
+    for (int i = 0; i < m_values.size(); i++)
     {
-      out.m_keys.add(m_keys.get(i));
       out.m_values.add(m_values.get(i).copy());
     }
     return out;
@@ -145,7 +188,7 @@ public class FixedMapElement extends SchemaElement
       return;
     }
     String key_to_get = path.substring(1, closing_bracket_pos);
-    int value_index = m_keys.indexOf(key_to_get);
+    int value_index = indexOfKey(key_to_get);
     if (value_index < 0)
     {
       // Invalid expression
@@ -167,12 +210,12 @@ public class FixedMapElement extends SchemaElement
       // Invalid element
       throw new TypeMismatchException();
     }
-    m_keys.clear();
     m_values.clear();
     FixedMapElement copy_from = (FixedMapElement) value;
-    for (int i = 0; i < copy_from.m_keys.size(); i++)
+    m_keys = copy_from.m_keys;
+    m_keyIndex = copy_from.m_keyIndex;
+    for (int i = 0; i < copy_from.m_values.size(); i++)
     {
-      m_keys.add(copy_from.m_keys.elementAt(i));
       m_values.add(copy_from.m_values.elementAt(i).copy());
     }
   }
@@ -216,148 +259,115 @@ public class FixedMapElement extends SchemaElement
   }
 
   @Override
-  public BitSequence schemaToBitSequence()
+  public void writeSchemaTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = null;
-    try
-    {
-      // Write element type number
-      out = new BitSequence(SCHEMA_MAP, SCHEMA_WIDTH);
-      // Write number of keys
-      out.addAll(new BitSequence(m_keys.size(), MAX_KEY_WIDTH));
-      // Encode each element of the map; the key is a null-terminated string,
-      // and the value encodes itself recursively
-      for (int i = 0; i < m_keys.size(); i++)
-      {
-        String key = m_keys.get(i);
-        SmallsciiElement sse_key = new SmallsciiElement(key);
-        out.addAll(sse_key.toBitSequence());
-        SchemaElement value = m_values.get(i);
-        out.addAll(value.schemaToBitSequence());
-      }
-    } 
-    catch (BitFormatException e)
+    // Write element type number
+    w.writeBits(SCHEMA_MAP, SCHEMA_WIDTH);
+    // Write number of keys
+    w.writeBits(m_keys.size(), MAX_KEY_WIDTH);
+    // Encode each element of the map; the key is a null-terminated string,
+    // and the value encodes itself recursively
+    for (int i = 0; i < m_keys.size(); i++)
     {
-      // Not supposed to happen
-      assert false;
+      SmallsciiElement.writeString(w, m_keys.get(i));
+      SchemaElement value = m_values.get(i);
+      value.writeSchemaTo(w);
     }
-    return out;
   }
   
   @Override
-  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  protected int readSchemaFromBitSequence(BitReader r) throws ReadException
   {
     int bits_read = 0;
-    BitSequence data;
     // Read number of keys
-    if (bs.size() < MAX_KEY_WIDTH)
+    if (r.remaining() < MAX_KEY_WIDTH)
     {
       throw new ReadException("Cannot read number of keys");
     }
-    data = bs.truncatePrefix(MAX_KEY_WIDTH);
+    int length = r.readBits(MAX_KEY_WIDTH);
     bits_read += MAX_KEY_WIDTH;
-    int length = data.intValue();
+    m_keys = new Vector<String>(m_keys);
     // Read schema of containing element
     for (int i = 0; i < length; i++)
     {
       // Read key name
       SmallsciiElement sse = new SmallsciiElement();
-      int read = sse.fromBitSequence(bs);
+      int read = sse.fromBitSequence(r);
       bits_read += read;
-      String key_name = sse.toString();
+      String key_name = sse.m_contents;
       // Read schema of associated value
-      ElementInt ei = SchemaElement.bitSequenceToSchema(bs);
+      ElementInt ei = SchemaElement.bitSequenceToSchema(r);
       bits_read += ei.m_int;
       m_keys.add(key_name);
       m_values.add(ei.m_element);
     }
+    m_keyIndex = indexKeys(m_keys);
     return bits_read;
   }
   
   @Override
-  protected void readSchemaFromString(MutableString s) throws ReadException
+  protected void readSchemaFromString(TextCursor s) throws ReadException
   {
-    s.truncateSubstring("FixedMap".length());
-    s.trim();
-    if (!s.startsWith("{"))
+    s.skip("FixedMap".length());
+    s.skipWhitespace();
+    if (!s.consume('{'))
     {
       // Should not happen
       throw new ReadException("Invalid definition of a Map");
     }
-    int index = findMatchingClosing(s);
-    if (index < 0)
-    {
-      throw new ReadException("Invalid definition of a Map");
-    }
-    MutableString value_string = s.substring(1, index);
-    value_string.trim();
-    while (!value_string.isEmpty())
+    s.skipWhitespace();
+    m_keys = new Vector<String>(m_keys);
+    while (!s.consume('}'))
     {
-      int colon_index = value_string.indexOf(":");
-      if (colon_index < 0)
+      String key_part = s.readUntil(":");
+      if (key_part == null)
       {
         throw new ReadException("Invalid definition of a Map");
       }
-      MutableString key_part = value_string.substring(0, colon_index);
-      key_part.replaceAll("\"", "");
-      key_part.trim();
-      value_string.truncateSubstring(colon_index + 1);
-      value_string.trim();
-      SchemaElement se = SchemaElement.parseSchemaFromString(value_string);
-      m_keys.add(key_part.toString());
+      s.consume(':');
+      SchemaElement se = SchemaElement.parseSchemaFromString(s);
+      m_keys.add(key_part);
       m_values.add(se);
-      value_string.trim();
-      if (value_string.startsWith(","))
+      s.skipWhitespace();
+      if (s.consume(','))
       {
-        value_string.truncateSubstring(1);
-        value_string.trim();
+        s.skipWhitespace();
       }
     }
-    s.truncateSubstring(index + 1);
+    m_keyIndex = indexKeys(m_keys);
   }
   
   @Override
-  protected void readContentsFromString(MutableString s) throws ReadException
+  protected void readContentsFromString(TextCursor s) throws ReadException
   {
-    if (!s.startsWith("{"))
+    if (!s.consume('{'))
     {
       // Should not happen
       throw new ReadException("Error reading Map");
     }
-    int index = findMatchingClosing(s);
-    if (index < 0)
-    {
-      throw new ReadException("Error reading Map");
-    }
-    MutableString value_string = s.substring(1, index);
-    value_string.trim();
-    while (!value_string.isEmpty())
+    s.skipWhitespace();
+    while (!s.consume('}'))
     {
-      int colon_index = value_string.indexOf(":");
-      if (colon_index < 0)
+      String key_part = s.readUntil(":");
+      if (key_part == null)
       {
         throw new ReadException("Error reading Map");
       }
-      MutableString key_part = value_string.substring(0, colon_index);
-      key_part.replaceAll("\"", "");
-      key_part.trim();
-      value_string.truncateSubstring(colon_index + 1);
-      value_string.trim();
-      int key_index = m_keys.indexOf(key_part.toString());
+      s.consume(':');
+      s.skipWhitespace();
+      int key_index = indexOfKey(key_part);
       if (key_index < 0)
       {
-        throw new ReadException("Invalid key \"" + key_part.toString() + "\" while reading Map");
+        throw new ReadException("Invalid key \"" + key_part + "\" while reading Map");
       }
       SchemaElement se = m_values.get(key_index);
-      se.readContentsFromString(value_string);
-      value_string.trim();
-      if (value_string.startsWith(","))
+      se.readContentsFromString(s);
+      s.skipWhitespace();
+      if (s.consume(','))
       {
-        value_string.truncateSubstring(1);
-        value_string.trim();
+        s.skipWhitespace();
       }
     }
-    s.truncateSubstring(index + 1);
   }
   
   @Override
@@ -371,11 +381,13 @@ public class FixedMapElement extends SchemaElement
     FixedMapElement el = (FixedMapElement) reference;
     if (delta instanceof NoChangeElement)
     {
-      // No change: copy into self value of reference list
+      // No change: copy into self value of reference list, letting each
+      // value predict its contents from the reference
       m_values.clear();
       for (SchemaElement value : el.m_values)
       {
         SchemaElement element_copy = value.copy();
+        element_copy.readContentsFromDelta(value, delta);
         m_values.add(element_copy);
       }
       return;
@@ -423,11 +435,13 @@ public class FixedMapElement extends SchemaElement
     }
     boolean contains_a_change = false;
     FixedMapElement out = new FixedMapElement();
+    out.m_keys = reference.m_keys;
+    out.m_keyIndex = reference.m_keyIndex;
+    // Maps of the same schema share their keys
+    boolean same_keys = reference.m_keys == new_one.m_keys;
     for (int i = 0; i < reference.m_keys.size(); i++)
     {
-      String ref_key = reference.m_keys.elementAt(i);
-      String new_key = new_one.m_keys.elementAt(i);
-      if (ref_key.compareTo(new_key) != 0)
+      if (!same_keys && reference.m_keys.elementAt(i).compareTo(new_one.m_keys.elementAt(i)) != 0)
       {
         throw new TypeMismatchException("Maps don't have the same keys");
       }
@@ -442,7 +456,6 @@ public class FixedMapElement extends SchemaElement
       {
         contains_a_change = true;
       }
-      out.m_keys.add(ref_key);
       out.m_values.add(delta_val);
     }
     if (!contains_a_change)
@@ -17,8 +17,6 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
-import ca.uqac.lif.util.MutableString;
-
 /**
  * Representation of an <i>n</i>-bit integer
  * @author sylvain
@@ -65,6 +63,62 @@ public class IntegerElement extends SchemaElement
    */
   public static final int MAX_RANGE = (int) Math.pow(2,  RANGE_WIDTH);
   
+  /**
+   * Delta encoding: the difference with the reference value, written
+   * as a signed integer over the delta range
+   */
+  public static final int DELTA_PLAIN = 0;
+  
+  /**
+   * Delta encoding: the difference with the reference value, minus the
+   * difference between the reference value and <em>its</em> own
+   * reference (delta-of-delta). A counter or a timestamp that grows at
+   * a steady pace takes a single bit.
+   */
+  public static final int DELTA_DOD = 1;
+  
+  /**
+   * Delta encoding: the difference with the reference value, mapped to
+   * an unsigned integer by zig-zag encoding and written in groups of
+   * {@link #VARINT_GROUP} bits. The difference is not bounded by the
+   * delta range.
+   */
+  public static final int DELTA_VARINT = 2;
+  
+  /**
+   * Delta encoding: the exclusive or of the value and the reference
+   * value, of which only the meaningful bits are written (as in
+   * Facebook's Gorilla). Suits values that jitter around a constant.
+   */
+  public static final int DELTA_XOR = 3;
+  
+  /**
+   * The names of the delta encodings in the schema string
+   */
+  protected static final String[] DELTA_ENCODING_NAMES = {"plain", "dod", "varint", "xor"};
+  
+  /**
+   * Number of bits to encode the delta encoding
+   */
+  public static final int DELTA_ENCODING_WIDTH = 2;
+  
+  /**
+   * Number of value bits in each group of a varint
+   */
+  protected static final int VARINT_GROUP = 4;
+  
+  /**
+   * The encoding of the integer when expressed as a delta
+   */
+  protected int m_deltaEncoding = DELTA_PLAIN;
+  
+  /**
+   * The difference between this value and the value of the integer it
+   * was last expressed as a delta of, or 0 if it was sent in full.
+   * Delta-of-delta encoding predicts the next value from it.
+   */
+  protected int m_lastDelta = 0;
+  
   public IntegerElement()
   {
     super();
@@ -89,6 +143,12 @@ public class IntegerElement extends SchemaElement
     m_signed = signed;
   }
   
+  public IntegerElement(int value, int range, int delta_range, boolean signed, int delta_encoding)
+  {
+    this(value, range, delta_range, signed);
+    m_deltaEncoding = delta_encoding;
+  }
+  
   public SchemaElement get(String path)
   {
     if (path.isEmpty())
@@ -111,66 +171,66 @@ public class IntegerElement extends SchemaElement
     {
       out.append("*");
     }
-    out.append("(").append(m_range).append(",").append(m_deltaRange).append(")");
+    out.append("(").append(m_range).append(",").append(m_deltaRange);
+    if (m_deltaEncoding != DELTA_PLAIN)
+    {
+      out.append(",").append(DELTA_ENCODING_NAMES[m_deltaEncoding]);
+    }
+    out.append(")");
     return out.toString();
   }
 
   @Override
-  public BitSequence toBitSequence(boolean as_delta) throws BitFormatException
+  public void writeTo(BitWriter w, boolean as_delta) throws BitFormatException
   {
-    BitSequence bs = new BitSequence();
     if (as_delta)
     {
       // Send a single 1 bit, indicating a change
-      bs.add(true);
+      w.writeBit(true);
+      writeResidual(w, m_deltaEncoding, m_deltaRange, m_value);
+      return;
     }
     if (!m_signed)
     {
-      BitSequence new_bs = new BitSequence(m_value, m_range);
-      bs.addAll(new_bs);
+      w.writeBits(m_value, m_range);
     }
     else
     {
-      if (m_value < 0)
-        bs.addAll(new BitSequence("1")); // First bit indicates sign
-      else
-        bs.addAll(new BitSequence("0"));
+      // First bit indicates sign
+      w.writeBit(m_value < 0);
       // Encode absolute value over remaining bits
-      bs.addAll(new BitSequence(Math.abs(m_value), m_range - 1));
+      w.writeBits(Math.abs(m_value), m_range - 1);
     }
-    return bs;
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  public int fromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     int bits_read = 0;
     int range = m_range;
     if (as_delta)
     {
-      range = m_deltaRange;
-      m_signed = true; // Delta integers are always signed
+      int start = r.position();
+      m_value = readResidual(r, m_deltaEncoding, m_deltaRange);
+      return r.position() - start;
     }
-    if (range > bs.size())
+    if (range > r.remaining())
     {
       throw new ReadException();
     }
     if (m_signed)
     {
       // Number is signed: read first bit to get sign
-      BitSequence sign = bs.truncatePrefix(1);
       int multiple = 1;
-      if (sign.intValue() == 1)
+      if (r.readBit())
       {
         multiple = -1;
       }
-      BitSequence value = bs.truncatePrefix(range - 1);
-      m_value = multiple * value.intValue();
+      m_value = multiple * r.readBits(range - 1);
     }
     else
     {
-      BitSequence int_v = bs.truncatePrefix(range);
-      m_value = int_v.intValue();
+      m_value = r.readBits(range);
     }
     bits_read += range;
     return bits_read;
@@ -179,7 +239,8 @@ public class IntegerElement extends SchemaElement
   @Override
   public SchemaElement copy()
   {
-    IntegerElement ie = new IntegerElement(m_value, m_range, m_deltaRange, m_signed);
+    IntegerElement ie = new IntegerElement(m_value, m_range, m_deltaRange, m_signed, m_deltaEncoding);
+    ie.m_lastDelta = m_lastDelta;
     return ie;
   }
 
@@ -200,98 +261,94 @@ public class IntegerElement extends SchemaElement
   }
 
   @Override
-  public BitSequence schemaToBitSequence()
+  public void writeSchemaTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = null;
-    try
-    {
-      // Write element type
-      out = new BitSequence(SCHEMA_INTEGER, SCHEMA_WIDTH);
-      // Write range
-      out.addAll(new BitSequence(m_range, RANGE_WIDTH));
-      // Write delta range
-      out.addAll(new BitSequence(m_deltaRange, RANGE_WIDTH));
-      // Write whether signed
-      out.add(m_signed);
-    } 
-    catch (BitFormatException e)
-    {
-      // Not supposed to happen
-      assert false;
-    }
-    return out;
+    // Write element type
+    w.writeBits(SCHEMA_INTEGER, SCHEMA_WIDTH);
+    // Write range
+    w.writeBits(m_range, RANGE_WIDTH);
+    // Write delta range
+    w.writeBits(m_deltaRange, RANGE_WIDTH);
+    // Write whether signed
+    w.writeBit(m_signed);
+    // Write delta encoding
+    w.writeBits(m_deltaEncoding, DELTA_ENCODING_WIDTH);
   }
   
-  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  protected int readSchemaFromBitSequence(BitReader r) throws ReadException
   {
     int bits_read = 0;
-    BitSequence data;
     // Read range
-    if (bs.size() < RANGE_WIDTH)
+    if (r.remaining() < RANGE_WIDTH)
     {
       throw new ReadException("Cannot read integer range");
     }
-    data = bs.truncatePrefix(RANGE_WIDTH);
+    m_range = r.readBits(RANGE_WIDTH);
     bits_read += RANGE_WIDTH;
-    m_range = data.intValue();
     // Read delta range
-    if (bs.size() < RANGE_WIDTH)
+    if (r.remaining() < RANGE_WIDTH)
     {
       throw new ReadException("Cannot read integer range");
     }
-    data = bs.truncatePrefix(RANGE_WIDTH);
+    m_deltaRange = r.readBits(RANGE_WIDTH);
     bits_read += RANGE_WIDTH;
-    m_deltaRange = data.intValue();
     // Read whether integer is signed or not
-    if (bs.size() < 1)
+    if (r.remaining() < 1)
     {
       throw new ReadException("Cannot read integer sign");
     }
-    data = bs.truncatePrefix(1);
+    m_signed = r.readBit();
     bits_read++;
-    m_signed = (data.intValue() == 1);
+    // Read delta encoding
+    if (r.remaining() < DELTA_ENCODING_WIDTH)
+    {
+      throw new ReadException("Cannot read integer delta encoding");
+    }
+    m_deltaEncoding = r.readBits(DELTA_ENCODING_WIDTH);
+    bits_read += DELTA_ENCODING_WIDTH;
     return bits_read;
   }
   
   @Override
-  protected void readSchemaFromString(MutableString s) throws ReadException
+  protected void readSchemaFromString(TextCursor s) throws ReadException
   {
-    s.truncateSubstring("Integer".length());
-    if (s.startsWith("*"))
+    s.skip("Integer".length());
+    if (s.consume('*'))
     {
       // Indicates a signed integer
       m_signed = true;
-      s.truncateSubstring(1);
     }
-    if (s.startsWith("("))
+    if (s.consume('('))
     {
       // Read range if any
-      int index = s.indexOf(")");
-      if (index < 0)
-      {
-        throw new ReadException("Invalid definition of an Integer");
-      }
-      MutableString sub_range = s.substring(1, index);
-      s.truncateSubstring(index + 1);
-      MutableString[] parts = sub_range.split(",");
-      m_range = Integer.parseInt(parts[0].toString());
+      s.skipWhitespace();
+      m_range = s.readInt();
       if (m_range <= 0 || m_range >= MAX_RANGE)
       {
         throw new ReadException("Invalid range for Integer");
       }
-      if (parts.length == 1)
-      {
-        m_deltaRange = m_range;
-      }
-      else if (parts.length == 2)
+      m_deltaRange = m_range;
+      s.skipWhitespace();
+      if (s.consume(','))
       {
-        m_deltaRange = Integer.parseInt(parts[1].toString());
+        s.skipWhitespace();
+        m_deltaRange = s.readInt();
         if (m_deltaRange <= 0 || m_deltaRange >= MAX_RANGE)
         {
           throw new ReadException("Invalid delta range for Integer");
         }
+        s.skipWhitespace();
+        if (s.consume(','))
+        {
+          String encoding = s.readUntil(",)");
+          if (encoding == null)
+          {
+            throw new ReadException("Invalid definition of an Integer");
+          }
+          m_deltaEncoding = parseDeltaEncoding(encoding);
+        }
       }
-      else
+      if (!s.consume(')'))
       {
         throw new ReadException("Invalid range expression for Integer");
       }
@@ -300,39 +357,16 @@ public class IntegerElement extends SchemaElement
   }
   
   @Override
-  protected void readContentsFromString(MutableString s) throws ReadException
+  protected void readContentsFromString(TextCursor s) throws ReadException
   {
-    int index = s.length(), pos = 0;
-    pos = s.indexOf(",");
-    if (pos >= 0)
-    {
-      index = (int) Math.min(index, pos);
-    }
-    pos = s.indexOf("]");
-    if (pos >= 0)
-    {
-      index = (int) Math.min(index, pos);
-    }
-    pos = s.indexOf("}");
-    if (pos >= 0)
+    try
     {
-      index = (int) Math.min(index, pos);
+      this.m_value = s.readInt();
     }
-    if (index < 0)
+    catch (ReadException e)
     {
       throw new ReadException("Error reading integer value");
     }
-    MutableString value = null;
-    if (index < s.length())
-    {
-      value = s.truncateSubstring(index);
-    }
-    else
-    {
-      value = new MutableString(s);
-      s.clear();
-    }
-    this.m_value = Integer.parseInt(value.toString());
   }
 
   @Override
@@ -344,20 +378,20 @@ public class IntegerElement extends SchemaElement
       throw new ReadException("Type mismatch in reference element: expected an Integer");
     }
     IntegerElement el = (IntegerElement) reference;
-    if (delta instanceof NoChangeElement)
-    {
-      // No change: copy into self value of reference enum
-      m_value = el.m_value;
-      return;
-    }
-    // Change: make sure that delta is of proper type
-    if (!(delta instanceof IntegerElement))
+    // No change: the value is the one predicted from the reference
+    int residual = 0;
+    if (!(delta instanceof NoChangeElement))
     {
-      throw new ReadException("Type mismatch in delta element: expected an Integer or a no-change");
+      // Change: make sure that delta is of proper type
+      if (!(delta instanceof IntegerElement))
+      {
+        throw new ReadException("Type mismatch in delta element: expected an Integer or a no-change");
+      }
+      residual = ((IntegerElement) delta).m_value;
     }
-    IntegerElement del = (IntegerElement) delta;
     // Everything OK: copy value of reference + delta into self
-    m_value = el.m_value + del.m_value;
+    m_value = applyResidual(el.m_deltaEncoding, el.m_signed, el.m_value, el.m_lastDelta, residual);
+    m_lastDelta = m_value - el.m_value;
   }
   
   /**
@@ -371,11 +405,202 @@ public class IntegerElement extends SchemaElement
    */
   protected static SchemaElement populateFromDelta(IntegerElement reference, IntegerElement new_one)
   {
-    int difference = new_one.m_value - reference.m_value;
-    if (difference == 0)
+    int residual = residual(reference.m_deltaEncoding, reference.m_signed, reference.m_value, reference.m_lastDelta, new_one.m_value);
+    if (residual == 0)
     {
       return new NoChangeElement();
     }
-    return new IntegerElement(difference, reference.m_deltaRange, reference.m_deltaRange, true);
+    return new IntegerElement(residual, reference.m_deltaRange, reference.m_deltaRange, true, reference.m_deltaEncoding);
+  }
+  
+  /**
+   * Gets the delta encoding of a given name
+   * @param name The name, as it appears in the schema string
+   * @return The delta encoding
+   * @throws ReadException If no encoding has this name
+   */
+  protected static int parseDeltaEncoding(String name) throws ReadException
+  {
+    for (int i = 0; i < DELTA_ENCODING_NAMES.length; i++)
+    {
+      if (DELTA_ENCODING_NAMES[i].compareTo(name) == 0)
+      {
+        return i;
+      }
+    }
+    throw new ReadException("Invalid delta encoding for Integer: " + name);
+  }
+  
+  /**
+   * Computes what is written in a delta to express a value with
+   * respect to a reference value. The residual is 0 when the value is
+   * the one predicted from the reference.
+   * @param encoding The delta encoding
+   * @param signed Whether the integer is signed
+   * @param reference The reference value
+   * @param last_delta The last delta of the reference value
+   * @param value The value
+   * @return The residual
+   */
+  protected static int residual(int encoding, boolean signed, int reference, int last_delta, int value)
+  {
+    switch (encoding)
+    {
+    case DELTA_DOD:
+      return value - reference - last_delta;
+    case DELTA_XOR:
+      if (signed)
+      {
+        return zigZag(value) ^ zigZag(reference);
+      }
+      return value ^ reference;
+    default:
+      return value - reference;
+    }
+  }
+  
+  /**
+   * Computes a value from a reference value and the residual read in
+   * a delta. This is the inverse of
+   * {@link #residual(int, boolean, int, int, int)}.
+   * @param encoding The delta encoding
+   * @param signed Whether the integer is signed
+   * @param reference The reference value
+   * @param last_delta The last delta of the reference value
+   * @param residual The residual
+   * @return The value
+   */
+  protected static int applyResidual(int encoding, boolean signed, int reference, int last_delta, int residual)
+  {
+    switch (encoding)
+    {
+    case DELTA_DOD:
+      return reference + last_delta + residual;
+    case DELTA_XOR:
+      if (signed)
+      {
+        return unZigZag(zigZag(reference) ^ residual);
+      }
+      return reference ^ residual;
+    default:
+      return reference + residual;
+    }
+  }
+  
+  /**
+   * Writes a nonzero residual
+   * @param w The writer to write to
+   * @param encoding The delta encoding
+   * @param delta_range The delta range of the integer
+   * @param residual The residual
+   * @throws BitFormatException If the residual cannot be written
+   *   with this encoding
+   */
+  protected static void writeResidual(BitWriter w, int encoding, int delta_range, int residual) throws BitFormatException
+  {
+    switch (encoding)
+    {
+    case DELTA_VARINT:
+    {
+      // Groups of bits, least significant first, each preceded by a bit
+      // telling whether another group follows
+      int z = zigZag(residual);
+      do
+      {
+        int group = z & ((1 << VARINT_GROUP) - 1);
+        z >>>= VARINT_GROUP;
+        w.writeBit(z != 0);
+        w.writeBits(group, VARINT_GROUP);
+      } while (z != 0);
+      break;
+    }
+    case DELTA_XOR:
+    {
+      // Number of meaningful bits, then these bits; the first of them is
+      // always 1 and is not written
+      int meaningful = Integer.SIZE - Integer.numberOfLeadingZeros(residual);
+      w.writeBits(meaningful - 1, RANGE_WIDTH);
+      w.writeBits(residual & ((1L << (meaningful - 1)) - 1), meaningful - 1);
+      break;
+    }
+    default:
+      // First bit indicates sign
+      w.writeBit(residual < 0);
+      w.writeBits(Math.abs(residual), delta_range - 1);
+    }
+  }
+  
+  /**
+   * Reads a residual written by
+   * {@link #writeResidual(BitWriter, int, int, int)}
+   * @param r The reader to read from
+   * @param encoding The delta encoding
+   * @param delta_range The delta range of the integer
+   * @return The residual
+   * @throws ReadException If the residual cannot be read
+   */
+  protected static int readResidual(BitReader r, int encoding, int delta_range) throws ReadException
+  {
+    switch (encoding)
+    {
+    case DELTA_VARINT:
+    {
+      int z = 0;
+      int shift = 0;
+      boolean more = true;
+      while (more)
+      {
+        if (shift >= Integer.SIZE)
+        {
+          throw new ReadException("Invalid varint");
+        }
+        more = r.readBit();
+        z |= r.readBits(VARINT_GROUP) << shift;
+        shift += VARINT_GROUP;
+      }
+      return unZigZag(z);
+    }
+    case DELTA_XOR:
+    {
+      int meaningful = r.readBits(RANGE_WIDTH) + 1;
+      int residual = 1 << (meaningful - 1);
+      if (meaningful > 1)
+      {
+        residual |= r.readBits(meaningful - 1);
+      }
+      return residual;
+    }
+    default:
+    {
+      if (delta_range > r.remaining())
+      {
+        throw new ReadException();
+      }
+      boolean negative = r.readBit();
+      int value = r.readBits(delta_range - 1);
+      return negative ? -value : value;
+    }
+    }
+  }
+  
+  /**
+   * Maps a signed integer to an unsigned one, so that integers of small
+   * magnitude become small: 0, -1, 1, -2 become 0, 1, 2, 3
+   * @param n The integer
+   * @return The mapped integer, to be read as unsigned
+   */
+  protected static int zigZag(int n)
+  {
+    return (n << 1) ^ (n >> (Integer.SIZE - 1));
+  }
+  
+  /**
+   * Inverse of {@link #zigZag(int)}
+   * @param z The mapped integer
+   * @return The integer
+   */
+  protected static int unZigZag(int z)
+  {
+    return (z >>> 1) ^ -(z & 1);
   }
 }
@@ -19,8 +19,6 @@ package ca.uqac.lif.buffertannen.message;
 
 import java.util.*;
 
-import ca.uqac.lif.util.MutableString;
-
 //import ca.uqac.info.buffertannen.BitSequence.FormatException;
 
 /**
@@ -31,12 +29,53 @@ import ca.uqac.lif.util.MutableString;
  */
 public class ListElement extends SchemaElement
 {
+  /**
+   * The type of the list's elements. It is shared between a list and its
+   * copies, and is hence never modified.
+   */
   protected SchemaElement m_elementType;
   
   protected List<SchemaElement> m_contents;
   
   protected static final int MAX_LENGTH_BITS = 8;
   
+  /**
+   * Edit operation: ends the edit script; the reference elements not
+   * visited yet are dropped
+   */
+  protected static final int EDIT_TRUNCATE = 0;
+  
+  /**
+   * Edit operation: the next reference elements are kept, each followed
+   * by its own delta (which replaces the element if it changed)
+   */
+  protected static final int EDIT_KEEP = 1;
+  
+  /**
+   * Edit operation: the next reference elements are removed
+   */
+  protected static final int EDIT_REMOVE = 2;
+  
+  /**
+   * Edit operation: new elements, written in full, are appended at
+   * this point
+   */
+  protected static final int EDIT_APPEND = 3;
+  
+  /**
+   * Number of bits to encode an edit operation
+   */
+  protected static final int EDIT_WIDTH = 2;
+  
+  /**
+   * When this list is the delta of a list whose length changed, the edit
+   * script turning the reference list into the new one, as pairs of an
+   * edit operation and a number of elements; the list's contents are
+   * then the deltas of the elements kept and the elements appended, in
+   * order. Null for a delta element by element.
+   */
+  protected int[] m_edits;
+  
   public ListElement()
   {
     super();
@@ -64,48 +103,52 @@ public class ListElement extends SchemaElement
   }
 
   @Override
-  public BitSequence toBitSequence(boolean as_delta) throws BitFormatException
+  public void writeTo(BitWriter w, boolean as_delta) throws BitFormatException
   {
-    BitSequence out = new BitSequence();
     if (as_delta)
     {
       // Send a single 1 bit, indicating a change
-      out.add(true);
+      w.writeBit(true);
+      // Then a bit telling whether an edit script follows
+      w.writeBit(m_edits != null);
+      if (m_edits != null)
+      {
+        writeEditsTo(w);
+        return;
+      }
     }
     // First append the size of the list, on 8 bits
-    try
-    {
-      out.addAll(new BitSequence(m_contents.size(), MAX_LENGTH_BITS));
-    }
-    catch (BitFormatException e)
-    {
-      // Do nothing
-    }
+    w.writeBits(m_contents.size(), MAX_LENGTH_BITS);
     // Then append the bit sequence of all elements
     for (SchemaElement el : m_contents)
     {
-      BitSequence bs = el.toBitSequence(as_delta);
-      out.addAll(bs);
+      el.writeTo(w, as_delta);
     }
-    return out;
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  public int fromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     int read_bits = 0;
-    if (bs.size() < MAX_LENGTH_BITS)
+    if (as_delta)
+    {
+      read_bits++;
+      if (r.readBit())
+      {
+        return read_bits + readEditsFrom(r);
+      }
+    }
+    if (r.remaining() < MAX_LENGTH_BITS)
     {
       throw new ReadException();
     }
-    BitSequence length = bs.truncatePrefix(8);
+    int num_elements = r.readBits(MAX_LENGTH_BITS);
     read_bits += MAX_LENGTH_BITS;
     m_contents.clear();
-    int num_elements = length.intValue();
     for (int i = 0; i < num_elements; i++)
     {
       SchemaElement new_el = m_elementType.copy();
-      ElementInt ei = new_el.readContentsFromBitSequence(bs, as_delta);
+      ElementInt ei = new_el.readContentsFromBitSequence(r, as_delta);
       m_contents.add(ei.m_element);
       read_bits += ei.m_int;
     }
@@ -116,7 +159,7 @@ public class ListElement extends SchemaElement
   public SchemaElement copy()
   {
     ListElement out = new ListElement();
-    out.m_elementType = m_elementType.copy();
+    out.m_elementType = m_elementType;
     for (int i = 0; i < m_contents.size(); i++)
     {
       out.m_contents.add(m_contents.get(i).copy());
@@ -226,7 +269,7 @@ public class ListElement extends SchemaElement
     }
     m_contents.clear();
     ListElement copy_from = (ListElement) value;
-    m_elementType = copy_from.m_elementType.copy();
+    m_elementType = copy_from.m_elementType;
     for (SchemaElement se : copy_from.m_contents)
     {
       m_contents.add(se.copy());
@@ -266,40 +309,28 @@ public class ListElement extends SchemaElement
   }
   
   @Override
-  public BitSequence schemaToBitSequence()
+  public void writeSchemaTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = null;
-    try
-    {
-      // Write element type
-      out = new BitSequence(SCHEMA_LIST, SCHEMA_WIDTH);
-      // Write number of elements
-      out.addAll(new BitSequence(m_contents.size(), MAX_LENGTH_BITS));
-      // Write schema of containing element
-      out.addAll(m_elementType.schemaToBitSequence());
-    } 
-    catch (BitFormatException e)
-    {
-      // Not supposed to happen
-      assert false;
-    }
-    return out;
+    // Write element type
+    w.writeBits(SCHEMA_LIST, SCHEMA_WIDTH);
+    // Write number of elements
+    w.writeBits(m_contents.size(), MAX_LENGTH_BITS);
+    // Write schema of containing element
+    m_elementType.writeSchemaTo(w);
   }
   
-  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  protected int readSchemaFromBitSequence(BitReader r) throws ReadException
   {
     int bits_read = 0;
-    BitSequence data;
     // Read number of elements
-    if (bs.size() < MAX_LENGTH_BITS)
+    if (r.remaining() < MAX_LENGTH_BITS)
     {
       throw new ReadException("Cannot read length of list");
     }
-    data = bs.truncatePrefix(MAX_LENGTH_BITS);
+    int length = r.readBits(MAX_LENGTH_BITS);
     bits_read += MAX_LENGTH_BITS;
-    int length = data.intValue();
     // Read schema of containing element
-    ElementInt ei = SchemaElement.bitSequenceToSchema(bs);
+    ElementInt ei = SchemaElement.bitSequenceToSchema(r);
     bits_read += ei.m_int;
     m_elementType = ei.m_element;
     for (int i = 0; i < length; i++)
@@ -311,54 +342,48 @@ public class ListElement extends SchemaElement
   }
   
   @Override
-  protected void readSchemaFromString(MutableString s) throws ReadException
+  protected void readSchemaFromString(TextCursor s) throws ReadException
   {
-    s.truncateSubstring("List".length());
-    s.trim();
-    if (!s.startsWith("["))
+    s.skip("List".length());
+    s.skipWhitespace();
+    if (!s.consume('['))
     {
       // Should not happen
       throw new ReadException("Invalid definition of a List");
     }
-    int index = findMatchingClosing(s);
-    if (index < 0)
+    m_elementType = SchemaElement.parseSchemaFromString(s);
+    s.skipWhitespace();
+    if (!s.consume(']'))
     {
       throw new ReadException("Invalid definition of a List");
     }
-    MutableString value_string = s.substring(1, index);
-    m_elementType = SchemaElement.parseSchemaFromString(value_string);
-    s.truncateSubstring(index + 1);
     return;
   }
   
   @Override
-  protected void readContentsFromString(MutableString s) throws ReadException
+  protected void readContentsFromString(TextCursor s) throws ReadException
   {
-    if (!s.startsWith("["))
+    if (!s.consume('['))
     {
       // Should not happen
       throw new ReadException("Error reading List");
     }
-    int index = findMatchingClosing(s);
-    if (index < 0)
-    {
-      throw new ReadException("Error reading List");
-    }
-    MutableString value_string = s.substring(1, index);
-    value_string.trim();
-    while (!value_string.isEmpty())
+    s.skipWhitespace();
+    while (!s.consume(']'))
     {
+      if (s.atEnd())
+      {
+        throw new ReadException("Error reading List");
+      }
       SchemaElement se = m_elementType.copy();
-      se.readContentsFromString(value_string);
+      se.readContentsFromString(s);
       m_contents.add(se);
-      value_string.trim();
-      if (value_string.startsWith(","))
+      s.skipWhitespace();
+      if (s.consume(','))
       {
-        value_string.truncateSubstring(1);
-        value_string.trim();
+        s.skipWhitespace();
       }
     }
-    s.truncateSubstring(index + 1);
   }
   
   @Override
@@ -372,10 +397,12 @@ public class ListElement extends SchemaElement
     ListElement el = (ListElement) reference;
     if (delta instanceof NoChangeElement)
     {
-      // No change: copy into self value of reference list
+      // No change: copy into self value of reference list, letting each
+      // element predict its value from the reference
       for (SchemaElement list_element : el.m_contents)
       {
         SchemaElement element_copy = list_element.copy();
+        element_copy.readContentsFromDelta(list_element, delta);
         m_contents.add(element_copy);
       }
       return;
@@ -386,6 +413,11 @@ public class ListElement extends SchemaElement
       throw new ReadException("Type mismatch in delta element: expected a ListElement or a no-change");
     }
     ListElement del = (ListElement) delta;
+    if (del.m_edits != null)
+    {
+      applyEdits(el, del);
+      return;
+    }
     // Everything OK: process each element of the list, again computing
     // difference between matching reference and delta list items
     int min_size = Math.min(el.m_contents.size(), del.m_contents.size());
@@ -407,8 +439,10 @@ public class ListElement extends SchemaElement
    * elements from both lists are compared one by one, and their delta is
    * computed recursively. At the end of the process, if no delta was necessary
    * for any element, a {@link NoChangeElement} is returned in place of the
-   * list itself. If the length of the list in both operands is not equal,
-   * a {@link CannotComputeDeltaException} is thrown.
+   * list itself. If the length of the list in both operands is not equal
+   * (or if elements were shifted), the difference is rather expressed as
+   * an edit script (see {@link #populateEdits(ListElement, ListElement, int, int)});
+   * the smallest of these deltas is returned.
    * @param reference The element to use as a reference
    * @param new_one The new element
    * @return A Schema element representing the difference between reference and new_one
@@ -421,17 +455,68 @@ public class ListElement extends SchemaElement
    */
   protected static SchemaElement populateFromDelta(ListElement reference, ListElement new_one) throws TypeMismatchException, CannotComputeDeltaException
   {
-    if (reference.m_contents.size() != new_one.m_contents.size())
-    {
-      throw new CannotComputeDeltaException("Sizes of lists do not match");
-    }
     if (reference.m_elementType.getClass() != new_one.m_elementType.getClass())
     {
       throw new TypeMismatchException("Type of elements in lists does not match");
     }
+    ListElement best = null;
+    int best_size = Integer.MAX_VALUE;
+    if (reference.m_contents.size() == new_one.m_contents.size())
+    {
+      SchemaElement out = populateElementWise(reference, new_one);
+      if (out instanceof NoChangeElement)
+      {
+        return out;
+      }
+      best = (ListElement) out;
+      best_size = sizeOf(best);
+    }
+    // Try the edit scripts that may be smaller
+    int[] removed = {0, 0, 0};
+    int[] appended = {0, 0, 0};
+    if (!new_one.m_contents.isEmpty())
+    {
+      removed[1] = findUnchanged(reference.m_contents, new_one.m_contents.get(0), 1);
+    }
+    if (!reference.m_contents.isEmpty())
+    {
+      appended[2] = findUnchanged(new_one.m_contents, reference.m_contents.get(0), 1);
+    }
+    for (int i = 0; i < removed.length; i++)
+    {
+      if ((i == 0 && best != null) || removed[i] < 0 || appended[i] < 0)
+      {
+        // Element by element is smaller than a script keeping everything,
+        // and no match was found for the others
+        continue;
+      }
+      ListElement script = populateEdits(reference, new_one, removed[i], appended[i]);
+      int size = sizeOf(script);
+      if (best == null || size < best_size)
+      {
+        best = script;
+        best_size = size;
+      }
+    }
+    return best;
+  }
+  
+  /**
+   * Populates the difference between two lists of the same length,
+   * element by element
+   * @param reference The element to use as a reference
+   * @param new_one The new element
+   * @return A Schema element representing the difference between reference and new_one
+   * @throws CannotComputeDeltaException Indicates that it is not
+   *   possible to represent new_one as a delta with respect to reference
+   * @throws TypeMismatchException Indicates that the elements do not
+   *   have the same type
+   */
+  protected static SchemaElement populateElementWise(ListElement reference, ListElement new_one) throws TypeMismatchException, CannotComputeDeltaException
+  {
     boolean contains_a_change = false;
     ListElement out = new ListElement();
-    out.m_elementType = reference.m_elementType.copy();
+    out.m_elementType = reference.m_elementType;
     for (int i = 0; i < reference.m_contents.size(); i++)
     {
       SchemaElement ref_el = reference.m_contents.get(i);
@@ -449,4 +534,221 @@ public class ListElement extends SchemaElement
     }
     return out;
   }
+  
+  /**
+   * Populates the difference between two lists as an edit script: some
+   * elements are removed from the beginning of the reference, some new
+   * elements are appended before the others, the following elements
+   * are kept (and expressed as deltas), and the new list is completed
+   * or the reference truncated.
+   * @param reference The element to use as a reference
+   * @param new_one The new element
+   * @param removed The number of elements removed at the beginning
+   * @param appended The number of elements added at the beginning
+   * @return The delta
+   * @throws CannotComputeDeltaException Indicates that an element
+   *   cannot be expressed as a delta
+   * @throws TypeMismatchException Indicates that the elements do not
+   *   have the same type
+   */
+  protected static ListElement populateEdits(ListElement reference, ListElement new_one, int removed, int appended) throws TypeMismatchException, CannotComputeDeltaException
+  {
+    ListElement out = new ListElement();
+    out.m_elementType = reference.m_elementType;
+    int kept = Math.min(reference.m_contents.size() - removed, new_one.m_contents.size() - appended);
+    int[] edits = {EDIT_REMOVE, removed, EDIT_APPEND, appended, EDIT_KEEP, kept,
+        EDIT_APPEND, new_one.m_contents.size() - appended - kept, EDIT_TRUNCATE, 0};
+    // Leave out the operations on no element
+    int length = 0;
+    for (int i = 0; i < edits.length; i += 2)
+    {
+      if (edits[i + 1] > 0 || edits[i] == EDIT_TRUNCATE)
+      {
+        edits[length++] = edits[i];
+        edits[length++] = edits[i + 1];
+      }
+    }
+    out.m_edits = Arrays.copyOf(edits, length);
+    Iterator<SchemaElement> ref_it = reference.m_contents.listIterator(removed);
+    for (SchemaElement new_el : new_one.m_contents)
+    {
+      if (appended > 0 || !ref_it.hasNext())
+      {
+        appended--;
+        out.m_contents.add(new_el);
+      }
+      else
+      {
+        out.m_contents.add(SchemaElement.createFromDelta(ref_it.next(), new_el));
+      }
+    }
+    return out;
+  }
+  
+  /**
+   * Finds the first element of a list that is unchanged with respect
+   * to a given element
+   * @param list The list
+   * @param reference The element
+   * @param from The index to start from
+   * @return The index of the element, or -1 if none is found
+   */
+  protected static int findUnchanged(List<SchemaElement> list, SchemaElement reference, int from)
+  {
+    int i = 0;
+    for (SchemaElement e : list)
+    {
+      if (i >= from)
+      {
+        try
+        {
+          if (SchemaElement.createFromDelta(reference, e) instanceof NoChangeElement)
+          {
+            return i;
+          }
+        }
+        catch (TypeMismatchException ex)
+        {
+          // Not a match
+        }
+        catch (CannotComputeDeltaException ex)
+        {
+          // Not a match
+        }
+      }
+      i++;
+    }
+    return -1;
+  }
+  
+  /**
+   * Computes the size of a delta
+   * @param delta The delta
+   * @return Its size in bits, or {@link Integer#MAX_VALUE} if it cannot
+   *   be written
+   */
+  protected static int sizeOf(ListElement delta)
+  {
+    try
+    {
+      return delta.toBitSequence(true).size();
+    }
+    catch (BitFormatException e)
+    {
+      return Integer.MAX_VALUE;
+    }
+  }
+  
+  /**
+   * Writes the edit script of a delta, followed by the elements it
+   * refers to
+   * @param w The writer to write to
+   * @throws BitFormatException If an element cannot be written
+   */
+  protected void writeEditsTo(BitWriter w) throws BitFormatException
+  {
+    Iterator<SchemaElement> it = m_contents.iterator();
+    for (int i = 0; i < m_edits.length; i += 2)
+    {
+      w.writeBits(m_edits[i], EDIT_WIDTH);
+      if (m_edits[i] == EDIT_TRUNCATE)
+      {
+        return;
+      }
+      w.writeBits(m_edits[i + 1], MAX_LENGTH_BITS);
+      for (int j = 0; j < m_edits[i + 1] && m_edits[i] != EDIT_REMOVE; j++)
+      {
+        // Kept elements are deltas, appended elements are complete
+        it.next().writeTo(w, m_edits[i] == EDIT_KEEP);
+      }
+    }
+  }
+  
+  /**
+   * Reads the edit script of a delta, along with the elements it
+   * refers to
+   * @param r The reader to read from
+   * @return The number of bits read
+   * @throws ReadException If the script cannot be read
+   */
+  protected int readEditsFrom(BitReader r) throws ReadException
+  {
+    int start = r.position();
+    List<Integer> edits = new ArrayList<Integer>();
+    m_contents.clear();
+    while (true)
+    {
+      int op = r.readBits(EDIT_WIDTH);
+      edits.add(op);
+      if (op == EDIT_TRUNCATE)
+      {
+        edits.add(0);
+        break;
+      }
+      int count = r.readBits(MAX_LENGTH_BITS);
+      edits.add(count);
+      for (int j = 0; j < count && op != EDIT_REMOVE; j++)
+      {
+        SchemaElement new_el = m_elementType.copy();
+        if (op == EDIT_KEEP)
+        {
+          m_contents.add(new_el.readContentsFromBitSequence(r, true).m_element);
+        }
+        else
+        {
+          new_el.fromBitSequence(r, false);
+          m_contents.add(new_el);
+        }
+      }
+    }
+    m_edits = new int[edits.size()];
+    for (int i = 0; i < m_edits.length; i++)
+    {
+      m_edits[i] = edits.get(i);
+    }
+    return r.position() - start;
+  }
+  
+  /**
+   * Populates the contents of this list by applying an edit script to
+   * a reference list
+   * @param reference The reference list
+   * @param delta The delta containing the edit script
+   * @throws ReadException If the script does not apply to the reference
+   */
+  protected void applyEdits(ListElement reference, ListElement delta) throws ReadException
+  {
+    m_contents.clear();
+    Iterator<SchemaElement> ref_it = reference.m_contents.iterator();
+    Iterator<SchemaElement> del_it = delta.m_contents.iterator();
+    for (int i = 0; i < delta.m_edits.length; i += 2)
+    {
+      int op = delta.m_edits[i];
+      for (int j = 0; j < delta.m_edits[i + 1]; j++)
+      {
+        if (op != EDIT_APPEND && !ref_it.hasNext())
+        {
+          throw new ReadException("Edit script goes past the end of the reference list");
+        }
+        if (op == EDIT_KEEP)
+        {
+          SchemaElement ref_el = ref_it.next();
+          SchemaElement element_to_add = ref_el.copy();
+          element_to_add.readContentsFromDelta(ref_el, del_it.next());
+          m_contents.add(element_to_add);
+        }
+        else if (op == EDIT_REMOVE)
+        {
+          ref_it.next();
+        }
+        else
+        {
+          m_contents.add(del_it.next().copy());
+        }
+      }
+    }
+    // Elements are paired by position to predict their next values, as
+    // the sender does
+    SchemaElement.recordDelta(reference, this);
+  }
 }
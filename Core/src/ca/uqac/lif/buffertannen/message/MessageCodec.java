@@ -0,0 +1,1077 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Precompiled encoder/decoder for the messages of a given schema.
+ * Rather than walking the tree of a schema element and relying on each
+ * element to encode itself, the schema is flattened once into a small
+ * program: an array of opcodes and operands (ranges, number of bits,
+ * etc.), along with a pool of constants (map keys, enumeration values,
+ * list element types). Messages are then encoded and decoded by
+ * interpreting this program, writing to a {@link BitWriter} and reading
+ * from a {@link BitReader} directly. Decoded messages are built
+ * element by element; they share the keys, constants and list
+ * element types of the schema instead of copying them.
+ * <p>
+ * The binary format produced by the codec is the same as the one
+ * produced by {@link SchemaElement#toBitSequence(boolean)}.
+ * A codec is immutable once compiled, and can hence be shared.
+ * @author sylvain
+ *
+ */
+public class MessageCodec
+{
+  /**
+   * Opcode for an integer.
+   * Operands: range, delta range, signed (0 or 1), delta encoding
+   */
+  protected static final int OP_INTEGER = 0;
+
+  /**
+   * Opcode for an enumeration.
+   * Operands: index of the constants in the pool, number of bits
+   */
+  protected static final int OP_ENUM = 1;
+
+  /**
+   * Opcode for a Smallscii string. No operands.
+   */
+  protected static final int OP_SMALLSCII = 2;
+
+  /**
+   * Opcode for a fixed map.
+   * Operands: index of the keys in the pool (followed by the index of
+   * their positions), address past the end of the map's program. The
+   * program for each value follows.
+   */
+  protected static final int OP_MAP = 3;
+
+  /**
+   * Opcode for a list.
+   * Operands: index of the element type in the pool, address past the end
+   * of the list's program. The program for the list's elements follows.
+   */
+  protected static final int OP_LIST = 4;
+
+  /**
+   * The compiled program
+   */
+  protected final int[] m_program;
+
+  /**
+   * The pool of constants referred to by the program
+   */
+  protected final Object[] m_pool;
+
+  /**
+   * The schema this codec was compiled from
+   */
+  protected final SchemaElement m_schema;
+
+  /**
+   * Whether the schema has integers using delta-of-delta encoding. The
+   * elements of a map or a list that did not change then cannot simply
+   * be copied from the reference, since these integers are predicted
+   * to keep changing at the same pace.
+   */
+  protected final boolean m_predictive;
+
+  /**
+   * Creates a codec from a program
+   * @param schema The schema the program was compiled from
+   * @param program The program
+   * @param pool The pool of constants
+   */
+  protected MessageCodec(SchemaElement schema, int[] program, Object[] pool)
+  {
+    super();
+    m_schema = schema;
+    m_program = program;
+    m_pool = pool;
+    m_predictive = isPredictive(program);
+  }
+
+  /**
+   * Determines if a program has integers using delta-of-delta encoding
+   * @param program The program
+   * @return true if it has such integers
+   */
+  protected static boolean isPredictive(int[] program)
+  {
+    int pc = 0;
+    while (pc < program.length)
+    {
+      switch (program[pc])
+      {
+      case OP_INTEGER:
+        if (program[pc + 4] == IntegerElement.DELTA_DOD)
+        {
+          return true;
+        }
+        pc += 5;
+        break;
+      case OP_SMALLSCII:
+        pc += 1;
+        break;
+      default:
+        // Enumerations, maps and lists: the program of the values of a
+        // map or of the elements of a list follows
+        pc += 3;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Determines if the schema has integers using delta-of-delta
+   * encoding. These integers predict their next value from their last
+   * delta, which the sender must record in each message it sends with
+   * {@link Schema#toReference(SchemaElement, SchemaElement)}.
+   * @return true if it has such integers
+   */
+  public boolean isPredictive()
+  {
+    return m_predictive;
+  }
+
+  /**
+   * Compiles a schema into a codec
+   * @param schema The schema
+   * @return The codec
+   * @throws TypeMismatchException If the schema contains elements that
+   *   cannot be compiled
+   */
+  public static MessageCodec compile(SchemaElement schema) throws TypeMismatchException
+  {
+    List<Integer> program = new ArrayList<Integer>();
+    List<Object> pool = new ArrayList<Object>();
+    compile(schema, program, pool);
+    int[] code = new int[program.size()];
+    for (int i = 0; i < code.length; i++)
+    {
+      code[i] = program.get(i);
+    }
+    return new MessageCodec(schema, code, pool.toArray());
+  }
+
+  /**
+   * Appends the program for an element of the schema
+   * @param e The element
+   * @param program The program to append to
+   * @param pool The pool of constants
+   * @throws TypeMismatchException If the element cannot be compiled
+   */
+  protected static void compile(SchemaElement e, List<Integer> program, List<Object> pool) throws TypeMismatchException
+  {
+    if (e instanceof IntegerElement)
+    {
+      IntegerElement ie = (IntegerElement) e;
+      program.add(OP_INTEGER);
+      program.add(ie.m_range);
+      program.add(ie.m_deltaRange);
+      program.add(ie.m_signed ? 1 : 0);
+      program.add(ie.m_deltaEncoding);
+    }
+    else if (e instanceof EnumElement)
+    {
+      EnumElement ee = (EnumElement) e;
+      program.add(OP_ENUM);
+      program.add(pool.size());
+      pool.add(ee.m_constants);
+      program.add((int) Math.ceil((Math.log(ee.m_constants.size()) / EnumElement.LOG_2)));
+    }
+    else if (e instanceof SmallsciiElement)
+    {
+      program.add(OP_SMALLSCII);
+    }
+    else if (e instanceof FixedMapElement)
+    {
+      FixedMapElement fme = (FixedMapElement) e;
+      program.add(OP_MAP);
+      program.add(pool.size());
+      pool.add(fme.m_keys);
+      pool.add(fme.m_keyIndex);
+      int end_address = program.size();
+      program.add(0);
+      for (SchemaElement value : fme.m_values)
+      {
+        compile(value, program, pool);
+      }
+      program.set(end_address, program.size());
+    }
+    else if (e instanceof ListElement)
+    {
+      ListElement le = (ListElement) e;
+      if (le.m_elementType == null)
+      {
+        throw new TypeMismatchException("List has no element type");
+      }
+      program.add(OP_LIST);
+      program.add(pool.size());
+      pool.add(le.m_elementType);
+      int end_address = program.size();
+      program.add(0);
+      compile(le.m_elementType, program, pool);
+      program.set(end_address, program.size());
+    }
+    else
+    {
+      throw new TypeMismatchException("Cannot compile element " + e.getClass().getSimpleName());
+    }
+  }
+
+  /**
+   * Returns the schema this codec was compiled from
+   * @return The schema
+   */
+  public SchemaElement getSchema()
+  {
+    return m_schema;
+  }
+
+  /**
+   * Writes the contents of a message
+   * @param e The message
+   * @param w The writer to write to
+   * @throws BitFormatException If a value cannot be represented with
+   *   the number of bits allowed by the schema
+   * @throws TypeMismatchException If the message does not follow the
+   *   schema of this codec
+   */
+  public void encode(SchemaElement e, BitWriter w) throws BitFormatException, TypeMismatchException
+  {
+    try
+    {
+      encode(0, e, w);
+    }
+    catch (ClassCastException ex)
+    {
+      throw new TypeMismatchException("Message does not follow the schema");
+    }
+    catch (IndexOutOfBoundsException ex)
+    {
+      throw new TypeMismatchException("Message does not follow the schema");
+    }
+  }
+
+  /**
+   * Writes the contents of an element
+   * @param pc The address of the element's program
+   * @param e The element
+   * @param w The writer to write to
+   * @return The address past the end of the element's program
+   * @throws BitFormatException If a value cannot be written
+   */
+  protected int encode(int pc, SchemaElement e, BitWriter w) throws BitFormatException
+  {
+    switch (m_program[pc])
+    {
+    case OP_INTEGER:
+    {
+      int value = ((IntegerElement) e).m_value;
+      int range = m_program[pc + 1];
+      if (m_program[pc + 3] == 0)
+      {
+        w.writeBits(value, range);
+      }
+      else
+      {
+        // First bit indicates sign
+        w.writeBit(value < 0);
+        w.writeBits(Math.abs(value), range - 1);
+      }
+      return pc + 5;
+    }
+    case OP_ENUM:
+    {
+      w.writeBits(indexOf(getStrings(pc), ((EnumElement) e).m_value), m_program[pc + 2]);
+      return pc + 3;
+    }
+    case OP_SMALLSCII:
+    {
+      SmallsciiElement.writeString(w, ((SmallsciiElement) e).m_contents);
+      return pc + 1;
+    }
+    case OP_MAP:
+    {
+      List<SchemaElement> values = ((FixedMapElement) e).m_values;
+      int num_keys = getStrings(pc).size();
+      int next = pc + 3;
+      for (int i = 0; i < num_keys; i++)
+      {
+        next = encode(next, values.get(i), w);
+      }
+      return next;
+    }
+    case OP_LIST:
+    {
+      List<SchemaElement> contents = ((ListElement) e).m_contents;
+      w.writeBits(contents.size(), ListElement.MAX_LENGTH_BITS);
+      for (SchemaElement item : contents)
+      {
+        encode(pc + 3, item, w);
+      }
+      return m_program[pc + 2];
+    }
+    default:
+      // Not supposed to happen
+      assert false;
+      return m_program.length;
+    }
+  }
+
+  /**
+   * Writes the difference between a message and a reference message. The
+   * bits written are the same as those of
+   * {@link SchemaElement#createFromDelta(SchemaElement, SchemaElement)}
+   * written as a delta, but no intermediate delta element is created.
+   * @param reference The reference message
+   * @param e The message
+   * @param w The writer to write to
+   * @throws BitFormatException If a difference cannot be represented with
+   *   the number of bits allowed by the schema
+   * @throws TypeMismatchException If one of the messages does not follow
+   *   the schema of this codec
+   * @throws CannotComputeDeltaException If the two messages have lists of
+   *   different lengths
+   */
+  public void encodeDelta(SchemaElement reference, SchemaElement e, BitWriter w) throws BitFormatException, TypeMismatchException, CannotComputeDeltaException
+  {
+    try
+    {
+      encodeDelta(0, reference, e, w);
+    }
+    catch (ClassCastException ex)
+    {
+      throw new TypeMismatchException("Message does not follow the schema");
+    }
+    catch (IndexOutOfBoundsException ex)
+    {
+      throw new TypeMismatchException("Message does not follow the schema");
+    }
+  }
+
+  /**
+   * Writes the difference between an element and a reference element.
+   * Every element starts with a bit telling whether it changed.
+   * @param pc The address of the element's program
+   * @param reference The reference element
+   * @param e The element
+   * @param w The writer to write to
+   * @return The address past the end of the element's program
+   * @throws BitFormatException If a value cannot be written
+   * @throws CannotComputeDeltaException If the difference cannot be
+   *   expressed as a delta
+   */
+  protected int encodeDelta(int pc, SchemaElement reference, SchemaElement e, BitWriter w) throws BitFormatException, CannotComputeDeltaException
+  {
+    switch (m_program[pc])
+    {
+    case OP_INTEGER:
+    {
+      IntegerElement ref = (IntegerElement) reference;
+      int encoding = m_program[pc + 4];
+      int residual = IntegerElement.residual(encoding, m_program[pc + 3] != 0, ref.m_value, ref.m_lastDelta, ((IntegerElement) e).m_value);
+      if (residual == 0)
+      {
+        w.writeBit(false);
+      }
+      else
+      {
+        w.writeBit(true);
+        IntegerElement.writeResidual(w, encoding, m_program[pc + 2], residual);
+      }
+      return pc + 5;
+    }
+    case OP_ENUM:
+    {
+      String value = ((EnumElement) e).m_value;
+      if (value.compareTo(((EnumElement) reference).m_value) == 0)
+      {
+        w.writeBit(false);
+      }
+      else
+      {
+        w.writeBit(true);
+        w.writeBits(indexOf(getStrings(pc), value), m_program[pc + 2]);
+      }
+      return pc + 3;
+    }
+    case OP_SMALLSCII:
+    {
+      String value = ((SmallsciiElement) e).m_contents;
+      if (value.compareTo(((SmallsciiElement) reference).m_contents) == 0)
+      {
+        w.writeBit(false);
+      }
+      else
+      {
+        w.writeBit(true);
+        SmallsciiElement.writeString(w, value);
+      }
+      return pc + 1;
+    }
+    case OP_MAP:
+    {
+      List<SchemaElement> ref_values = ((FixedMapElement) reference).m_values;
+      List<SchemaElement> values = ((FixedMapElement) e).m_values;
+      int num_keys = getStrings(pc).size();
+      int start = w.size();
+      w.writeBit(true);
+      boolean contains_a_change = false;
+      int next = pc + 3;
+      for (int i = 0; i < num_keys; i++)
+      {
+        int value_start = w.size();
+        next = encodeDelta(next, ref_values.get(i), values.get(i), w);
+        // The first bit written for each value tells whether it changed
+        contains_a_change |= w.getSequence().get(value_start);
+      }
+      if (!contains_a_change)
+      {
+        w.rewind(start);
+        w.writeBit(false);
+      }
+      return next;
+    }
+    case OP_LIST:
+    {
+      List<SchemaElement> ref_contents = ((ListElement) reference).m_contents;
+      List<SchemaElement> contents = ((ListElement) e).m_contents;
+      int start = w.size();
+      // Candidates: element by element, then the same edit scripts as
+      // ListElement, in the same order
+      int[] removed = {0, 0, 0};
+      int[] appended = {0, 0, 0};
+      int best = -1, best_size = Integer.MAX_VALUE, last = -1;
+      if (ref_contents.size() == contents.size())
+      {
+        best = removed.length;
+        last = best;
+        try
+        {
+          if (!encodeElementWise(pc, ref_contents, contents, w))
+          {
+            w.rewind(start);
+            w.writeBit(false);
+            return m_program[pc + 2];
+          }
+          best_size = w.size() - start;
+        }
+        catch (BitFormatException ex)
+        {
+          // Try the edit scripts
+        }
+      }
+      if (!contents.isEmpty())
+      {
+        removed[1] = findUnchanged(pc + 3, ref_contents, contents.get(0), 1, w);
+      }
+      if (!ref_contents.isEmpty())
+      {
+        appended[2] = findUnchanged(pc + 3, contents, ref_contents.get(0), 1, w);
+      }
+      for (int i = 0; i < removed.length; i++)
+      {
+        if ((i == 0 && best >= 0) || removed[i] < 0 || appended[i] < 0)
+        {
+          continue;
+        }
+        w.rewind(start);
+        last = i;
+        int size = Integer.MAX_VALUE;
+        try
+        {
+          encodeEdits(pc, ref_contents, contents, removed[i], appended[i], w);
+          size = w.size() - start;
+        }
+        catch (BitFormatException ex)
+        {
+          // Not a candidate
+        }
+        if (best < 0 || size < best_size)
+        {
+          best = i;
+          best_size = size;
+        }
+      }
+      if (best_size == Integer.MAX_VALUE)
+      {
+        w.rewind(start);
+        throw new BitFormatException("Cannot write the delta of a list");
+      }
+      if (last != best)
+      {
+        w.rewind(start);
+        if (best == removed.length)
+        {
+          encodeElementWise(pc, ref_contents, contents, w);
+        }
+        else
+        {
+          encodeEdits(pc, ref_contents, contents, removed[best], appended[best], w);
+        }
+      }
+      return m_program[pc + 2];
+    }
+    default:
+      // Not supposed to happen
+      assert false;
+      return m_program.length;
+    }
+  }
+
+  /**
+   * Reads a message
+   * @param r The reader to read from
+   * @return The message
+   * @throws ReadException If the bits do not contain a valid message
+   *   for this schema
+   */
+  public SchemaElement decode(BitReader r) throws ReadException
+  {
+    List<SchemaElement> out = new ArrayList<SchemaElement>(1);
+    decode(0, r, out);
+    return out.get(0);
+  }
+
+  /**
+   * Reads an element and appends it to a list
+   * @param pc The address of the element's program
+   * @param r The reader to read from
+   * @param out The list to append the element to
+   * @return The address past the end of the element's program
+   * @throws ReadException If the element cannot be read
+   */
+  protected int decode(int pc, BitReader r, List<SchemaElement> out) throws ReadException
+  {
+    switch (m_program[pc])
+    {
+    case OP_INTEGER:
+    {
+      out.add(new IntegerElement(readInteger(r, m_program[pc + 1], m_program[pc + 3] != 0),
+          m_program[pc + 1], m_program[pc + 2], m_program[pc + 3] != 0, m_program[pc + 4]));
+      return pc + 5;
+    }
+    case OP_ENUM:
+    {
+      out.add(readEnum(pc, r));
+      return pc + 3;
+    }
+    case OP_SMALLSCII:
+    {
+      out.add(new SmallsciiElement(readString(r)));
+      return pc + 1;
+    }
+    case OP_MAP:
+    {
+      FixedMapElement map = newMap(pc);
+      int next = pc + 3;
+      for (int i = 0; i < map.m_keys.size(); i++)
+      {
+        next = decode(next, r, map.m_values);
+      }
+      out.add(map);
+      return next;
+    }
+    case OP_LIST:
+    {
+      ListElement list = new ListElement();
+      list.m_elementType = (SchemaElement) m_pool[m_program[pc + 1]];
+      int length = r.readBits(ListElement.MAX_LENGTH_BITS);
+      for (int i = 0; i < length; i++)
+      {
+        decode(pc + 3, r, list.m_contents);
+      }
+      out.add(list);
+      return m_program[pc + 2];
+    }
+    default:
+      // Not supposed to happen
+      assert false;
+      return m_program.length;
+    }
+  }
+
+  /**
+   * Writes the difference between two lists of the same length, element
+   * by element
+   * @param pc The address of the list's program
+   * @param ref_contents The elements of the reference list
+   * @param contents The elements of the list
+   * @param w The writer to write to
+   * @return true if an element changed
+   * @throws BitFormatException If an element cannot be written
+   * @throws CannotComputeDeltaException If an element cannot be
+   *   expressed as a delta
+   */
+  protected boolean encodeElementWise(int pc, List<SchemaElement> ref_contents, List<SchemaElement> contents, BitWriter w) throws BitFormatException, CannotComputeDeltaException
+  {
+    w.writeBit(true);
+    w.writeBit(false);
+    w.writeBits(contents.size(), ListElement.MAX_LENGTH_BITS);
+    boolean contains_a_change = false;
+    Iterator<SchemaElement> ref_it = ref_contents.iterator();
+    for (SchemaElement item : contents)
+    {
+      int item_start = w.size();
+      encodeDelta(pc + 3, ref_it.next(), item, w);
+      contains_a_change |= w.getSequence().get(item_start);
+    }
+    return contains_a_change;
+  }
+
+  /**
+   * Writes the difference between two lists as an edit script, in the
+   * same way as
+   * {@link ListElement#populateEdits(ListElement, ListElement, int, int)}
+   * @param pc The address of the list's program
+   * @param ref_contents The elements of the reference list
+   * @param contents The elements of the list
+   * @param removed The number of elements removed at the beginning
+   * @param appended The number of elements added at the beginning
+   * @param w The writer to write to
+   * @throws BitFormatException If an element cannot be written
+   * @throws CannotComputeDeltaException If an element cannot be
+   *   expressed as a delta
+   */
+  protected void encodeEdits(int pc, List<SchemaElement> ref_contents, List<SchemaElement> contents, int removed, int appended, BitWriter w) throws BitFormatException, CannotComputeDeltaException
+  {
+    w.writeBit(true);
+    w.writeBit(true);
+    int kept = Math.min(ref_contents.size() - removed, contents.size() - appended);
+    int tail = contents.size() - appended - kept;
+    if (removed > 0)
+    {
+      w.writeBits(ListElement.EDIT_REMOVE, ListElement.EDIT_WIDTH);
+      w.writeBits(removed, ListElement.MAX_LENGTH_BITS);
+    }
+    Iterator<SchemaElement> it = contents.iterator();
+    if (appended > 0)
+    {
+      w.writeBits(ListElement.EDIT_APPEND, ListElement.EDIT_WIDTH);
+      w.writeBits(appended, ListElement.MAX_LENGTH_BITS);
+      for (int i = 0; i < appended; i++)
+      {
+        encode(pc + 3, it.next(), w);
+      }
+    }
+    if (kept > 0)
+    {
+      w.writeBits(ListElement.EDIT_KEEP, ListElement.EDIT_WIDTH);
+      w.writeBits(kept, ListElement.MAX_LENGTH_BITS);
+      Iterator<SchemaElement> ref_it = ref_contents.listIterator(removed);
+      for (int i = 0; i < kept; i++)
+      {
+        encodeDelta(pc + 3, ref_it.next(), it.next(), w);
+      }
+    }
+    if (tail > 0)
+    {
+      w.writeBits(ListElement.EDIT_APPEND, ListElement.EDIT_WIDTH);
+      w.writeBits(tail, ListElement.MAX_LENGTH_BITS);
+      for (int i = 0; i < tail; i++)
+      {
+        encode(pc + 3, it.next(), w);
+      }
+    }
+    w.writeBits(ListElement.EDIT_TRUNCATE, ListElement.EDIT_WIDTH);
+  }
+
+  /**
+   * Finds the first element of a list that is unchanged with respect
+   * to a given element
+   * @param pc The address of the elements' program
+   * @param list The list
+   * @param reference The element
+   * @param from The index to start from
+   * @param w A writer, used to compute the deltas and left as it was
+   * @return The index of the element, or -1 if none is found
+   */
+  protected int findUnchanged(int pc, List<SchemaElement> list, SchemaElement reference, int from, BitWriter w)
+  {
+    int start = w.size();
+    int i = 0;
+    for (SchemaElement e : list)
+    {
+      if (i >= from)
+      {
+        boolean changed = true;
+        try
+        {
+          encodeDelta(pc, reference, e, w);
+          changed = w.getSequence().get(start);
+        }
+        catch (BitFormatException ex)
+        {
+          // Not a match
+        }
+        catch (CannotComputeDeltaException ex)
+        {
+          // Not a match
+        }
+        w.rewind(start);
+        if (!changed)
+        {
+          return i;
+        }
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  /**
+   * Reads a message expressed as a difference with respect to a
+   * reference message
+   * @param reference The reference message
+   * @param r The reader to read from
+   * @return The message
+   * @throws ReadException If the bits do not contain a valid delta
+   *   for this schema and this reference message
+   */
+  public SchemaElement decodeDelta(SchemaElement reference, BitReader r) throws ReadException
+  {
+    List<SchemaElement> out = new ArrayList<SchemaElement>(1);
+    try
+    {
+      decodeDelta(0, reference, r, out);
+    }
+    catch (ClassCastException ex)
+    {
+      throw new ReadException("Reference message does not follow the schema");
+    }
+    catch (IndexOutOfBoundsException ex)
+    {
+      throw new ReadException("Reference message does not follow the schema");
+    }
+    return out.get(0);
+  }
+
+  /**
+   * Reads an element expressed as a difference with respect to a
+   * reference element, and appends it to a list
+   * @param pc The address of the element's program
+   * @param reference The reference element
+   * @param r The reader to read from
+   * @param out The list to append the element to
+   * @return The address past the end of the element's program
+   * @throws ReadException If the element cannot be read
+   */
+  protected int decodeDelta(int pc, SchemaElement reference, BitReader r, List<SchemaElement> out) throws ReadException
+  {
+    return decodeDelta(pc, reference, r.readBit(), r, out);
+  }
+
+  /**
+   * Reads an element expressed as a difference with respect to a
+   * reference element, once the bit telling whether it changed has been
+   * read, and appends it to a list
+   * @param pc The address of the element's program
+   * @param reference The reference element
+   * @param changed Whether the element changed. If not, nothing is
+   *   read, and the element is the one predicted from the reference.
+   * @param r The reader to read from
+   * @param out The list to append the element to
+   * @return The address past the end of the element's program
+   * @throws ReadException If the element cannot be read
+   */
+  protected int decodeDelta(int pc, SchemaElement reference, boolean changed, BitReader r, List<SchemaElement> out) throws ReadException
+  {
+    switch (m_program[pc])
+    {
+    case OP_INTEGER:
+    {
+      IntegerElement ref = (IntegerElement) reference;
+      int encoding = m_program[pc + 4];
+      boolean signed = m_program[pc + 3] != 0;
+      int residual = 0;
+      if (changed)
+      {
+        residual = IntegerElement.readResidual(r, encoding, m_program[pc + 2]);
+      }
+      IntegerElement ie = new IntegerElement(IntegerElement.applyResidual(encoding, signed, ref.m_value, ref.m_lastDelta, residual),
+          m_program[pc + 1], m_program[pc + 2], signed, encoding);
+      ie.m_lastDelta = ie.m_value - ref.m_value;
+      out.add(ie);
+      return pc + 5;
+    }
+    case OP_ENUM:
+    {
+      if (changed)
+      {
+        out.add(readEnum(pc, r));
+      }
+      else
+      {
+        EnumElement ee = newEnum(pc);
+        ee.m_value = ((EnumElement) reference).m_value;
+        out.add(ee);
+      }
+      return pc + 3;
+    }
+    case OP_SMALLSCII:
+    {
+      if (changed)
+      {
+        out.add(new SmallsciiElement(readString(r)));
+      }
+      else
+      {
+        out.add(new SmallsciiElement(((SmallsciiElement) reference).m_contents));
+      }
+      return pc + 1;
+    }
+    case OP_MAP:
+    {
+      if (!changed && !m_predictive)
+      {
+        out.add(reference.copy());
+        return m_program[pc + 2];
+      }
+      List<SchemaElement> ref_values = ((FixedMapElement) reference).m_values;
+      FixedMapElement map = newMap(pc);
+      int next = pc + 3;
+      for (int i = 0; i < map.m_keys.size(); i++)
+      {
+        if (changed)
+        {
+          next = decodeDelta(next, ref_values.get(i), r, map.m_values);
+        }
+        else
+        {
+          // Integers using delta-of-delta encoding still change
+          next = decodeDelta(next, ref_values.get(i), false, r, map.m_values);
+        }
+      }
+      out.add(map);
+      return next;
+    }
+    case OP_LIST:
+    {
+      if (!changed && !m_predictive)
+      {
+        out.add(reference.copy());
+        return m_program[pc + 2];
+      }
+      List<SchemaElement> ref_contents = ((ListElement) reference).m_contents;
+      if (changed && r.readBit())
+      {
+        out.add(decodeEdits(pc, (ListElement) reference, r));
+        return m_program[pc + 2];
+      }
+      if (changed)
+      {
+        int length = r.readBits(ListElement.MAX_LENGTH_BITS);
+        if (length != ref_contents.size())
+        {
+          throw new ReadException("Length of list does not match reference");
+        }
+      }
+      ListElement list = new ListElement();
+      list.m_elementType = (SchemaElement) m_pool[m_program[pc + 1]];
+      for (SchemaElement ref_item : ref_contents)
+      {
+        if (changed)
+        {
+          decodeDelta(pc + 3, ref_item, r, list.m_contents);
+        }
+        else
+        {
+          decodeDelta(pc + 3, ref_item, false, r, list.m_contents);
+        }
+      }
+      out.add(list);
+      return m_program[pc + 2];
+    }
+    default:
+      // Not supposed to happen
+      assert false;
+      return m_program.length;
+    }
+  }
+
+  /**
+   * Reads a list expressed as an edit script applied to a reference list
+   * @param pc The address of the list's program
+   * @param reference The reference list
+   * @param r The reader to read from
+   * @return The list
+   * @throws ReadException If the script cannot be read, or does not
+   *   apply to the reference
+   */
+  protected ListElement decodeEdits(int pc, ListElement reference, BitReader r) throws ReadException
+  {
+    ListElement list = new ListElement();
+    list.m_elementType = (SchemaElement) m_pool[m_program[pc + 1]];
+    Iterator<SchemaElement> ref_it = reference.m_contents.iterator();
+    int op = r.readBits(ListElement.EDIT_WIDTH);
+    while (op != ListElement.EDIT_TRUNCATE)
+    {
+      int count = r.readBits(ListElement.MAX_LENGTH_BITS);
+      for (int i = 0; i < count; i++)
+      {
+        if (op == ListElement.EDIT_APPEND)
+        {
+          decode(pc + 3, r, list.m_contents);
+          continue;
+        }
+        if (!ref_it.hasNext())
+        {
+          throw new ReadException("Edit script goes past the end of the reference list");
+        }
+        SchemaElement ref_item = ref_it.next();
+        if (op == ListElement.EDIT_KEEP)
+        {
+          decodeDelta(pc + 3, ref_item, r, list.m_contents);
+        }
+      }
+      op = r.readBits(ListElement.EDIT_WIDTH);
+    }
+    if (m_predictive)
+    {
+      // Elements are paired by position to predict their next values,
+      // as the sender does
+      SchemaElement.recordDelta(reference, list);
+    }
+    return list;
+  }
+
+  /**
+   * Reads an integer, possibly signed
+   * @param r The reader to read from
+   * @param range The number of bits of the integer, including the sign
+   * @param signed Whether the integer is signed
+   * @return The integer
+   * @throws ReadException If the integer cannot be read
+   */
+  protected static int readInteger(BitReader r, int range, boolean signed) throws ReadException
+  {
+    if (!signed)
+    {
+      return r.readBits(range);
+    }
+    boolean negative = r.readBit();
+    int value = r.readBits(range - 1);
+    return negative ? -value : value;
+  }
+
+  /**
+   * Reads a null-terminated Smallscii string
+   * @param r The reader to read from
+   * @return The string
+   * @throws ReadException If the string cannot be read
+   */
+  protected static String readString(BitReader r) throws ReadException
+  {
+    StringBuilder sb = new StringBuilder();
+    while (r.remaining() >= 6)
+    {
+      int code = r.readBits(6);
+      if (code == 0)
+      {
+        break;
+      }
+      sb.append(SmallsciiElement.getSymbol(code));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reads the value of an enumeration
+   * @param pc The address of the enumeration's program
+   * @param r The reader to read from
+   * @return The enumeration
+   * @throws ReadException If the value cannot be read
+   */
+  protected EnumElement readEnum(int pc, BitReader r) throws ReadException
+  {
+    int index = r.readBits(m_program[pc + 2]);
+    EnumElement ee = newEnum(pc);
+    if (index >= ee.m_constants.size())
+    {
+      throw new ReadException("Invalid value for enumeration");
+    }
+    ee.m_value = ee.m_constants.get(index);
+    return ee;
+  }
+
+  /**
+   * Creates an empty enumeration with the constants of the schema
+   * @param pc The address of the enumeration's program
+   * @return The enumeration
+   */
+  protected EnumElement newEnum(int pc)
+  {
+    EnumElement ee = new EnumElement();
+    ee.m_constants = getStrings(pc);
+    return ee;
+  }
+
+  /**
+   * Creates a map with the keys of the schema and no values
+   * @param pc The address of the map's program
+   * @return The map
+   */
+  @SuppressWarnings("unchecked")
+  protected FixedMapElement newMap(int pc)
+  {
+    FixedMapElement map = new FixedMapElement();
+    map.m_keys = getStrings(pc);
+    // The index of the keys follows them in the pool
+    map.m_keyIndex = (Map<String,Integer>) m_pool[m_program[pc + 1] + 1];
+    return map;
+  }
+
+  /**
+   * Finds the position of a value in the constants of an enumeration
+   * @param constants The constants
+   * @param value The value
+   * @return The position of the value
+   * @throws BitFormatException If the value is not one of the constants
+   */
+  protected static int indexOf(Vector<String> constants, String value) throws BitFormatException
+  {
+    int index = constants.indexOf(value);
+    if (index < 0)
+    {
+      throw new BitFormatException("Value not in enumeration");
+    }
+    return index;
+  }
+
+  /**
+   * Gets the map keys or enumeration constants referred to by an
+   * instruction. These vectors are shared with the schema and with
+   * every element decoded by this codec.
+   * @param pc The address of the instruction
+   * @return The keys or constants
+   */
+  @SuppressWarnings("unchecked")
+  protected Vector<String> getStrings(int pc)
+  {
+    return (Vector<String>) m_pool[m_program[pc + 1]];
+  }
+}
@@ -0,0 +1,242 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a sequence of messages in text form from a character stream.
+ * Messages are written as for
+ * {@link SchemaElement#readContentsFromString(String)}, and are separated
+ * by whitespace (typically one message per line). The stream is read
+ * incrementally: the reader only ever holds the characters of the
+ * message being read, so that arbitrarily long streams can be processed
+ * in constant memory.
+ * @author sylvain
+ *
+ */
+public class MessageReader implements Closeable
+{
+  /**
+   * The initial size of the character buffer
+   */
+  protected static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The stream to read from
+   */
+  protected Reader m_in;
+
+  /**
+   * The characters read from the stream and not yet consumed. The buffer
+   * only grows when a single message is larger than it.
+   */
+  protected char[] m_chars;
+
+  /**
+   * The position of the first character of the message being read
+   */
+  protected int m_start;
+
+  /**
+   * The position of the next character to scan
+   */
+  protected int m_position;
+
+  /**
+   * The number of valid characters in the buffer
+   */
+  protected int m_length;
+
+  /**
+   * The number of messages read so far
+   */
+  protected int m_messagesRead;
+
+  /**
+   * Creates a message reader over a character stream
+   * @param in The stream to read from
+   */
+  public MessageReader(Reader in)
+  {
+    super();
+    m_in = in;
+    m_chars = new char[BUFFER_SIZE];
+  }
+
+  /**
+   * Creates a message reader over a byte stream. The bytes are decoded
+   * as UTF-8.
+   * @param in The stream to read from
+   */
+  public MessageReader(InputStream in)
+  {
+    this(new InputStreamReader(in, Charset.forName("UTF-8")));
+  }
+
+  /**
+   * Returns the number of messages read so far
+   * @return The number of messages
+   */
+  public int getMessagesRead()
+  {
+    return m_messagesRead;
+  }
+
+  /**
+   * Populates an element with the contents of the next message in the
+   * stream
+   * @param e The element to populate. It must be an empty instance of
+   *   the schema the messages follow.
+   * @return true if a message was read, false if the end of the stream
+   *   was reached
+   * @throws IOException If reading from the stream fails
+   * @throws ReadException If the next message does not conform to the
+   *   syntax or to the schema of the element
+   */
+  public boolean readNext(SchemaElement e) throws IOException, ReadException
+  {
+    // Skip the whitespace separating messages
+    for (;;)
+    {
+      while (m_position < m_length && m_chars[m_position] <= ' ')
+      {
+        m_position++;
+      }
+      if (m_position < m_length)
+      {
+        break;
+      }
+      m_start = m_position;
+      if (!fill())
+      {
+        return false;
+      }
+    }
+    // Find the end of the message, by balancing its brackets outside of
+    // quoted strings
+    m_start = m_position;
+    int depth = 0;
+    boolean quoted = false;
+    for (;;)
+    {
+      if (m_position >= m_length && !fill())
+      {
+        if (depth > 0 || quoted)
+        {
+          throw new ReadException("Unexpected end of stream while reading message");
+        }
+        // A scalar value ends the stream
+        break;
+      }
+      char c = m_chars[m_position];
+      if (quoted)
+      {
+        m_position++;
+        if (c == '"')
+        {
+          quoted = false;
+          if (depth == 0)
+          {
+            break;
+          }
+        }
+        continue;
+      }
+      if (depth == 0 && (c <= ' ' || c == ',') && m_position > m_start)
+      {
+        // End of a scalar value
+        break;
+      }
+      m_position++;
+      if (c == '"')
+      {
+        quoted = true;
+      }
+      else if (c == '{' || c == '[' || c == '(')
+      {
+        depth++;
+      }
+      else if (c == '}' || c == ']' || c == ')')
+      {
+        depth--;
+        if (depth < 0)
+        {
+          throw new ReadException("Unbalanced closing symbol while reading message");
+        }
+        if (depth == 0)
+        {
+          break;
+        }
+      }
+    }
+    // Parse the message in place
+    TextCursor cursor = new TextCursor(m_chars, m_start, m_position - m_start);
+    e.readContentsFromString(cursor);
+    cursor.skipWhitespace();
+    if (!cursor.atEnd())
+    {
+      throw new ReadException("Unexpected characters after message");
+    }
+    m_start = m_position;
+    m_messagesRead++;
+    return true;
+  }
+
+  /**
+   * Reads more characters from the stream. The characters of the message
+   * being read are first moved to the beginning of the buffer; the buffer
+   * is enlarged only if they fill it entirely.
+   * @return false if the end of the stream was reached, true otherwise
+   * @throws IOException If reading from the stream fails
+   */
+  protected boolean fill() throws IOException
+  {
+    if (m_start > 0)
+    {
+      System.arraycopy(m_chars, m_start, m_chars, 0, m_length - m_start);
+      m_length -= m_start;
+      m_position -= m_start;
+      m_start = 0;
+    }
+    if (m_length == m_chars.length)
+    {
+      char[] chars = new char[2 * m_chars.length];
+      System.arraycopy(m_chars, 0, chars, 0, m_length);
+      m_chars = chars;
+    }
+    int read = m_in.read(m_chars, m_length, m_chars.length - m_length);
+    if (read < 0)
+    {
+      return false;
+    }
+    m_length += read;
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    m_in.close();
+  }
+}
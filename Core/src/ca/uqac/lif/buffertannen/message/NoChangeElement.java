@@ -17,8 +17,6 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
-import ca.uqac.lif.util.MutableString;
-
 /**
  * Placeholder element used in delta-messages to indicate that some reference
  * element has not changed
@@ -29,19 +27,25 @@ public class NoChangeElement extends SchemaElement
 {
 
   @Override
-  public BitSequence toBitSequence(boolean as_delta)
+  public BitSequence toBitSequence(boolean as_delta) throws BitFormatException
   {
     if (!as_delta)
     {
       // This is dubious; under normal use it should never be called
       return null;
     }
+    return super.toBitSequence(as_delta);
+  }
+  
+  @Override
+  public void writeTo(BitWriter w, boolean as_delta)
+  {
     // Send a single 0 bit, indicating no change
-    return new BitSequence("0");
+    w.writeBit(false);
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  public int fromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     // Don't need to read anything
     return 0;
@@ -86,28 +90,28 @@ public class NoChangeElement extends SchemaElement
   }
 
   @Override
-  public BitSequence schemaToBitSequence()
+  public void writeSchemaTo(BitWriter w)
   {
     // This too is dubious; under normal use it should never be called
-    return new BitSequence("0");
+    w.writeBit(false);
   }
 
   @Override
-  protected void readSchemaFromString(MutableString s) throws ReadException
+  protected void readSchemaFromString(TextCursor s) throws ReadException
   {
     // TODO Auto-generated method stub
 
   }
 
   @Override
-  protected void readContentsFromString(MutableString s) throws ReadException
+  protected void readContentsFromString(TextCursor s) throws ReadException
   {
     // TODO Auto-generated method stub
 
   }
 
   @Override
-  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  protected int readSchemaFromBitSequence(BitReader r) throws ReadException
   {
     // Nothing to read
     return 0;
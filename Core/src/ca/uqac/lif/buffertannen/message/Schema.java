@@ -0,0 +1,267 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+/**
+ * An immutable message schema. A schema is created once from a
+ * template element (for example parsed from a string); it can then be
+ * shared by the sender and the receiver, and by all the messages that
+ * follow it. Messages created by {@link #newInstance()} or decoded by
+ * the schema only allocate their own values: the map keys, enumeration
+ * constants and list element types are shared with the schema.
+ * @author sylvain
+ *
+ */
+public class Schema
+{
+  /**
+   * The element describing the schema. It is a private copy of the
+   * element passed to the constructor, and is never modified.
+   */
+  protected final SchemaElement m_template;
+
+  /**
+   * The codec compiled from the schema, or null if the schema contains
+   * elements that cannot be compiled
+   */
+  protected final MessageCodec m_codec;
+
+  /**
+   * The binary encoding of the schema. Since the schema never changes,
+   * it is computed only once.
+   */
+  protected final BitSequence m_bits;
+
+  /**
+   * Creates a schema
+   * @param template An element describing the schema. The schema keeps
+   *   its own copy of this element, so that later changes made to it
+   *   have no effect on the schema.
+   */
+  public Schema(SchemaElement template)
+  {
+    super();
+    m_template = template.copy();
+    MessageCodec codec = null;
+    try
+    {
+      codec = MessageCodec.compile(m_template);
+    }
+    catch (TypeMismatchException e)
+    {
+      // Messages will be encoded by walking their tree
+    }
+    m_codec = codec;
+    m_bits = m_template.schemaToBitSequence();
+  }
+
+  /**
+   * Parses a schema from a character string
+   * @param s The string
+   * @return The schema
+   * @throws ReadException If the string does not contain a valid schema
+   */
+  public static Schema parse(String s) throws ReadException
+  {
+    return new Schema(SchemaElement.parseSchemaFromString(s));
+  }
+
+  /**
+   * Creates a new message following this schema, with default values
+   * @return The message
+   */
+  public SchemaElement newInstance()
+  {
+    return m_template.copy();
+  }
+
+  /**
+   * Gets the element describing this schema. This element must not be
+   * modified.
+   * @return The element
+   */
+  public SchemaElement getTemplate()
+  {
+    return m_template;
+  }
+
+  /**
+   * Compiles a path expression against this schema, for accessing
+   * the same element in many messages
+   * @param path The path expression
+   * @return The compiled path
+   * @throws ReadException If the path is malformed, or does not exist
+   *   in this schema
+   */
+  public CompiledPath compilePath(String path) throws ReadException
+  {
+    return m_template.compilePath(path);
+  }
+
+  /**
+   * Gets the codec compiled from this schema
+   * @return The codec, or null if the schema could not be compiled
+   */
+  public MessageCodec getCodec()
+  {
+    return m_codec;
+  }
+
+  /**
+   * Writes the contents of a message following this schema
+   * @param e The message
+   * @param w The writer to write to
+   * @throws BitFormatException If the message cannot be written
+   */
+  public void encode(SchemaElement e, BitWriter w) throws BitFormatException
+  {
+    if (m_codec != null)
+    {
+      int start = w.size();
+      try
+      {
+        m_codec.encode(e, w);
+        return;
+      }
+      catch (TypeMismatchException ex)
+      {
+        // The message does not follow the schema; let it encode
+        // itself (below)
+        w.rewind(start);
+      }
+    }
+    e.writeTo(w);
+  }
+
+  /**
+   * Writes a message as a difference with respect to a reference message
+   * following this schema
+   * @param reference The reference message
+   * @param e The message
+   * @param w The writer to write to
+   * @throws BitFormatException If a difference cannot be written
+   * @throws TypeMismatchException If the messages do not have the same
+   *   structure
+   * @throws CannotComputeDeltaException If the difference cannot be
+   *   expressed as a delta
+   */
+  public void encodeDelta(SchemaElement reference, SchemaElement e, BitWriter w) throws BitFormatException, TypeMismatchException, CannotComputeDeltaException
+  {
+    if (m_codec != null)
+    {
+      m_codec.encodeDelta(reference, e, w);
+      return;
+    }
+    SchemaElement delta = SchemaElement.createFromDelta(reference, e);
+    delta.writeTo(w, true);
+  }
+
+  /**
+   * Reads a message following this schema
+   * @param r The reader to read from
+   * @return The message
+   * @throws ReadException If the message cannot be read
+   */
+  public SchemaElement decode(BitReader r) throws ReadException
+  {
+    if (m_codec != null)
+    {
+      return m_codec.decode(r);
+    }
+    SchemaElement se = newInstance();
+    se.fromBitSequence(r);
+    return se;
+  }
+
+  /**
+   * Reads a message expressed as a difference with respect to a
+   * reference message following this schema
+   * @param reference The reference message
+   * @param r The reader to read from
+   * @return The message
+   * @throws ReadException If the message cannot be read
+   */
+  public SchemaElement decodeDelta(SchemaElement reference, BitReader r) throws ReadException
+  {
+    if (m_codec != null)
+    {
+      return m_codec.decodeDelta(reference, r);
+    }
+    SchemaElement.ElementInt ei = newInstance().readContentsFromBitSequence(r, true);
+    SchemaElement se = newInstance();
+    se.readContentsFromDelta(reference, ei.m_element);
+    return se;
+  }
+
+  /**
+   * Gets the message that a sender keeps as a reference for the messages
+   * that follow. If the schema has integers using delta-of-delta
+   * encoding, this is a copy of the message that records its difference
+   * with the message it is expressed as a delta of; otherwise, there is
+   * nothing to record, and the message itself is returned. In both
+   * cases, the message is left untouched.
+   * @param reference The reference message, or null if the message is
+   *   sent in full
+   * @param e The message
+   * @return The message to keep as a reference
+   * @see SchemaElement#toReference(SchemaElement)
+   */
+  public SchemaElement toReference(SchemaElement reference, SchemaElement e)
+  {
+    if (m_codec == null || m_codec.isPredictive())
+    {
+      return e.toReference(reference);
+    }
+    return e;
+  }
+
+  /**
+   * Writes the definition of this schema
+   * @param w The writer to write to
+   * @throws BitFormatException If the schema cannot be written
+   */
+  public void writeTo(BitWriter w) throws BitFormatException
+  {
+    w.write(m_bits);
+  }
+
+  /**
+   * Returns the binary encoding of this schema. The same sequence is
+   * returned on every call; it must not be modified.
+   * @return The sequence of bits
+   */
+  public BitSequence toBitSequence()
+  {
+    return m_bits;
+  }
+
+  /**
+   * Returns the size of the binary encoding of this schema
+   * @return The size, in bits
+   */
+  public int getSize()
+  {
+    return m_bits.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_template.schemaToString();
+  }
+}
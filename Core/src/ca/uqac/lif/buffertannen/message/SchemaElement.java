@@ -17,7 +17,8 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
-import ca.uqac.lif.util.MutableString;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Main class representing all possible elements of a structured
@@ -61,7 +62,30 @@ public abstract class SchemaElement
    * @return The sequence of bits corresponding to the element's content
    * @throws BitFormatException If the bit sequence cannot be created
    */
-  public abstract BitSequence toBitSequence(boolean as_delta) throws BitFormatException;
+  public BitSequence toBitSequence(boolean as_delta) throws BitFormatException
+  {
+    BitSequence out = new BitSequence();
+    writeTo(new BitWriter(out), as_delta);
+    return out;
+  }
+  
+  /**
+   * Writes the element's content at the end of a bit writer
+   * @param w The writer to write to
+   * @throws BitFormatException If the content cannot be written
+   */
+  public final void writeTo(BitWriter w) throws BitFormatException
+  {
+    writeTo(w, false);
+  }
+  
+  /**
+   * Writes the element's content at the end of a bit writer
+   * @param w The writer to write to
+   * @param as_delta Write the content for a delta segment
+   * @throws BitFormatException If the content cannot be written
+   */
+  public abstract void writeTo(BitWriter w, boolean as_delta) throws BitFormatException;
   
   /**
    * Populates an element's contents from a sequence of bits 
@@ -76,14 +100,42 @@ public abstract class SchemaElement
   }
   
   /**
-   * Populates an element's contents from a sequence of bits 
+   * Populates an element's contents from a sequence of bits. The bits
+   * that are read are removed from the sequence.
    * @param bs The bit sequence to read from
    * @param as_delta Whether to interpret the bit sequence as a delta segment
    * @return The number of bits read from the sequence
    * @throws ReadException If the contents of the element cannot be read
    *   from the bit sequence
    */
-  public abstract int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException;
+  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  {
+    int bits_read = fromBitSequence(new BitReader(bs), as_delta);
+    bs.truncatePrefix(bits_read);
+    return bits_read;
+  }
+  
+  /**
+   * Populates an element's contents from a bit reader 
+   * @param r The reader to read from
+   * @return The number of bits read
+   * @throws ReadException If the contents of the element cannot be read
+   *   from the reader
+   */
+  public int fromBitSequence(BitReader r) throws ReadException
+  {
+    return fromBitSequence(r, false);
+  }
+  
+  /**
+   * Populates an element's contents from a bit reader 
+   * @param r The reader to read from
+   * @param as_delta Whether to interpret the bits as a delta segment
+   * @return The number of bits read
+   * @throws ReadException If the contents of the element cannot be read
+   *   from the reader
+   */
+  public abstract int fromBitSequence(BitReader r, boolean as_delta) throws ReadException;
   
   /**
    * Creates an exact copy (deep clone) of the element
@@ -101,6 +153,21 @@ public abstract class SchemaElement
    */
   public abstract SchemaElement get(String path);
   
+  /**
+   * Compiles a path expression against this element, so that the
+   * element at the end of the path can be accessed repeatedly, in this
+   * element and in any other element of the same schema, without
+   * parsing the path each time
+   * @param path The path expression
+   * @return The compiled path
+   * @throws ReadException If the path is malformed, or does not exist
+   *   in this element
+   */
+  public CompiledPath compilePath(String path) throws ReadException
+  {
+    return new CompiledPath(this, path);
+  }
+  
   @Override
   public String toString()
   {
@@ -125,27 +192,59 @@ public abstract class SchemaElement
    * bits
    * @return The sequence of bits encoding the message schema
    */
-  public abstract BitSequence schemaToBitSequence();
+  public BitSequence schemaToBitSequence()
+  {
+    BitSequence out = new BitSequence();
+    try
+    {
+      writeSchemaTo(new BitWriter(out));
+    }
+    catch (BitFormatException e)
+    {
+      // Not supposed to happen
+      assert false;
+    }
+    return out;
+  }
+  
+  /**
+   * Writes the schema corresponding to the message at the end of a
+   * bit writer
+   * @param w The writer to write to
+   * @throws BitFormatException If the schema cannot be written
+   */
+  public abstract void writeSchemaTo(BitWriter w) throws BitFormatException;
   
   /**
-   * 
-   * @param bs
-   * @return
-   * @throws ReadException
+   * Instantiates an element from the binary encoding of its schema.
+   * The bits that are read are removed from the sequence.
+   * @param bs The bit sequence to read from
+   * @return The element, along with the number of bits read
+   * @throws ReadException If the schema cannot be read
    */
   public static ElementInt bitSequenceToSchema(BitSequence bs) throws ReadException
+  {
+    ElementInt ei = bitSequenceToSchema(new BitReader(bs));
+    bs.truncatePrefix(ei.m_int);
+    return ei;
+  }
+  
+  /**
+   * Instantiates an element from the binary encoding of its schema
+   * @param r The reader to read from
+   * @return The element, along with the number of bits read
+   * @throws ReadException If the schema cannot be read
+   */
+  public static ElementInt bitSequenceToSchema(BitReader r) throws ReadException
   {
     ElementInt ei = new ElementInt();
-    int bits_read = 0;
+    int start = r.position();
     SchemaElement el = null;
-    BitSequence data;
-    if (bs.size() < SCHEMA_WIDTH)
+    if (r.remaining() < SCHEMA_WIDTH)
     {
       throw new ReadException("Cannot read element type");
     }
-    data = bs.truncatePrefix(SCHEMA_WIDTH);
-    bits_read += SCHEMA_WIDTH;
-    int element_type = data.intValue();
+    int element_type = r.readBits(SCHEMA_WIDTH);
     switch (element_type) {
     case SCHEMA_ENUM:
       el = new EnumElement();
@@ -165,9 +264,9 @@ public abstract class SchemaElement
     default:
       throw new ReadException("Unknown element type");
     }
-    bits_read += el.readSchemaFromBitSequence(bs);
+    el.readSchemaFromBitSequence(r);
     ei.m_element = el;
-    ei.m_int = bits_read;
+    ei.m_int = r.position() - start;
     return ei;
   }
   
@@ -180,24 +279,24 @@ public abstract class SchemaElement
    */
   public static SchemaElement parseSchemaFromString(String s) throws ReadException
   {
-    MutableString ms = new MutableString(s);
-    return parseSchemaFromString(ms);
+    if (s == null)
+    {
+      return null;
+    }
+    return parseSchemaFromString(new TextCursor(s));
   }
   
   /**
-   * Parses the definition of a schema from a character string 
-   * @param s The string to read from
-   * @return The schema instance produced from the string
-   * @throws ReadException If the string does not conform to the
+   * Parses the definition of a schema from a text cursor. The characters
+   * of the definition are consumed from the cursor.
+   * @param s The cursor to read from
+   * @return The schema instance produced from the text
+   * @throws ReadException If the text does not conform to the
    *   expected syntax
    */
-  protected static SchemaElement parseSchemaFromString(MutableString s) throws ReadException
+  protected static SchemaElement parseSchemaFromString(TextCursor s) throws ReadException
   {
-    if (s == null)
-    {
-      return null;
-    }
-    s.trim();
+    s.skipWhitespace();
     SchemaElement out = null;
     if (s.startsWith("FixedMap"))
     {
@@ -228,43 +327,83 @@ public abstract class SchemaElement
   }
   
   /**
-   * Same as {@link readSchemaFromString(String)}, but for an input of type
-   * {@link MutableString} 
+   * Reads the definition of this element from a text cursor, starting
+   * with the keyword that names the element's type. The characters of
+   * the definition are consumed from the cursor.
+   * @param s The cursor to read from
+   * @throws ReadException If the text does not conform to the
+   *   expected syntax
+   */
+  protected abstract void readSchemaFromString(TextCursor s) throws ReadException;
+  
+  /**
+   * Populates an element's contents from a character string
    * @param s The string to read from
-   * @return The schema instance produced from the string
    * @throws ReadException If the string does not conform to the
    *   expected syntax
    */
-  protected abstract void readSchemaFromString(MutableString s) throws ReadException;
-  
   public void readContentsFromString(String s) throws ReadException
   {
-    MutableString ms = new MutableString(s);
-    readContentsFromString(ms);
+    TextCursor cursor = new TextCursor(s);
+    cursor.skipWhitespace();
+    readContentsFromString(cursor);
   }
   
+  /**
+   * Populates an element's contents from a sequence of bits. When read as a
+   * delta, the element may turn out to be a {@link NoChangeElement}, which
+   * is why the element actually read is returned. The bits that are read
+   * are removed from the sequence.
+   * @param bs The bit sequence to read from
+   * @param as_delta Whether to interpret the bit sequence as a delta segment
+   * @return The element read, along with the number of bits read
+   * @throws ReadException If the contents cannot be read
+   */
   public ElementInt readContentsFromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  {
+    ElementInt ei = readContentsFromBitSequence(new BitReader(bs), as_delta);
+    bs.truncatePrefix(ei.m_int);
+    return ei;
+  }
+  
+  /**
+   * Same as {@link #readContentsFromBitSequence(BitSequence, boolean)},
+   * but reading from a bit reader
+   * @param r The reader to read from
+   * @param as_delta Whether to interpret the bits as a delta segment
+   * @return The element read, along with the number of bits read
+   * @throws ReadException If the contents cannot be read
+   */
+  public ElementInt readContentsFromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     ElementInt ei = new ElementInt();
     if (as_delta)
     {
       // First, read one bit to know whether the bit sequence
       // advertises a NoChangeElement
-      BitSequence seq_first_bit = bs.truncatePrefix(1);
+      boolean changed = r.readBit();
       ei.m_int++;
-      if (seq_first_bit.intValue() == 0)
+      if (!changed)
       {
         ei.m_element = new NoChangeElement();
         return ei;
       }
     }
     // Parse contents of bit sequence normally
-    ei.m_int += fromBitSequence(bs, as_delta);
+    ei.m_int += fromBitSequence(r, as_delta);
     ei.m_element = this;
     return ei;
   }
   
-  protected abstract void readContentsFromString(MutableString s) throws ReadException;
+  /**
+   * Populates an element's contents from a text cursor. The characters
+   * of the value are consumed from the cursor, which is expected to be
+   * positioned on the first of them.
+   * @param s The cursor to read from
+   * @throws ReadException If the text does not conform to the
+   *   expected syntax
+   */
+  protected abstract void readContentsFromString(TextCursor s) throws ReadException;
   
   /**
    * Instantiates an element with the proper schema, read from a bit
@@ -275,7 +414,21 @@ public abstract class SchemaElement
    *  effectively <em>removed</em> from the bit sequence passed as input.
    * @throws ReadException
    */
-  protected abstract int readSchemaFromBitSequence(BitSequence bs) throws ReadException;
+  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  {
+    int bits_read = readSchemaFromBitSequence(new BitReader(bs));
+    bs.truncatePrefix(bits_read);
+    return bits_read;
+  }
+  
+  /**
+   * Instantiates an element with the proper schema, read from a bit reader
+   * @param r The reader to read from
+   * @return The number of bits read while reading the schema for
+   *   this element
+   * @throws ReadException
+   */
+  protected abstract int readSchemaFromBitSequence(BitReader r) throws ReadException;
 
   /**
    * Populates the content of an element by computing its difference ("delta")
@@ -323,6 +476,81 @@ public abstract class SchemaElement
     return out;
   }
   
+  /**
+   * Creates the copy of this message that a sender keeps as a reference
+   * for the messages that follow. The integers of the copy record their
+   * difference with the message this one is expressed as a delta of;
+   * this message is left untouched.
+   * @param reference The reference message, or null if the message is
+   *   sent in full
+   * @return The copy
+   */
+  public SchemaElement toReference(SchemaElement reference)
+  {
+    SchemaElement out = copy();
+    recordDelta(reference, out);
+    return out;
+  }
+  
+  /**
+   * Records in the integers of a message their difference with the
+   * message it is expressed as a delta of. Integers using
+   * delta-of-delta encoding predict their next value from this
+   * difference, which the receiver records when it decodes the
+   * message; the sender must hence do the same for every message it
+   * sends.
+   * @param reference The reference message, or null if the message is
+   *   sent in full
+   * @param e The message
+   */
+  /*package*/ static void recordDelta(SchemaElement reference, SchemaElement e)
+  {
+    if (e instanceof IntegerElement)
+    {
+      IntegerElement ie = (IntegerElement) e;
+      ie.m_lastDelta = 0;
+      if (reference instanceof IntegerElement)
+      {
+        ie.m_lastDelta = ie.m_value - ((IntegerElement) reference).m_value;
+      }
+    }
+    else if (e instanceof FixedMapElement)
+    {
+      List<SchemaElement> values = ((FixedMapElement) e).m_values;
+      List<SchemaElement> ref_values = null;
+      if (reference instanceof FixedMapElement)
+      {
+        ref_values = ((FixedMapElement) reference).m_values;
+      }
+      for (int i = 0; i < values.size(); i++)
+      {
+        SchemaElement ref_value = null;
+        if (ref_values != null && i < ref_values.size())
+        {
+          ref_value = ref_values.get(i);
+        }
+        recordDelta(ref_value, values.get(i));
+      }
+    }
+    else if (e instanceof ListElement)
+    {
+      Iterator<SchemaElement> ref_it = null;
+      if (reference instanceof ListElement)
+      {
+        ref_it = ((ListElement) reference).m_contents.iterator();
+      }
+      for (SchemaElement item : ((ListElement) e).m_contents)
+      {
+        SchemaElement ref_item = null;
+        if (ref_it != null && ref_it.hasNext())
+        {
+          ref_item = ref_it.next();
+        }
+        recordDelta(ref_item, item);
+      }
+    }
+  }
+  
   /**
    * Utility class used by methods that need to return an element <em>and</em>
    * a numerical value at the same time
@@ -343,31 +571,21 @@ public abstract class SchemaElement
    * @return The position of the matching closing symbol in the string
    */
   protected static int findMatchingClosing(String s)
-  {
-    MutableString ms = new MutableString(s);
-    return findMatchingClosing(ms);    
-  }
-  
-  /**
-   * Similar to {@link findMatchingClosing(String)}, but for an element of
-   * type {@link MutableString}
-   * @param s The string to look into. It is assumed that the
-   *   first character of that string is the corresponding opening
-   *   paren/brace/bracket
-   * @return The position of the matching closing symbol in the string
-   */
-  protected static int findMatchingClosing(MutableString s)
   {
     int level = 1, pos = 0;
     while (level > 0 && pos < s.length())
     {
       pos++;
-      MutableString c = s.substring(pos, pos + 1);
-      if (c.is("(") || c.is("{") || c.is("["))
+      if (pos >= s.length())
+      {
+        break;
+      }
+      char c = s.charAt(pos);
+      if (c == '(' || c == '{' || c == '[')
       {
         level++;
       }
-      else if (c.is(")") || c.is("}") || c.is("]"))
+      else if (c == ')' || c == '}' || c == ']')
       {
         level--;
       }
@@ -17,8 +17,6 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
-import ca.uqac.lif.util.MutableString;
-
 /**
  * Smallscii is a set of 63 characters, intended to encode common
  * character strings at 6 bits per character. There is no character
@@ -73,49 +71,50 @@ public class SmallsciiElement extends StringElement
     return (m_contents.length() + 1) * 6;
   }
   
-  public BitSequence toBitSequence(boolean as_delta)
+  @Override
+  public void writeTo(BitWriter w, boolean as_delta) throws BitFormatException
   {
-    BitSequence bs = new BitSequence();
     if (as_delta)
     {
       // Send a single 1 bit, indicating a change
-      bs.add(true);
+      w.writeBit(true);
     }
-    for (int i = 0; i < m_contents.length(); i++)
+    writeString(w, m_contents);
+  }
+  
+  /**
+   * Writes a character string as a null-terminated sequence of
+   * Smallscii codes
+   * @param w The writer to write to
+   * @param s The string to write
+   */
+  protected static void writeString(BitWriter w, String s)
+  {
+    for (int i = 0; i < s.length(); i++)
     {
-      String letter = m_contents.substring(i, i+1);
+      String letter = s.substring(i, i+1);
       int code = getCode(letter);
       try
       {
-        BitSequence n_bs = new BitSequence(code, 6);
-        bs.addAll(n_bs);
+        w.writeBits(code, 6);
       }
       catch (BitFormatException e)
       {
         // Do nothing
       }
     }
-    try
-    {
-      // Add null value to mark end of string
-      bs.addAll(new BitSequence(0, 6));
-    }
-    catch (BitFormatException e)
-    {
-      // Do nothing
-    }
-    return bs;
+    // Add null value to mark end of string
+    w.writeZeros(6);
   }
   
-  public int fromBitSequence(BitSequence bs, boolean as_delta) throws ReadException
+  public int fromBitSequence(BitReader r, boolean as_delta) throws ReadException
   {
     StringBuilder sb = new StringBuilder();
     int bits_read = 0;
-    while (bs.size() >= 6)
+    while (r.remaining() >= 6)
     {
-      BitSequence subs = bs.truncatePrefix(6);
+      int code = r.readBits(6);
       bits_read += 6;
-      int code = subs.intValue();
       if (code == 0)
       {
         break;
@@ -151,50 +150,34 @@ public class SmallsciiElement extends StringElement
   }
   
   @Override
-  public BitSequence schemaToBitSequence()
+  public void writeSchemaTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = null;
-    try
-    {
-      // Write element type
-      out = new BitSequence(SCHEMA_SMALLSCII, SCHEMA_WIDTH);
-    } 
-    catch (BitFormatException e)
-    {
-      // Not supposed to happen
-      assert false;
-    }
-    return out;
+    // Write element type
+    w.writeBits(SCHEMA_SMALLSCII, SCHEMA_WIDTH);
   }
   
   @Override
-  protected int readSchemaFromBitSequence(BitSequence bs) throws ReadException
+  protected int readSchemaFromBitSequence(BitReader r) throws ReadException
   {
     // Nothing more to read
     return 0;
   }
 
   @Override
-  protected void readSchemaFromString(MutableString s) throws ReadException
+  protected void readSchemaFromString(TextCursor s) throws ReadException
   {
-    s.truncateSubstring("Smallscii".length());
+    s.skip("Smallscii".length());
   }
   
   @Override
-  protected void readContentsFromString(MutableString s) throws ReadException
+  protected void readContentsFromString(TextCursor s) throws ReadException
   {
-    if (!s.startsWith("\""))
-    {
-      throw new ReadException("Error reading Smallscii string");
-    }
-    int index = s.indexOf("\"", 1);
-    if (index < 0)
+    String value = s.readQuoted();
+    if (value == null)
     {
       throw new ReadException("Error reading Smallscii string");
     }
-    MutableString value = s.truncateSubstring(index + 1);
-    value.replaceAll("\"", "");
-    m_contents = value.toString();
+    m_contents = value;
   }
   
   @Override
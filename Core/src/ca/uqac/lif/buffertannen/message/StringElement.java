@@ -49,18 +49,9 @@ public abstract class StringElement extends SchemaElement
     return out.toString();
   }
   
-  public BitSequence schemaToBitSequence()
+  @Override
+  public void writeSchemaTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = null;
-    try
-    {
-      out = new BitSequence(SCHEMA_STRING, SCHEMA_WIDTH);
-    } 
-    catch (BitFormatException e)
-    {
-      // Not supposed to happen
-      assert false;
-    }
-    return out;
+    w.writeBits(SCHEMA_STRING, SCHEMA_WIDTH);
   }
 }
@@ -0,0 +1,283 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+/**
+ * Reads the text representation of a schema or of a message from left
+ * to right. The cursor keeps the position of the next character to read;
+ * contrarily to slicing the input string, reading a token simply moves
+ * this position forward, and never modifies nor copies the underlying
+ * characters. A schema or a message can hence be parsed in a single pass
+ * over its text.
+ * @author sylvain
+ *
+ */
+public class TextCursor
+{
+  /**
+   * The characters to read from
+   */
+  protected char[] m_chars;
+
+  /**
+   * The position of the next character to read
+   */
+  protected int m_position;
+
+  /**
+   * The position past the last character that can be read
+   */
+  protected int m_end;
+
+  /**
+   * Creates a cursor positioned at the beginning of a string
+   * @param s The string to read from
+   */
+  public TextCursor(String s)
+  {
+    this(s.toCharArray(), 0, s.length());
+  }
+
+  /**
+   * Creates a cursor over a portion of an array of characters
+   * @param chars The characters to read from
+   * @param start The position of the first character to read
+   * @param length The number of characters that can be read from that
+   *   position
+   */
+  public TextCursor(char[] chars, int start, int length)
+  {
+    super();
+    m_chars = chars;
+    m_position = start;
+    m_end = start + length;
+  }
+
+  /**
+   * Returns the position of the next character to read
+   * @return The position
+   */
+  public int position()
+  {
+    return m_position;
+  }
+
+  /**
+   * Determines whether all the characters have been read
+   * @return true if no character remains, false otherwise
+   */
+  public boolean atEnd()
+  {
+    return m_position >= m_end;
+  }
+
+  /**
+   * Moves the cursor past any whitespace. As for {@link String#trim()},
+   * any character up to the space is considered as whitespace.
+   */
+  public void skipWhitespace()
+  {
+    while (m_position < m_end && m_chars[m_position] <= ' ')
+    {
+      m_position++;
+    }
+  }
+
+  /**
+   * Moves the cursor forward by a number of characters
+   * @param length The number of characters to skip
+   */
+  public void skip(int length)
+  {
+    m_position = Math.min(m_end, m_position + length);
+  }
+
+  /**
+   * Determines whether the next character is a given one
+   * @param c The character
+   * @return true if the next character is <tt>c</tt>, false otherwise
+   *   (including when no character remains)
+   */
+  public boolean startsWith(char c)
+  {
+    return m_position < m_end && m_chars[m_position] == c;
+  }
+
+  /**
+   * Determines whether the next characters spell a given string
+   * @param s The string
+   * @return true if the next characters are those of <tt>s</tt>,
+   *   false otherwise
+   */
+  public boolean startsWith(String s)
+  {
+    int length = s.length();
+    if (length > m_end - m_position)
+    {
+      return false;
+    }
+    for (int i = 0; i < length; i++)
+    {
+      if (m_chars[m_position + i] != s.charAt(i))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next character if it is a given one
+   * @param c The character
+   * @return true if the character was read, false if the cursor did
+   *   not move
+   */
+  public boolean consume(char c)
+  {
+    if (startsWith(c))
+    {
+      m_position++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reads a decimal integer, possibly preceded by a sign
+   * @return The integer
+   * @throws ReadException If the next characters are not an integer,
+   *   or if that integer does not fit in an <tt>int</tt>
+   */
+  public int readInt() throws ReadException
+  {
+    boolean negative = false;
+    if (m_position < m_end && (m_chars[m_position] == '-' || m_chars[m_position] == '+'))
+    {
+      negative = m_chars[m_position] == '-';
+      m_position++;
+    }
+    int start = m_position;
+    long value = 0;
+    while (m_position < m_end && m_chars[m_position] >= '0' && m_chars[m_position] <= '9')
+    {
+      value = value * 10 + (m_chars[m_position] - '0');
+      if (value > (long) Integer.MAX_VALUE + 1)
+      {
+        throw new ReadException("Integer out of range");
+      }
+      m_position++;
+    }
+    if (m_position == start)
+    {
+      throw new ReadException("Integer expected");
+    }
+    if (negative)
+    {
+      value = -value;
+    }
+    if (value > Integer.MAX_VALUE)
+    {
+      throw new ReadException("Integer out of range");
+    }
+    return (int) value;
+  }
+
+  /**
+   * Reads a string enclosed in double quotes. The quotes are consumed,
+   * but are not part of the string that is returned.
+   * @return The string, or <tt>null</tt> if the next characters are not
+   *   a quoted string; in such a case, the cursor does not move
+   */
+  public String readQuoted()
+  {
+    if (!startsWith('"'))
+    {
+      return null;
+    }
+    int start = m_position + 1, end = start;
+    while (end < m_end && m_chars[end] != '"')
+    {
+      end++;
+    }
+    if (end >= m_end)
+    {
+      return null;
+    }
+    m_position = end + 1;
+    return new String(m_chars, start, end - start);
+  }
+
+  /**
+   * Reads characters up to (but excluding) the first occurrence of any
+   * of a set of delimiters. Double quotes are removed from the
+   * characters read, and the result is trimmed.
+   * @param delimiters The delimiters
+   * @return The string read, or <tt>null</tt> if none of the delimiters
+   *   occurs in the remaining characters; in such a case, the cursor does
+   *   not move
+   */
+  public String readUntil(String delimiters)
+  {
+    int end = m_position;
+    while (end < m_end && delimiters.indexOf(m_chars[end]) < 0)
+    {
+      end++;
+    }
+    if (end >= m_end)
+    {
+      return null;
+    }
+    // Trim, then drop the quotes
+    int start = m_position;
+    m_position = end;
+    while (start < end && m_chars[start] <= ' ')
+    {
+      start++;
+    }
+    while (end > start && m_chars[end - 1] <= ' ')
+    {
+      end--;
+    }
+    StringBuilder out = null;
+    int from = start;
+    for (int i = start; i < end; i++)
+    {
+      if (m_chars[i] == '"')
+      {
+        if (out == null)
+        {
+          out = new StringBuilder(end - start);
+        }
+        out.append(m_chars, from, i - from);
+        from = i + 1;
+      }
+    }
+    if (out == null)
+    {
+      return new String(m_chars, start, end - start);
+    }
+    out.append(m_chars, from, end - from);
+    return out.toString().trim();
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(m_chars, m_position, m_end - m_position);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Packs segments by looking ahead in the buffer. The packer first takes
+ * the segment at the head of the buffer; it then repeatedly picks,
+ * among the next segments of the buffer (up to a fixed window), the
+ * largest one that still fits into the frame. This fills frames better
+ * than {@link FifoPacker} when segments of various sizes are mixed.
+ * <p>
+ * A delta segment is never taken ahead of its reference message
+ * segment: if the reference is still in the buffer and has not been
+ * put into the frame, the delta segment waits as well.
+ * @author sylvain
+ *
+ */
+public class BestFitPacker extends FramePacker
+{
+  /**
+   * The default number of segments examined in the buffer
+   */
+  public static final int DEFAULT_WINDOW = 16;
+
+  /**
+   * The number of segments examined in the buffer
+   */
+  protected int m_window;
+
+  public BestFitPacker()
+  {
+    this(DEFAULT_WINDOW);
+  }
+
+  /**
+   * Creates a packer
+   * @param window The number of segments examined at the head of
+   *   the buffer
+   */
+  public BestFitPacker(int window)
+  {
+    super();
+    m_window = Math.max(1, window);
+  }
+
+  @Override
+  public int pack(LinkedList<Segment> buffer, Frame f, int capacity, List<Segment> discarded)
+  {
+    discardOversized(buffer, capacity, discarded);
+    if (buffer.isEmpty())
+    {
+      return 0;
+    }
+    // Copy the window, and mark the segments taken
+    int window = Math.min(m_window, buffer.size());
+    Segment[] candidates = new Segment[window];
+    int[] sizes = new int[window];
+    boolean[] taken = new boolean[window];
+    Iterator<Segment> it = buffer.iterator();
+    for (int i = 0; i < window; i++)
+    {
+      candidates[i] = it.next();
+      sizes[i] = candidates[i].getSize();
+    }
+    // Always take the head of the buffer
+    taken[0] = true;
+    int total_size = sizes[0];
+    while (true)
+    {
+      int best = -1;
+      Set<Integer> skipped = skippedMessages(candidates, taken);
+      for (int i = 1; i < window; i++)
+      {
+        if (taken[i] || total_size + sizes[i] > capacity)
+        {
+          continue;
+        }
+        if (candidates[i] instanceof DeltaSegment && skipped.contains(((DeltaSegment) candidates[i]).getDeltaToWhat()))
+        {
+          // The reference of this delta segment has not been sent yet
+          continue;
+        }
+        if (best < 0 || sizes[i] > sizes[best])
+        {
+          best = i;
+        }
+      }
+      if (best < 0)
+      {
+        break;
+      }
+      taken[best] = true;
+      total_size += sizes[best];
+    }
+    // Move the segments taken, in buffer order
+    it = buffer.iterator();
+    for (int i = 0; i < window; i++)
+    {
+      it.next();
+      if (taken[i])
+      {
+        f.add(candidates[i]);
+        it.remove();
+      }
+    }
+    return total_size;
+  }
+
+  /**
+   * Computes the sequence numbers of the message and delta segments in
+   * the window that have not been taken, and which hence cannot be the
+   * reference of a delta segment taken in this frame
+   * @param candidates The segments in the window
+   * @param taken Which segments have been taken
+   * @return The set of sequence numbers
+   */
+  protected static Set<Integer> skippedMessages(Segment[] candidates, boolean[] taken)
+  {
+    Set<Integer> out = new HashSet<Integer>();
+    for (int i = 0; i < candidates.length; i++)
+    {
+      Segment seg = candidates[i];
+      // Delta segments can also serve as references
+      if (!taken[i] && seg instanceof MessageSegment)
+      {
+        out.add(seg.getSequenceNumber());
+      }
+    }
+    return out;
+  }
+}
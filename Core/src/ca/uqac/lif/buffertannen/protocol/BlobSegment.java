@@ -18,7 +18,9 @@
 package ca.uqac.lif.buffertannen.protocol;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
 import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.ReadException;
 
 /**
@@ -36,67 +38,56 @@ public class BlobSegment extends Segment
   protected BitSequence m_contents;
 
   @Override
-  public BitSequence toBitSequence()
+  public void writeTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = new BitSequence();
     int length = m_contents.size();
     if (length > MAX_LENGTH)
     {
       // Contents too long for maximum segment length: fail
-      return null;
+      throw new BitFormatException("Segment contents too long");
     }
     if (m_sequenceNumber < 0 || m_sequenceNumber > MAX_SEQUENCE)
     {
       // Sequence number outside of range: fail
-      return null;
+      throw new BitFormatException("Sequence number out of range");
     }
-    try
-    {
-      // Write segment type number
-      out.addAll(new BitSequence(SEGMENT_BLOB, TYPE_WIDTH));
-      // Write sequence number
-      out.addAll(new BitSequence(m_sequenceNumber, SEQUENCE_WIDTH));
-      // Write length
-      out.addAll(new BitSequence(length, LENGTH_WIDTH));
-      // Write contents
-      out.addAll(m_contents);
-    }
-    catch (BitFormatException e)
-    {
-      // Do nothing
-    }
-    return out;
+    // Write segment type number
+    w.writeBits(SEGMENT_BLOB, TYPE_WIDTH);
+    // Write sequence number
+    w.writeBits(m_sequenceNumber, SEQUENCE_WIDTH);
+    // Write length
+    w.writeBits(length, LENGTH_WIDTH);
+    // Write contents
+    w.write(m_contents);
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs) throws ReadException
+  public int fromBitSequence(BitReader r) throws ReadException
   {
-    BitSequence data;
+    invalidateEncoding();
     int bits_read = 0;
     // Segment type number was already consumed by the frame reading method,
     // so we don't need to process it here
     // Read sequence number
-    if (bs.size() < SEQUENCE_WIDTH)
+    if (r.remaining() < SEQUENCE_WIDTH)
     {
       throw new ReadException("Cannot read segment sequence number");
     }
-    data = bs.truncatePrefix(SEQUENCE_WIDTH);
+    m_sequenceNumber = r.readBits(SEQUENCE_WIDTH);
     bits_read += SEQUENCE_WIDTH;
-    m_sequenceNumber = data.intValue();
     // Read length
-    if (bs.size() < LENGTH_WIDTH)
+    if (r.remaining() < LENGTH_WIDTH)
     {
       throw new ReadException("Cannot read segment length");
     }
-    data = bs.truncatePrefix(LENGTH_WIDTH);
+    int length = r.readBits(LENGTH_WIDTH);
     bits_read += LENGTH_WIDTH;
-    int length = data.intValue();
     // Read contents
-    if (bs.size() < length)
+    if (r.remaining() < length)
     {
       throw new ReadException("Bit sequence shorter than segment declared length");
     }
-    m_contents = bs.truncatePrefix(length);
+    m_contents = r.readSequence(length);
     bits_read += length;
     return bits_read;
   }
@@ -129,6 +120,7 @@ public class BlobSegment extends Segment
   public void setContents(BitSequence contents)
   {
     m_contents = contents;
+    invalidateEncoding();
   }
   
   /**
@@ -18,7 +18,8 @@
 package ca.uqac.lif.buffertannen.protocol;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
-import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.ReadException;
 
 /**
@@ -31,6 +32,10 @@ import ca.uqac.lif.buffertannen.message.ReadException;
  */
 public class DeltaSegment extends MessageSegment
 {
+  /**
+   * The size of the header of a delta segment, in bits
+   */
+  public static final int HEADER_SIZE = TYPE_WIDTH + SEQUENCE_WIDTH + SEQUENCE_WIDTH + LENGTH_WIDTH;
   
   /**
    * The segment number to which this delta segment is related
@@ -40,7 +45,7 @@ public class DeltaSegment extends MessageSegment
   @Override
   public int getSize()
   {
-    return TYPE_WIDTH + SEQUENCE_WIDTH + SEQUENCE_WIDTH + LENGTH_WIDTH + m_contents.size();
+    return HEADER_SIZE + m_contents.size();
   }
   
   /**
@@ -59,80 +64,69 @@ public class DeltaSegment extends MessageSegment
   public void setDeltaToWhat(int d)
   {
     m_deltaToWhat = d;
+    invalidateEncoding();
   }
 
   @Override
-  public BitSequence toBitSequence()
+  public void writeTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = new BitSequence();
     int length = m_contents.size();
     if (length > MAX_LENGTH)
     {
       // Contents too long for maximum segment length: fail
-      return null;
+      throw new BitFormatException("Segment contents too long");
     }
     if (m_sequenceNumber < 0 || m_sequenceNumber > MAX_SEQUENCE)
     {
       // Sequence number outside of range: fail
-      return null;
-    }
-    try
-    {
-      // Write segment type number
-      out.addAll(new BitSequence(SEGMENT_DELTA, TYPE_WIDTH));
-      // Write sequence number
-      out.addAll(new BitSequence(m_sequenceNumber, SEQUENCE_WIDTH));
-      // Write length
-      out.addAll(new BitSequence(length, LENGTH_WIDTH));
-      // Write segment of which this is a delta
-      out.addAll(new BitSequence(m_deltaToWhat, SEQUENCE_WIDTH));
-      // Write contents
-      out.addAll(m_contents);
-    }
-    catch (BitFormatException e)
-    {
-      // Do nothing
+      throw new BitFormatException("Sequence number out of range");
     }
-    return out;
+    // Write segment type number
+    w.writeBits(SEGMENT_DELTA, TYPE_WIDTH);
+    // Write sequence number
+    w.writeBits(m_sequenceNumber, SEQUENCE_WIDTH);
+    // Write length
+    w.writeBits(length, LENGTH_WIDTH);
+    // Write segment of which this is a delta
+    w.writeBits(m_deltaToWhat, SEQUENCE_WIDTH);
+    // Write contents
+    w.write(m_contents);
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs) throws ReadException
+  public int fromBitSequence(BitReader r) throws ReadException
   {
-    BitSequence data;
+    invalidateEncoding();
     int bits_read = 0;
     // Segment type number was already consumed by the frame reading method,
     // so we don't need to process it here
     // Read sequence number
-    if (bs.size() < SEQUENCE_WIDTH)
+    if (r.remaining() < SEQUENCE_WIDTH)
     {
       throw new ReadException("Cannot read segment sequence number");
     }
-    data = bs.truncatePrefix(SEQUENCE_WIDTH);
+    m_sequenceNumber = r.readBits(SEQUENCE_WIDTH);
     bits_read += SEQUENCE_WIDTH;
-    m_sequenceNumber = data.intValue();
     // Read length
-    if (bs.size() < LENGTH_WIDTH)
+    if (r.remaining() < LENGTH_WIDTH)
     {
       throw new ReadException("Cannot read segment length");
     }
-    data = bs.truncatePrefix(LENGTH_WIDTH);
+    int length = r.readBits(LENGTH_WIDTH);
     bits_read += LENGTH_WIDTH;
-    int length = data.intValue();
     // Read schema number
-    if (bs.size() < SEQUENCE_WIDTH)
+    if (r.remaining() < SEQUENCE_WIDTH)
     {
       throw new ReadException("Cannot read reference segment number");
     }
-    data = bs.truncatePrefix(SEQUENCE_WIDTH);
+    m_deltaToWhat = r.readBits(SEQUENCE_WIDTH);
     bits_read += SEQUENCE_WIDTH;
-    m_deltaToWhat = data.intValue();
     // Read contents
-    if (bs.size() < length)
+    if (r.remaining() < length)
     {
       throw new ReadException("Bit sequence shorter than segment declared length");
     }
-    m_contents = bs.truncatePrefix(length);
+    m_contents = r.readSequence(length);
     bits_read += length;
     return bits_read;
   }
@@ -0,0 +1,50 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Packs segments strictly in the order of the buffer: the frame is
+ * closed as soon as the next segment does not fit into it.
+ * @author sylvain
+ *
+ */
+public class FifoPacker extends FramePacker
+{
+  @Override
+  public int pack(LinkedList<Segment> buffer, Frame f, int capacity, List<Segment> discarded)
+  {
+    discardOversized(buffer, capacity, discarded);
+    int total_size = 0;
+    while (!buffer.isEmpty())
+    {
+      Segment seg = buffer.getFirst();
+      int segment_size = seg.getSize();
+      if (total_size + segment_size > capacity)
+      {
+        break;
+      }
+      buffer.removeFirst();
+      f.add(seg);
+      total_size += segment_size;
+    }
+    return total_size;
+  }
+}
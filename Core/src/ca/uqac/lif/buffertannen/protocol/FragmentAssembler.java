@@ -0,0 +1,264 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.ReadException;
+
+/**
+ * Puts back together the segments that were split into fragments by
+ * the sender. Fragments of the same segment share its sequence number;
+ * the assembler keeps the chunks received for a small number of such
+ * segments at a time. A segment whose fragments do not all arrive
+ * within a given delay is abandoned; so is the oldest incomplete
+ * segment when fragments of a new one arrive and the assembler is full.
+ * @author sylvain
+ *
+ */
+/*package*/ class FragmentAssembler
+{
+  /**
+   * The default number of segments that can be reassembled at the
+   * same time
+   */
+  public static final int DEFAULT_CAPACITY = 8;
+  
+  /**
+   * The default delay, in milliseconds, after which an incomplete
+   * segment is abandoned
+   */
+  public static final long DEFAULT_TIMEOUT = 10000;
+  
+  /**
+   * The segments being reassembled
+   */
+  protected Assembly[] m_assemblies;
+  
+  /**
+   * The delay, in milliseconds, after which an incomplete segment is
+   * abandoned
+   */
+  protected long m_timeout = DEFAULT_TIMEOUT;
+  
+  /**
+   * Number of incomplete segments abandoned
+   */
+  protected int m_discarded = 0;
+  
+  public FragmentAssembler()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * Creates a fragment assembler
+   * @param capacity The maximum number of segments that can be
+   *   reassembled at the same time
+   */
+  public FragmentAssembler(int capacity)
+  {
+    super();
+    m_assemblies = new Assembly[Math.max(1, capacity)];
+  }
+  
+  /**
+   * Sets the delay after which an incomplete segment is abandoned
+   * @param timeout The delay, in milliseconds
+   */
+  public void setTimeout(long timeout)
+  {
+    m_timeout = timeout;
+  }
+  
+  /**
+   * Returns the number of incomplete segments abandoned so far
+   * @return The number of segments
+   */
+  public int getDiscarded()
+  {
+    return m_discarded;
+  }
+  
+  /**
+   * Returns the number of segments currently being reassembled
+   * @return The number of segments
+   */
+  public int size()
+  {
+    int out = 0;
+    for (Assembly a : m_assemblies)
+    {
+      if (a != null)
+      {
+        out++;
+      }
+    }
+    return out;
+  }
+  
+  /**
+   * Abandons the segment with given sequence number, if it is being
+   * reassembled
+   * @param seq_no The sequence number
+   */
+  public void remove(int seq_no)
+  {
+    for (int i = 0; i < m_assemblies.length; i++)
+    {
+      if (m_assemblies[i] != null && m_assemblies[i].m_sequenceNumber == seq_no)
+      {
+        m_assemblies[i] = null;
+      }
+    }
+  }
+  
+  /**
+   * Adds a fragment to the assembler
+   * @param fs The fragment
+   * @param now The current time, in milliseconds
+   * @return The original segment, if this fragment was the last one
+   *   missing to rebuild it, null otherwise
+   * @throws ReadException If the fragments, once put together, do not
+   *   contain a valid segment
+   */
+  public Segment add(FragmentSegment fs, long now) throws ReadException
+  {
+    expire(now);
+    int seq_no = fs.getSequenceNumber();
+    int free = -1, oldest = 0;
+    Assembly a = null;
+    for (int i = 0; i < m_assemblies.length; i++)
+    {
+      Assembly cur = m_assemblies[i];
+      if (cur == null)
+      {
+        free = i;
+      }
+      else if (cur.m_sequenceNumber == seq_no && cur.m_chunks.length == fs.getCount())
+      {
+        a = cur;
+        break;
+      }
+      else if (cur.m_sequenceNumber == seq_no)
+      {
+        // Same sequence number, but a different segment: the old one
+        // will never be completed
+        m_assemblies[i] = null;
+        m_discarded++;
+        free = i;
+      }
+      else if (m_assemblies[oldest] == null || cur.m_started < m_assemblies[oldest].m_started)
+      {
+        oldest = i;
+      }
+    }
+    if (a == null)
+    {
+      if (free < 0)
+      {
+        // Assembler full: abandon the segment started the longest ago
+        free = oldest;
+        m_discarded++;
+      }
+      a = new Assembly(seq_no, fs.getCount(), now);
+      m_assemblies[free] = a;
+    }
+    int index = fs.getIndex();
+    if (a.m_chunks[index] == null)
+    {
+      a.m_chunks[index] = fs.getContents();
+      a.m_received++;
+    }
+    if (a.m_received < a.m_chunks.length)
+    {
+      return null;
+    }
+    // All fragments received: decode the original segment
+    remove(seq_no);
+    BitSequence bs = new BitSequence();
+    for (BitSequence chunk : a.m_chunks)
+    {
+      bs.addAll(chunk);
+    }
+    BitReader r = new BitReader(bs);
+    if (r.remaining() < Segment.TYPE_WIDTH)
+    {
+      throw new ReadException("Cannot read segment type");
+    }
+    int segment_type = r.readBits(Segment.TYPE_WIDTH);
+    Segment seg = Segment.newSegment(segment_type);
+    if (seg == null || seg instanceof FragmentSegment || seg instanceof ParitySegment)
+    {
+      throw new ReadException("Invalid fragmented segment type " + segment_type);
+    }
+    seg.fromBitSequence(r);
+    return seg;
+  }
+  
+  /**
+   * Abandons the segments whose first fragment was received too long ago
+   * @param now The current time, in milliseconds
+   */
+  protected void expire(long now)
+  {
+    for (int i = 0; i < m_assemblies.length; i++)
+    {
+      if (m_assemblies[i] != null && now - m_assemblies[i].m_started > m_timeout)
+      {
+        m_assemblies[i] = null;
+        m_discarded++;
+      }
+    }
+  }
+  
+  /**
+   * The fragments received so far for a segment
+   */
+  protected static class Assembly
+  {
+    /**
+     * The sequence number of the segment
+     */
+    protected final int m_sequenceNumber;
+    
+    /**
+     * The chunk carried by each fragment, or null for the fragments
+     * not received yet
+     */
+    protected final BitSequence[] m_chunks;
+    
+    /**
+     * The number of distinct fragments received
+     */
+    protected int m_received = 0;
+    
+    /**
+     * The time at which the first fragment was received
+     */
+    protected final long m_started;
+    
+    public Assembly(int seq_no, int count, long now)
+    {
+      super();
+      m_sequenceNumber = seq_no;
+      m_chunks = new BitSequence[count];
+      m_started = now;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
+import ca.uqac.lif.buffertannen.message.ReadException;
+
+/**
+ * Carries a piece of another segment that is too large to fit in a
+ * single frame. The encoding of the original segment is split into
+ * consecutive chunks, each of which is sent in a fragment segment
+ * bearing the same sequence number as the original segment, along with
+ * its position and the total number of fragments. The receiver puts the
+ * chunks back together and decodes the original segment.
+ * @author sylvain
+ *
+ */
+public class FragmentSegment extends Segment
+{
+  /**
+   * The number of bits used to encode the index and the number
+   * of fragments
+   */
+  public static final int INDEX_WIDTH = 8;
+  
+  /**
+   * The maximum number of fragments a segment can be split into
+   */
+  public static final int MAX_FRAGMENTS = (int) Math.pow(2, INDEX_WIDTH);
+  
+  /**
+   * The number of bits used to encode the length of the fragment
+   */
+  public static final int LENGTH_WIDTH = 12;
+  
+  /**
+   * The maximum length of a fragment's contents
+   */
+  public static final int MAX_LENGTH = (int) Math.pow(2, LENGTH_WIDTH) - 1;
+  
+  /**
+   * The size of the header of a fragment segment, in bits
+   */
+  public static final int HEADER_SIZE = TYPE_WIDTH + SEQUENCE_WIDTH + INDEX_WIDTH + INDEX_WIDTH + LENGTH_WIDTH;
+  
+  /**
+   * The position of this fragment, starting at 0
+   */
+  protected int m_index = 0;
+  
+  /**
+   * The total number of fragments of the original segment
+   */
+  protected int m_count = 1;
+  
+  /**
+   * The chunk of the original segment carried by this fragment
+   */
+  protected BitSequence m_contents = new BitSequence();
+  
+  public FragmentSegment()
+  {
+    super();
+  }
+  
+  /**
+   * Splits a segment into fragments
+   * @param seg The segment to split
+   * @param max_size The maximum size of each fragment segment, including
+   *   its header
+   * @return The fragments, or null if the segment cannot be split into
+   *   fragments of that size
+   * @throws BitFormatException If the segment cannot be encoded
+   */
+  public static List<FragmentSegment> split(Segment seg, int max_size) throws BitFormatException
+  {
+    int chunk_size = Math.min(max_size - HEADER_SIZE, MAX_LENGTH);
+    if (chunk_size <= 0)
+    {
+      return null;
+    }
+    BitSequence bits = seg.getEncoding();
+    int count = (bits.size() + chunk_size - 1) / chunk_size;
+    if (count > MAX_FRAGMENTS)
+    {
+      return null;
+    }
+    List<FragmentSegment> out = new ArrayList<FragmentSegment>(count);
+    for (int i = 0; i < count; i++)
+    {
+      int start = i * chunk_size;
+      FragmentSegment fs = new FragmentSegment();
+      fs.m_sequenceNumber = seg.getSequenceNumber();
+      fs.m_index = i;
+      fs.m_count = count;
+      fs.m_contents = bits.subSequence(start, Math.min(chunk_size, bits.size() - start));
+      out.add(fs);
+    }
+    return out;
+  }
+  
+  /**
+   * Returns the position of this fragment
+   * @return The position, starting at 0
+   */
+  public int getIndex()
+  {
+    return m_index;
+  }
+  
+  /**
+   * Returns the total number of fragments of the original segment
+   * @return The number of fragments
+   */
+  public int getCount()
+  {
+    return m_count;
+  }
+  
+  /**
+   * Returns the chunk of the original segment carried by this fragment
+   * @return The chunk
+   */
+  public BitSequence getContents()
+  {
+    return m_contents;
+  }
+  
+  @Override
+  public int getSize()
+  {
+    return HEADER_SIZE + m_contents.size();
+  }
+
+  @Override
+  public void writeTo(BitWriter w) throws BitFormatException
+  {
+    if (m_sequenceNumber < 0 || m_sequenceNumber >= MAX_SEQUENCE)
+    {
+      // Sequence number outside of range: fail
+      throw new BitFormatException("Sequence number out of range");
+    }
+    if (m_count < 1 || m_count > MAX_FRAGMENTS || m_index < 0 || m_index >= m_count)
+    {
+      throw new BitFormatException("Fragment index out of range");
+    }
+    // Write segment type number
+    w.writeBits(SEGMENT_FRAGMENT, TYPE_WIDTH);
+    // Write sequence number
+    w.writeBits(m_sequenceNumber, SEQUENCE_WIDTH);
+    // Write index and number of fragments (the latter minus one, so
+    // that MAX_FRAGMENTS fits in the field)
+    w.writeBits(m_index, INDEX_WIDTH);
+    w.writeBits(m_count - 1, INDEX_WIDTH);
+    // Write length and contents
+    w.writeBits(m_contents.size(), LENGTH_WIDTH);
+    w.write(m_contents);
+  }
+
+  @Override
+  public int fromBitSequence(BitReader r) throws ReadException
+  {
+    invalidateEncoding();
+    // Segment type number was already consumed by the frame reading method,
+    // so we don't need to process it here
+    if (r.remaining() < HEADER_SIZE - TYPE_WIDTH)
+    {
+      throw new ReadException("Cannot read fragment header");
+    }
+    m_sequenceNumber = r.readBits(SEQUENCE_WIDTH);
+    m_index = r.readBits(INDEX_WIDTH);
+    m_count = r.readBits(INDEX_WIDTH) + 1;
+    int length = r.readBits(LENGTH_WIDTH);
+    if (m_index >= m_count)
+    {
+      throw new ReadException("Fragment index out of range");
+    }
+    if (r.remaining() < length)
+    {
+      throw new ReadException("Bit sequence shorter than fragment declared length");
+    }
+    m_contents = r.readSequence(length);
+    return HEADER_SIZE - TYPE_WIDTH + length;
+  }
+  
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    out.append("Segment type: fragment\n");
+    out.append("Sequence number: ").append(m_sequenceNumber).append("\n");
+    out.append("Fragment: ").append(m_index + 1).append("/").append(m_count).append("\n");
+    return out.toString();
+  }
+}
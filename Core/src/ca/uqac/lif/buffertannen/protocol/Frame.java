@@ -17,11 +17,12 @@
  */
 package ca.uqac.lif.buffertannen.protocol;
 
-import java.util.LinkedList;
 import java.util.Vector;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
 import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.ReadException;
 import ca.uqac.lif.buffertannen.message.SmallsciiElement;
 
@@ -35,7 +36,7 @@ public class Frame extends Vector<Segment>
   /**
    * Protocol version number for this frame
    */
-  protected static final int VERSION_NUMBER = 1;
+  protected static final int VERSION_NUMBER = 2;
   
   /**
    * The number of bits used to encode the version number
@@ -167,139 +168,140 @@ public class Frame extends Vector<Segment>
     return size;
   }
   
+  /**
+   * Outputs the frame as a sequence of bits
+   * @return The sequence of bits, or null if the frame cannot be encoded
+   *   (e.g. its contents exceed its maximum length)
+   */
   public BitSequence toBitSequence()
   {
     BitSequence out = new BitSequence();
-    int length = 0;
-    LinkedList<BitSequence> sequences = new LinkedList<BitSequence>();
-    for (Segment seg : this)
+    try
     {
-      BitSequence seg_seq = seg.toBitSequence();
-      sequences.add(seg_seq);
-      length += seg_seq.size();
+      writeTo(new BitWriter(out));
     }
-    length += VERSION_WIDTH + LENGTH_WIDTH; 
-    if (length > m_maxLength)
+    catch (BitFormatException e)
     {
-      // Data is too long for frame: fail
       return null;
     }
-    try
+    return out;
+  }
+  
+  /**
+   * Writes the frame, including all its segments, at the end of a
+   * bit writer
+   * @param w The writer to write to
+   * @throws BitFormatException If the frame cannot be encoded
+   */
+  public void writeTo(BitWriter w) throws BitFormatException
+  {
+    int length = getHeaderSize();
+    for (Segment seg : this)
     {
-      BitSequence data;
-      data = new BitSequence(VERSION_NUMBER, VERSION_WIDTH);
-      out.addAll(data);
-      data = new BitSequence(length, LENGTH_WIDTH);
-      out.addAll(data);
-      data = new BitSequence(m_dataStreamIndex, DATASTREAM_INDEX_WIDTH);
-      out.addAll(data);
-      data = new BitSequence(m_totalSegments, TOTAL_SEGMENTS_WIDTH);
-      out.addAll(data);
-      data = m_resourceIdentifier.toBitSequence();
-      out.addAll(data);
+      length += seg.getSize();
     }
-    catch (BitFormatException e)
+    if (length > m_maxLength)
     {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      // Data is too long for frame: fail
+      throw new BitFormatException("Frame contents exceed maximum length");
     }
-    for (BitSequence bs : sequences)
+    int start = w.size();
+    w.writeBits(VERSION_NUMBER, VERSION_WIDTH);
+    w.writeBits(length, LENGTH_WIDTH);
+    w.writeBits(m_dataStreamIndex, DATASTREAM_INDEX_WIDTH);
+    w.writeBits(m_totalSegments, TOTAL_SEGMENTS_WIDTH);
+    m_resourceIdentifier.writeTo(w);
+    for (Segment seg : this)
     {
-      out.addAll(bs);
+      w.write(seg.getEncoding());
     }
     if (PAD_FRAME)
     {
       // Fill remaining space with 0s
-      for (int i = length; i < m_maxLength; i++)
-      {
-        out.add(false);
-      }
+      w.writeZeros(m_maxLength - (w.size() - start));
     }
-    return out;
   }
   
+  /**
+   * Populates the frame from a bit sequence. The bits read are removed
+   * from the beginning of the sequence.
+   * @param bs The bit sequence to read from
+   * @throws ReadException If the sequence does not contain a valid frame
+   */
   public void fromBitSequence(BitSequence bs) throws ReadException
   {
-    BitSequence data;
+    BitReader r = new BitReader(bs);
+    try
+    {
+      fromBitSequence(r);
+    }
+    finally
+    {
+      bs.truncatePrefix(r.position());
+    }
+  }
+  
+  /**
+   * Populates the frame from the current position of a bit reader
+   * @param r The reader to read from
+   * @throws ReadException If the bits do not contain a valid frame
+   */
+  public void fromBitSequence(BitReader r) throws ReadException
+  {
     int bits_read = 0;
     // Read version number
-    if (bs.size() < VERSION_WIDTH)
+    if (r.remaining() < VERSION_WIDTH)
     {
       throw new ReadException("Cannot read frame version");
     }
-    data = bs.truncatePrefix(VERSION_WIDTH);
+    int version = r.readBits(VERSION_WIDTH);
     bits_read += VERSION_WIDTH;
-    int version = data.intValue();
     if (version != VERSION_NUMBER)
     {
       throw new ReadException("Incorrect version number");
     }
     // Read frame length
-    if (bs.size() < LENGTH_WIDTH)
+    if (r.remaining() < LENGTH_WIDTH)
     {
       throw new ReadException("Cannot read frame length");
     }
-    data = bs.truncatePrefix(LENGTH_WIDTH);
+    int frame_length = r.readBits(LENGTH_WIDTH);
     bits_read += LENGTH_WIDTH;
-    int frame_length = data.intValue();
     // Read datastream index
-    if (bs.size() < DATASTREAM_INDEX_WIDTH)
+    if (r.remaining() < DATASTREAM_INDEX_WIDTH)
     {
       throw new ReadException("Cannot read datastream index");
     }
-    data = bs.truncatePrefix(DATASTREAM_INDEX_WIDTH);
+    m_dataStreamIndex = r.readBits(DATASTREAM_INDEX_WIDTH);
     bits_read += DATASTREAM_INDEX_WIDTH;
-    m_dataStreamIndex = data.intValue();
     // Read total segments
-    if (bs.size() < TOTAL_SEGMENTS_WIDTH)
+    if (r.remaining() < TOTAL_SEGMENTS_WIDTH)
     {
       throw new ReadException("Cannot read total number of segments");
     }
-    data = bs.truncatePrefix(TOTAL_SEGMENTS_WIDTH);
+    m_totalSegments = r.readBits(TOTAL_SEGMENTS_WIDTH);
     bits_read += TOTAL_SEGMENTS_WIDTH;
-    m_totalSegments = data.intValue();
     // Read resource identifier
     SmallsciiElement ri = new SmallsciiElement();
-    bits_read += ri.fromBitSequence(bs);
+    bits_read += ri.fromBitSequence(r);
     m_resourceIdentifier = ri;
     // Read segments
     while (bits_read < frame_length)
     {
-      if (bs.size() < Segment.TYPE_WIDTH)
+      if (r.remaining() < Segment.TYPE_WIDTH)
       {
         throw new ReadException("Cannot read segment type");
       }
-      data = bs.truncatePrefix(Segment.TYPE_WIDTH);
+      int segment_type = r.readBits(Segment.TYPE_WIDTH);
       bits_read += Segment.TYPE_WIDTH;
-      int segment_type = data.intValue();
-      if (segment_type == Segment.SEGMENT_BLOB)
-      {
-        BlobSegment seg = new BlobSegment();
-        int read = seg.fromBitSequence(bs);
-        this.add(seg);
-        bits_read += read;
-      }
-      else if (segment_type == Segment.SEGMENT_MESSAGE)
-      {
-        MessageSegment seg = new MessageSegment();
-        int read = seg.fromBitSequence(bs);
-        this.add(seg);
-        bits_read += read;
-      }
-      else if (segment_type == Segment.SEGMENT_SCHEMA)
-      {
-        SchemaSegment seg = new SchemaSegment();
-        int read = seg.fromBitSequence(bs);
-        this.add(seg);
-        bits_read += read;
-      }
-      else if (segment_type == Segment.SEGMENT_DELTA)
+      Segment seg = Segment.newSegment(segment_type);
+      if (seg == null)
       {
-        DeltaSegment seg = new DeltaSegment();
-        int read = seg.fromBitSequence(bs);
-        this.add(seg);
-        bits_read += read;
+        throw new ReadException("Unknown segment type " + segment_type);
       }
+      int read = seg.fromBitSequence(r);
+      this.add(seg);
+      bits_read += read;
     }
   }
 }
@@ -0,0 +1,81 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A strategy to choose which of the segments waiting in a sender's
+ * buffer are put into the next frame.
+ * @author sylvain
+ *
+ */
+public abstract class FramePacker
+{
+  /**
+   * Moves segments from a buffer into a frame. The segments are added
+   * to the frame in the order they appear in the buffer. A packer
+   * always takes the first segment of the buffer if it fits, so that
+   * no segment waits forever.
+   * @param buffer The segments waiting to be sent, in the order in which
+   *   they were added to the sender. The segments put into the frame
+   *   are removed from it.
+   * @param f The frame to fill
+   * @param capacity The number of bits available in the frame
+   * @return The number of bits used in the frame
+   */
+  public int pack(LinkedList<Segment> buffer, Frame f, int capacity)
+  {
+    return pack(buffer, f, capacity, null);
+  }
+
+  /**
+   * Moves segments from a buffer into a frame, as
+   * {@link #pack(LinkedList, Frame, int)}. The segments at the head of the
+   * buffer that could never fit into a frame are removed from the buffer
+   * and added to a list, so that the caller can account for them.
+   * @param buffer The segments waiting to be sent
+   * @param f The frame to fill
+   * @param capacity The number of bits available in the frame
+   * @param discarded The list where to add the segments removed because
+   *   they are too large. May be null.
+   * @return The number of bits used in the frame
+   */
+  public abstract int pack(LinkedList<Segment> buffer, Frame f, int capacity, List<Segment> discarded);
+
+  /**
+   * Removes from the head of the buffer the segments that could never
+   * fit into a frame, even an empty one
+   * @param buffer The buffer
+   * @param capacity The number of bits available in a frame
+   * @param discarded The list where to add the segments removed. May
+   *   be null.
+   */
+  protected static void discardOversized(LinkedList<Segment> buffer, int capacity, List<Segment> discarded)
+  {
+    while (!buffer.isEmpty() && buffer.getFirst().getSize() > capacity)
+    {
+      Segment seg = buffer.removeFirst();
+      if (discarded != null)
+      {
+        discarded.add(seg);
+      }
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+
+/**
+ * Polls the frames of a sender at the pace allowed by the communication
+ * channel, and pushes them to a {@link FrameSink}. The rate of the
+ * channel is expressed either in bits or in frames per second; the
+ * scheduler enforces it with a token bucket. At every tick, the bucket
+ * is refilled in proportion to the time elapsed, and frames are sent as
+ * long as there are enough tokens for a full-sized frame. The bucket
+ * never holds more than a given number of tokens (the "burst" size), so
+ * that idle periods do not allow the channel to be flooded afterwards.
+ * <p>
+ * The scheduler runs on its own thread, which becomes the sender's
+ * consumer; messages can still be added to the sender by any number of
+ * producer threads.
+ * @author sylvain
+ *
+ */
+public class FrameScheduler
+{
+  /**
+   * The default interval between two ticks, in milliseconds
+   */
+  public static final long DEFAULT_PERIOD = 10;
+  
+  /**
+   * The sender to poll frames from
+   */
+  protected final Sender m_sender;
+  
+  /**
+   * The sink to push frames to
+   */
+  protected final FrameSink m_sink;
+  
+  /**
+   * The rate of the channel, in bits or frames per second
+   */
+  protected double m_rate = 1200;
+  
+  /**
+   * Whether the rate counts frames (true) or bits (false)
+   */
+  protected boolean m_countFrames = false;
+  
+  /**
+   * The maximum number of tokens in the bucket. A value of 0 means
+   * just enough tokens to send one frame.
+   */
+  protected double m_burst = 0;
+  
+  /**
+   * The number of tokens currently in the bucket
+   */
+  protected double m_tokens = 0;
+  
+  /**
+   * The time of the last tick, in nanoseconds. Only meaningful once
+   * {@link #m_ticked} is set, since the clock can be negative.
+   */
+  protected long m_lastTick = 0;
+  
+  /**
+   * Whether there was a tick since the scheduler was started
+   */
+  protected boolean m_ticked = false;
+  
+  /**
+   * The interval between two ticks, in milliseconds
+   */
+  protected long m_period = DEFAULT_PERIOD;
+  
+  /**
+   * The thread running the ticks, or null if the scheduler is stopped
+   */
+  protected ScheduledExecutorService m_executor = null;
+  
+  /**
+   * The periodic task calling {@link #tick(long)}, or null if the
+   * scheduler is stopped
+   */
+  protected ScheduledFuture<?> m_task = null;
+  
+  /**
+   * The last exception thrown during a tick run by the scheduler's
+   * thread, or null if there was none
+   */
+  protected volatile RuntimeException m_lastError = null;
+  
+  /**
+   * Number of frames pushed to the sink
+   */
+  protected volatile int m_framesSent = 0;
+  
+  /**
+   * Number of bits pushed to the sink
+   */
+  protected volatile long m_bitsSent = 0;
+  
+  /**
+   * The estimated time a segment added now would wait before being
+   * sent, in milliseconds, as of the last tick
+   */
+  protected volatile long m_queueDelay = 0;
+  
+  /**
+   * Creates a frame scheduler
+   * @param sender The sender to poll frames from
+   * @param sink The sink to push frames to
+   */
+  public FrameScheduler(Sender sender, FrameSink sink)
+  {
+    super();
+    m_sender = sender;
+    m_sink = sink;
+  }
+  
+  /**
+   * Sets the rate of the channel in bits per second
+   * @param bps The number of bits per second
+   */
+  public synchronized void setBitRate(double bps)
+  {
+    m_rate = bps;
+    m_countFrames = false;
+  }
+  
+  /**
+   * Sets the rate of the channel in frames per second, regardless of
+   * their size
+   * @param fps The number of frames per second
+   */
+  public synchronized void setFrameRate(double fps)
+  {
+    m_rate = fps;
+    m_countFrames = true;
+  }
+  
+  /**
+   * Sets the maximum number of tokens the bucket can hold, i.e. the
+   * largest amount of data that can be sent at once after an idle
+   * period
+   * @param burst The number of bits (or frames, if the rate is
+   *   expressed in frames per second). This value is raised to the
+   *   size of a full frame if it is smaller.
+   */
+  public synchronized void setBurstSize(double burst)
+  {
+    m_burst = burst;
+  }
+  
+  /**
+   * Sets the interval between two ticks. If the scheduler is running,
+   * the ticks are rescheduled at the new interval.
+   * @param period The interval, in milliseconds
+   */
+  public synchronized void setPeriod(long period)
+  {
+    m_period = period;
+    if (m_task != null)
+    {
+      m_task.cancel(false);
+      schedule();
+    }
+  }
+  
+  /**
+   * Starts sending frames on a separate thread
+   */
+  public synchronized void start()
+  {
+    if (m_executor != null)
+    {
+      return;
+    }
+    m_executor = Executors.newSingleThreadScheduledExecutor();
+    schedule();
+  }
+  
+  /**
+   * Schedules the ticks on the scheduler's thread, at the current
+   * interval. This must be called while holding the lock on the
+   * scheduler.
+   */
+  protected void schedule()
+  {
+    m_task = m_executor.scheduleAtFixedRate(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          tick(System.nanoTime());
+        }
+        catch (RuntimeException e)
+        {
+          // Don't let an exception cancel the following ticks, but
+          // keep it for the caller to see
+          m_lastError = e;
+        }
+      }
+    }, 0, m_period, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Returns the last exception thrown while the scheduler's thread was
+   * polling the sender or pushing a frame to the sink. The scheduler
+   * keeps running after such an exception.
+   * @return The exception, or null if there was none
+   */
+  public RuntimeException getLastError()
+  {
+    return m_lastError;
+  }
+  
+  /**
+   * Stops sending frames, and waits for the current tick (if any)
+   * to finish
+   */
+  public void stop()
+  {
+    ScheduledExecutorService executor;
+    synchronized (this)
+    {
+      executor = m_executor;
+      m_executor = null;
+      m_task = null;
+      m_ticked = false;
+    }
+    if (executor == null)
+    {
+      return;
+    }
+    executor.shutdown();
+    try
+    {
+      executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Refills the token bucket and sends as many frames as the tokens
+   * allow. This is called periodically once the scheduler is started;
+   * it can also be called directly to drive the scheduler by hand.
+   * @param now The current time, in nanoseconds
+   */
+  public synchronized void tick(long now)
+  {
+    double frame_cost = m_countFrames ? 1 : m_sender.getFrameMaxLength();
+    double burst = Math.max(m_burst, frame_cost);
+    if (!m_ticked)
+    {
+      // First tick: start with enough tokens for one frame
+      m_tokens = frame_cost;
+    }
+    else
+    {
+      m_tokens = Math.min(burst, m_tokens + m_rate * (now - m_lastTick) / 1e9);
+    }
+    m_lastTick = now;
+    m_ticked = true;
+    while (m_tokens >= frame_cost)
+    {
+      BitSequence bs = m_sender.pollBitSequence();
+      if (bs == null)
+      {
+        // Nothing to send
+        break;
+      }
+      m_tokens -= m_countFrames ? 1 : bs.size();
+      m_framesSent++;
+      m_bitsSent += bs.size();
+      m_sink.send(bs);
+    }
+    m_queueDelay = estimateDelay(m_sender.getBufferSizeBits());
+  }
+  
+  /**
+   * Estimates the time needed to send some amount of data at the
+   * current rate
+   * @param bits The number of bits
+   * @return The time, in milliseconds
+   */
+  protected long estimateDelay(int bits)
+  {
+    if (m_rate <= 0)
+    {
+      return Long.MAX_VALUE;
+    }
+    double units = bits;
+    if (m_countFrames)
+    {
+      units = Math.ceil((double) bits / m_sender.getMaxDataSize());
+    }
+    return (long) (units * 1000 / m_rate);
+  }
+  
+  /**
+   * Returns the estimated time a segment added to the sender now would
+   * wait before being sent, given the segments already waiting and the
+   * rate of the channel. The estimate is updated at every tick.
+   * @return The delay, in milliseconds
+   */
+  public long getQueueDelay()
+  {
+    return m_queueDelay;
+  }
+  
+  /**
+   * Returns the number of frames pushed to the sink so far
+   * @return The number of frames
+   */
+  public int getNumberOfFrames()
+  {
+    return m_framesSent;
+  }
+  
+  /**
+   * Returns the number of bits pushed to the sink so far
+   * @return The number of bits
+   */
+  public long getNumberOfBits()
+  {
+    return m_bitsSent;
+  }
+}
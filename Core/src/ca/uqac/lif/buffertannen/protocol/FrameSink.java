@@ -1,6 +1,6 @@
 /*
     Buffer Tannen, a binary message protocol
-    Copyright (C) 2013-2018  Sylvain Hallé
+    Copyright (C) 2013-2019  Sylvain Hallé
 
     This program is free software: you can redistribute it and/or modify
     it under the terms of the GNU Lesser General Public License as published
@@ -18,42 +18,19 @@
 package ca.uqac.lif.buffertannen.protocol;
 
 import ca.uqac.lif.buffertannen.message.BitSequence;
-import ca.uqac.lif.buffertannen.message.ReadException;
 
-/*package*/ class PlaceholderSegment extends Segment
+/**
+ * The destination of the frames produced by a {@link FrameScheduler},
+ * typically the communication channel itself.
+ * @author sylvain
+ *
+ */
+public interface FrameSink
 {
-  public PlaceholderSegment(int seq_no)
-  {
-    super();
-    m_sequenceNumber = seq_no;
-  }
-  
-  @Override
-  public BitSequence toBitSequence()
-  {
-    // Should never be called
-    return null;
-  }
-
-  @Override
-  public int fromBitSequence(BitSequence bs) throws ReadException
-  {
-    // Should never be called
-    return 0;
-  }
-
-  @Override
-  public int getSize()
-  {
-    return 0;
-  }
-  
-  @Override
-  public String toString()
-  {
-    StringBuilder out = new StringBuilder();
-    out.append("Segment type: placeholder (not received yet)\n");
-    out.append("Sequence number: ").append(m_sequenceNumber).append("\n");
-    return out.toString();
-  }
+  /**
+   * Sends a frame over the communication channel. This method is called
+   * by the scheduler's thread, and should not block for long.
+   * @param frame The frame, as a sequence of bits
+   */
+  public void send(BitSequence frame);
 }
@@ -18,7 +18,9 @@
 package ca.uqac.lif.buffertannen.protocol;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
 import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.ReadException;
 
 public class MessageSegment extends Segment
@@ -28,6 +30,11 @@ public class MessageSegment extends Segment
   public static final int MAX_LENGTH = (int) Math.pow(2, LENGTH_WIDTH);
   public static final int SCHEMA_WIDTH = 4;
   
+  /**
+   * The size of the header of a message segment, in bits
+   */
+  public static final int HEADER_SIZE = TYPE_WIDTH + SEQUENCE_WIDTH + SCHEMA_WIDTH + LENGTH_WIDTH;
+  
   /**
    * The contents of this message segment. This is stored as a bit sequence,
    * since the schema used to encode the underlying message may not be
@@ -43,7 +50,7 @@ public class MessageSegment extends Segment
   @Override
   public int getSize()
   {
-    return TYPE_WIDTH + SEQUENCE_WIDTH + SCHEMA_WIDTH + LENGTH_WIDTH + m_contents.size();
+    return HEADER_SIZE + m_contents.size();
   }
   
   /**
@@ -54,6 +61,7 @@ public class MessageSegment extends Segment
   public void setContents(BitSequence contents)
   {
     m_contents = contents;
+    invalidateEncoding();
   }
   
   /**
@@ -73,6 +81,7 @@ public class MessageSegment extends Segment
   public void setSchemaNumber(int number)
   {
     m_schemaNumber = number;
+    invalidateEncoding();
   }
   
   /**
@@ -85,77 +94,65 @@ public class MessageSegment extends Segment
   }
 
   @Override
-  public BitSequence toBitSequence()
+  public void writeTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = new BitSequence();
     int length = m_contents.size();
     if (length > MAX_LENGTH)
     {
       // Contents too long for maximum segment length: fail
-      return null;
+      throw new BitFormatException("Segment contents too long");
     }
     if (m_sequenceNumber < 0 || m_sequenceNumber > MAX_SEQUENCE)
     {
       // Sequence number outside of range: fail
-      return null;
-    }
-    try
-    {
-      // Write segment type number
-      out.addAll(new BitSequence(SEGMENT_MESSAGE, TYPE_WIDTH));
-      // Write sequence number
-      out.addAll(new BitSequence(m_sequenceNumber, SEQUENCE_WIDTH));
-      // Write length
-      out.addAll(new BitSequence(length, LENGTH_WIDTH));
-      // Write schema number
-      out.addAll(new BitSequence(m_schemaNumber, SCHEMA_WIDTH));
-      // Write contents
-      out.addAll(m_contents);
-    }
-    catch (BitFormatException e)
-    {
-      // Do nothing
+      throw new BitFormatException("Sequence number out of range");
     }
-    return out;
+    // Write segment type number
+    w.writeBits(SEGMENT_MESSAGE, TYPE_WIDTH);
+    // Write sequence number
+    w.writeBits(m_sequenceNumber, SEQUENCE_WIDTH);
+    // Write length
+    w.writeBits(length, LENGTH_WIDTH);
+    // Write schema number
+    w.writeBits(m_schemaNumber, SCHEMA_WIDTH);
+    // Write contents
+    w.write(m_contents);
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs) throws ReadException
+  public int fromBitSequence(BitReader r) throws ReadException
   {
-    BitSequence data;
+    invalidateEncoding();
     int bits_read = 0;
     // Segment type number was already consumed by the frame reading method,
     // so we don't need to process it here
     // Read sequence number
-    if (bs.size() < SEQUENCE_WIDTH)
+    if (r.remaining() < SEQUENCE_WIDTH)
     {
       throw new ReadException("Cannot read segment sequence number");
     }
-    data = bs.truncatePrefix(SEQUENCE_WIDTH);
+    m_sequenceNumber = r.readBits(SEQUENCE_WIDTH);
     bits_read += SEQUENCE_WIDTH;
-    m_sequenceNumber = data.intValue();
     // Read length
-    if (bs.size() < LENGTH_WIDTH)
+    if (r.remaining() < LENGTH_WIDTH)
     {
       throw new ReadException("Cannot read segment length");
     }
-    data = bs.truncatePrefix(LENGTH_WIDTH);
+    int length = r.readBits(LENGTH_WIDTH);
     bits_read += LENGTH_WIDTH;
-    int length = data.intValue();
     // Read schema number
-    if (bs.size() < SCHEMA_WIDTH)
+    if (r.remaining() < SCHEMA_WIDTH)
     {
       throw new ReadException("Cannot read schema number");
     }
-    data = bs.truncatePrefix(SCHEMA_WIDTH);
+    m_schemaNumber = r.readBits(SCHEMA_WIDTH);
     bits_read += SCHEMA_WIDTH;
-    m_schemaNumber = data.intValue();
     // Read contents
-    if (bs.size() < length)
+    if (r.remaining() < length)
     {
       throw new ReadException("Bit sequence shorter than segment declared length");
     }
-    m_contents = bs.truncatePrefix(length);
+    m_contents = r.readSequence(length);
     bits_read += length;
     return bits_read;
   }
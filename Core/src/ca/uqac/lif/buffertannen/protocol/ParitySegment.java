@@ -0,0 +1,200 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
+import ca.uqac.lif.buffertannen.message.ReadException;
+
+/**
+ * Carries redundant data that allows a receiver to rebuild one lost
+ * segment out of a group of consecutive segments, without waiting for
+ * that segment to be repeated. The contents of a parity segment is the
+ * exclusive or of the encodings of all the segments in the group (the
+ * shorter ones being padded with zeros). XOR-ing it with the encodings
+ * of all the segments of the group but one yields the missing segment.
+ * <p>
+ * A parity segment is not a data segment: its sequence number is that
+ * of the first segment of the group it protects.
+ * @author sylvain
+ *
+ */
+public class ParitySegment extends Segment
+{
+  /**
+   * The number of bits used to encode the size of the group
+   */
+  public static final int COUNT_WIDTH = 8;
+  
+  /**
+   * The maximum number of segments in a group
+   */
+  public static final int MAX_COUNT = (int) Math.pow(2, COUNT_WIDTH);
+  
+  /**
+   * The number of bits used to encode the length of the parity data
+   */
+  public static final int LENGTH_WIDTH = 12;
+  
+  /**
+   * The maximum length of the parity data
+   */
+  public static final int MAX_LENGTH = (int) Math.pow(2, LENGTH_WIDTH) - 1;
+  
+  /**
+   * The size of the header of a parity segment, in bits
+   */
+  public static final int HEADER_SIZE = TYPE_WIDTH + SEQUENCE_WIDTH + COUNT_WIDTH + LENGTH_WIDTH;
+  
+  /**
+   * The number of segments in the group
+   */
+  protected int m_count = 1;
+  
+  /**
+   * The exclusive or of the encodings of the segments in the group
+   */
+  protected BitSequence m_contents = new BitSequence();
+  
+  public ParitySegment()
+  {
+    super();
+  }
+  
+  /**
+   * Returns the number of segments in the group protected by this
+   * parity segment
+   * @return The number of segments
+   */
+  public int getCount()
+  {
+    return m_count;
+  }
+  
+  /**
+   * Sets the number of segments in the group protected by this
+   * parity segment
+   * @param count The number of segments
+   */
+  public void setCount(int count)
+  {
+    m_count = count;
+    invalidateEncoding();
+  }
+  
+  /**
+   * Returns the parity data
+   * @return The exclusive or of the encodings of the segments in the
+   *   group
+   */
+  public BitSequence getContents()
+  {
+    return m_contents;
+  }
+  
+  /**
+   * Sets the parity data
+   * @param bs The exclusive or of the encodings of the segments in the
+   *   group
+   */
+  public void setContents(BitSequence bs)
+  {
+    m_contents = bs;
+    invalidateEncoding();
+  }
+  
+  /**
+   * Determines if a sequence number belongs to the group protected by
+   * this parity segment
+   * @param seq_no The sequence number
+   * @return true if the segment is part of the group
+   */
+  public boolean covers(int seq_no)
+  {
+    int d = Segment.sequenceDistance(m_sequenceNumber, seq_no);
+    return d >= 0 && d < m_count;
+  }
+  
+  @Override
+  public int getSize()
+  {
+    return HEADER_SIZE + m_contents.size();
+  }
+
+  @Override
+  public void writeTo(BitWriter w) throws BitFormatException
+  {
+    int length = m_contents.size();
+    if (length > MAX_LENGTH)
+    {
+      // Contents too long for maximum segment length: fail
+      throw new BitFormatException("Segment contents too long");
+    }
+    if (m_sequenceNumber < 0 || m_sequenceNumber >= MAX_SEQUENCE)
+    {
+      // Sequence number outside of range: fail
+      throw new BitFormatException("Sequence number out of range");
+    }
+    if (m_count < 1 || m_count > MAX_COUNT)
+    {
+      throw new BitFormatException("Group size out of range");
+    }
+    // Write segment type number
+    w.writeBits(SEGMENT_PARITY, TYPE_WIDTH);
+    // Write sequence number of the first segment of the group
+    w.writeBits(m_sequenceNumber, SEQUENCE_WIDTH);
+    // Write size of the group, minus one
+    w.writeBits(m_count - 1, COUNT_WIDTH);
+    // Write length and contents
+    w.writeBits(length, LENGTH_WIDTH);
+    w.write(m_contents);
+  }
+
+  @Override
+  public int fromBitSequence(BitReader r) throws ReadException
+  {
+    invalidateEncoding();
+    // Segment type number was already consumed by the frame reading method,
+    // so we don't need to process it here
+    if (r.remaining() < HEADER_SIZE - TYPE_WIDTH)
+    {
+      throw new ReadException("Cannot read parity segment header");
+    }
+    m_sequenceNumber = r.readBits(SEQUENCE_WIDTH);
+    m_count = r.readBits(COUNT_WIDTH) + 1;
+    int length = r.readBits(LENGTH_WIDTH);
+    if (r.remaining() < length)
+    {
+      throw new ReadException("Bit sequence shorter than segment declared length");
+    }
+    m_contents = r.readSequence(length);
+    return HEADER_SIZE - TYPE_WIDTH + length;
+  }
+  
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    out.append("Segment type: parity\n");
+    out.append("Sequence number: ").append(m_sequenceNumber).append("\n");
+    out.append("Group size: ").append(m_count).append("\n");
+    return out.toString();
+  }
+}
@@ -0,0 +1,235 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.ReadException;
+
+/**
+ * Rebuilds lost segments from parity segments. The store remembers the
+ * most recent segments received, along with the parity segments whose
+ * group is not yet complete. As soon as all the segments of a group but
+ * one have been received, the missing one is computed from the parity
+ * data.
+ * @author sylvain
+ *
+ */
+/*package*/ class ParityStore
+{
+  /**
+   * The number of recent segments remembered. This must be at least
+   * the size of the largest group.
+   */
+  public static final int WINDOW = 2 * ParitySegment.MAX_COUNT;
+  
+  /**
+   * The default number of incomplete groups remembered
+   */
+  public static final int DEFAULT_CAPACITY = 8;
+  
+  /**
+   * The most recent segments received, indexed by sequence number
+   * modulo the size of the window
+   */
+  protected Segment[] m_segments;
+  
+  /**
+   * The parity segments whose group has at least one missing segment,
+   * from the oldest to the most recent
+   */
+  protected LinkedList<ParitySegment> m_pending;
+  
+  /**
+   * The maximum number of incomplete groups remembered
+   */
+  protected int m_capacity;
+  
+  /**
+   * Number of segments rebuilt from parity data
+   */
+  protected int m_recovered = 0;
+  
+  public ParityStore()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * Creates a parity store
+   * @param capacity The maximum number of incomplete groups remembered
+   */
+  public ParityStore(int capacity)
+  {
+    super();
+    m_segments = new Segment[WINDOW];
+    m_pending = new LinkedList<ParitySegment>();
+    m_capacity = Math.max(1, capacity);
+  }
+  
+  /**
+   * Returns the number of segments rebuilt from parity data so far
+   * @return The number of segments
+   */
+  public int getRecovered()
+  {
+    return m_recovered;
+  }
+  
+  /**
+   * Remembers a segment received
+   * @param seg The segment
+   */
+  public void put(Segment seg)
+  {
+    int seq_no = seg.getSequenceNumber();
+    m_segments[seq_no % WINDOW] = seg;
+  }
+  
+  /**
+   * Remembers a parity segment received. If the store already holds
+   * as many incomplete groups as it can, the oldest one is forgotten.
+   * @param ps The parity segment
+   */
+  public void putParity(ParitySegment ps)
+  {
+    for (ParitySegment p : m_pending)
+    {
+      if (p.getSequenceNumber() == ps.getSequenceNumber() && p.getCount() == ps.getCount())
+      {
+        // Repetition of a parity segment already received
+        return;
+      }
+    }
+    if (m_pending.size() >= m_capacity)
+    {
+      m_pending.removeFirst();
+    }
+    m_pending.add(ps);
+  }
+  
+  /**
+   * Gets the segment with given sequence number, if it was received
+   * recently
+   * @param seq_no The sequence number
+   * @return The segment, or null if it was not received
+   */
+  protected Segment get(int seq_no)
+  {
+    Segment seg = m_segments[seq_no % WINDOW];
+    if (seg != null && seg.getSequenceNumber() == seq_no)
+    {
+      return seg;
+    }
+    return null;
+  }
+  
+  /**
+   * Attempts to rebuild a missing segment. Groups whose segments have
+   * all been received are forgotten.
+   * @return A segment rebuilt from parity data, or null if no group
+   *   is missing exactly one segment
+   */
+  public Segment recover()
+  {
+    Iterator<ParitySegment> it = m_pending.iterator();
+    while (it.hasNext())
+    {
+      ParitySegment ps = it.next();
+      int missing = -1, num_missing = 0;
+      int seq_no = ps.getSequenceNumber();
+      for (int i = 0; i < ps.getCount(); i++)
+      {
+        if (get(seq_no) == null)
+        {
+          missing = seq_no;
+          num_missing++;
+        }
+        seq_no = Segment.nextSequence(seq_no);
+      }
+      if (num_missing == 0)
+      {
+        it.remove();
+      }
+      else if (num_missing == 1)
+      {
+        it.remove();
+        Segment seg = rebuild(ps, missing);
+        if (seg != null)
+        {
+          put(seg);
+          m_recovered++;
+          return seg;
+        }
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Computes the missing segment of a group
+   * @param ps The parity segment of the group
+   * @param missing The sequence number of the missing segment
+   * @return The segment, or null if it cannot be decoded
+   */
+  protected Segment rebuild(ParitySegment ps, int missing)
+  {
+    BitSequence bs = new BitSequence(ps.getContents());
+    int seq_no = ps.getSequenceNumber();
+    try
+    {
+      for (int i = 0; i < ps.getCount(); i++)
+      {
+        if (seq_no != missing)
+        {
+          bs.xor(get(seq_no).getEncoding());
+        }
+        seq_no = Segment.nextSequence(seq_no);
+      }
+      // The encoding of the missing segment, followed by padding
+      BitReader r = new BitReader(bs);
+      if (r.remaining() < Segment.TYPE_WIDTH)
+      {
+        return null;
+      }
+      Segment seg = Segment.newSegment(r.readBits(Segment.TYPE_WIDTH));
+      if (seg == null || seg instanceof FragmentSegment || seg instanceof ParitySegment)
+      {
+        return null;
+      }
+      seg.fromBitSequence(r);
+      if (seg.getSequenceNumber() != missing)
+      {
+        return null;
+      }
+      return seg;
+    }
+    catch (BitFormatException e)
+    {
+      return null;
+    }
+    catch (ReadException e)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The buffer of segments waiting to be sent by a sender, split into
+ * several priority levels. Each level is a FIFO queue. Frames are
+ * filled using weighted round robin: each level in turn gets to put its
+ * segments first into a number of frames proportional to its weight,
+ * and the room left in a frame goes to the other levels, from the most
+ * to the least urgent. A level with pending segments is hence never
+ * starved, while the more urgent ones get most of the bandwidth.
+ * @author sylvain
+ *
+ */
+/*package*/ class PriorityBuffer
+{
+  /**
+   * The segments waiting at each level, level 0 being the most urgent
+   */
+  protected final LinkedList<Segment>[] m_queues;
+  
+  /**
+   * The weight of each level
+   */
+  protected int[] m_weights;
+  
+  /**
+   * The number of frames each level can still lead before the
+   * weights are replenished
+   */
+  protected int[] m_credits;
+  
+  /**
+   * Creates a priority buffer
+   * @param weights The weight of each level, from the most to the least
+   *   urgent
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public PriorityBuffer(int[] weights)
+  {
+    super();
+    m_queues = new LinkedList[weights.length];
+    for (int i = 0; i < weights.length; i++)
+    {
+      m_queues[i] = new LinkedList<Segment>();
+    }
+    setWeights(weights);
+  }
+  
+  /**
+   * Sets the weight of each level
+   * @param weights The weights, from the most to the least urgent
+   *   level. Missing weights are set to 1.
+   */
+  public void setWeights(int[] weights)
+  {
+    m_weights = new int[m_queues.length];
+    for (int i = 0; i < m_queues.length; i++)
+    {
+      m_weights[i] = i < weights.length ? Math.max(1, weights[i]) : 1;
+    }
+    m_credits = m_weights.clone();
+  }
+  
+  /**
+   * Adds a segment at the end of a level
+   * @param seg The segment
+   * @param level The level
+   */
+  public void add(Segment seg, int level)
+  {
+    m_queues[level].add(seg);
+  }
+  
+  /**
+   * Gets the segments waiting at some level
+   * @param level The level
+   * @return The segments
+   */
+  public LinkedList<Segment> getQueue(int level)
+  {
+    return m_queues[level];
+  }
+  
+  /**
+   * Returns the number of levels
+   * @return The number of levels
+   */
+  public int getLevels()
+  {
+    return m_queues.length;
+  }
+  
+  /**
+   * Returns the number of segments waiting, all levels included
+   * @return The number of segments
+   */
+  public int size()
+  {
+    int out = 0;
+    for (LinkedList<Segment> q : m_queues)
+    {
+      out += q.size();
+    }
+    return out;
+  }
+  
+  /**
+   * Determines if no segment is waiting, at any level
+   * @return true if the buffer is empty
+   */
+  public boolean isEmpty()
+  {
+    for (LinkedList<Segment> q : m_queues)
+    {
+      if (!q.isEmpty())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Moves segments from the buffer into a frame
+   * @param packer The strategy used to choose the segments within a level
+   * @param f The frame to fill
+   * @param capacity The number of bits available in the frame
+   * @param discarded The list where to add the segments removed because
+   *   they can never fit into a frame. May be null.
+   * @return The number of bits used in the frame
+   */
+  public int pack(FramePacker packer, Frame f, int capacity, List<Segment> discarded)
+  {
+    int lead = nextLead();
+    if (lead < 0)
+    {
+      return 0;
+    }
+    int total_size = packer.pack(m_queues[lead], f, capacity, discarded);
+    for (int i = 0; i < m_queues.length; i++)
+    {
+      LinkedList<Segment> q = m_queues[i];
+      // Only levels whose next segment fits in the room left; the
+      // packer would otherwise discard it as too large
+      if (i != lead && !q.isEmpty() && total_size + q.getFirst().getSize() <= capacity)
+      {
+        total_size += packer.pack(q, f, capacity - total_size, discarded);
+      }
+    }
+    return total_size;
+  }
+  
+  /**
+   * Picks the level whose segments go first into the next frame
+   * @return The level, or -1 if the buffer is empty
+   */
+  protected int nextLead()
+  {
+    for (int round = 0; round < 2; round++)
+    {
+      for (int i = 0; i < m_queues.length; i++)
+      {
+        if (m_credits[i] > 0 && !m_queues[i].isEmpty())
+        {
+          m_credits[i]--;
+          return i;
+        }
+      }
+      // Every non-empty level has used its share: start a new round
+      m_credits = m_weights.clone();
+    }
+    return -1;
+  }
+  
+  /**
+   * Removes all the segments from the buffer
+   */
+  public void clear()
+  {
+    for (LinkedList<Segment> q : m_queues)
+    {
+      q.clear();
+    }
+  }
+}
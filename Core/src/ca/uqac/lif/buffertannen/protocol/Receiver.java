@@ -19,13 +19,14 @@ package ca.uqac.lif.buffertannen.protocol;
 
 import java.io.PrintStream;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
 import ca.uqac.lif.buffertannen.message.BitSequence;
 import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.Schema;
 import ca.uqac.lif.buffertannen.message.SchemaElement;
 
 /**
@@ -38,19 +39,32 @@ import ca.uqac.lif.buffertannen.message.SchemaElement;
 public class Receiver
 {
   /**
-   * A circular buffer of segments received
+   * A circular buffer of segments received, indexed by sequence number
    */
-  protected LinkedList<Segment> m_receivedSegments;
+  protected SegmentBuffer m_receivedSegments;
+  
+  /**
+   * The highest sequence number inserted in the buffer of
+   * received segments
+   */
+  protected int m_highestSequenceNumber = -1;
 
   /**
-   * A buffer of reference messages received (used to process delta-segments)
+   * A buffer of the most recent reference messages received, along
+   * with their schemas (used to process delta-segments)
    */
-  protected Map<Integer,SchemaElement> m_referenceMessages;
+  protected ReferenceStore m_references;
   
   /**
-   * A buffer of reference schema elements received (used to process delta-segments)
+   * The segments being rebuilt from their fragments
    */
-  protected Map<Integer,SchemaElement> m_referenceSchemas;
+  protected FragmentAssembler m_fragments;
+  
+  /**
+   * The recent segments and parity segments used to rebuild
+   * lost segments
+   */
+  protected ParityStore m_parity;
 
   /**
    * A list that will contain the received messages,
@@ -117,7 +131,7 @@ public class Receiver
   /**
    * The bank of schemas to interpret the messages
    */
-  protected Map<Integer,SchemaElement> m_schemas;
+  protected Map<Integer,Schema> m_schemas;
   
   /**
    * The maximum length of a frame, in bits
@@ -186,6 +200,11 @@ public class Receiver
    */
   protected int m_deltaSegmentsReceived = 0;
   
+  /**
+   * Number of fragment segments received
+   */
+  protected int m_fragmentsReceived = 0;
+  
   /**
    * The print stream to output messages from the receiver
    * (typically System.out or System.err, or null to
@@ -196,10 +215,11 @@ public class Receiver
   public Receiver()
   {
     super();
-    m_schemas = new HashMap<Integer,SchemaElement>();
-    m_receivedSegments = new LinkedList<Segment>();
-    m_referenceMessages = new HashMap<Integer,SchemaElement>();
-    m_referenceSchemas = new HashMap<Integer,SchemaElement>();
+    m_schemas = new HashMap<Integer,Schema>();
+    m_receivedSegments = new SegmentBuffer();
+    m_references = new ReferenceStore();
+    m_fragments = new FragmentAssembler();
+    m_parity = new ParityStore();
     m_receivedMessages = new LinkedList<SchemaElement>();
     m_binaryBuffer = new BitSequence();
   }
@@ -253,6 +273,86 @@ public class Receiver
     return m_deltaSegmentBitsReceived;
   }
   
+  /**
+   * Sets the number of reference messages kept by the receiver to
+   * decode delta segments. A delta segment that refers to a message
+   * older than this cannot be decoded. This value should hence be
+   * greater than the sender's delta segment interval plus the
+   * receiver's lost interval.
+   * @param window The number of messages; it is rounded up to a power
+   *   of two
+   */
+  public void setReferenceWindow(int window)
+  {
+    m_references.setWindow(window);
+  }
+  
+  /**
+   * Returns the number of times a delta segment found its reference
+   * message
+   * @return The number of hits
+   */
+  public int getReferenceHits()
+  {
+    return m_references.getHits();
+  }
+  
+  /**
+   * Returns the number of times a delta segment could not find its
+   * reference message. A delta segment waiting for its reference is
+   * counted each time the receiver attempts to process it.
+   * @return The number of misses
+   */
+  public int getReferenceMisses()
+  {
+    return m_references.getMisses();
+  }
+  
+  /**
+   * Returns the number of reference messages discarded to make room
+   * for more recent ones
+   * @return The number of evictions
+   */
+  public int getReferenceEvictions()
+  {
+    return m_references.getEvictions();
+  }
+  
+  public int getNumberOfFragments()
+  {
+    return m_fragmentsReceived;
+  }
+  
+  /**
+   * Sets the delay after which a segment whose fragments have not all
+   * been received is abandoned
+   * @param timeout The delay, in milliseconds
+   */
+  public void setFragmentTimeout(long timeout)
+  {
+    m_fragments.setTimeout(timeout);
+  }
+  
+  /**
+   * Returns the number of segments abandoned because some of their
+   * fragments were never received
+   * @return The number of segments
+   */
+  public int getFragmentedSegmentsLost()
+  {
+    return m_fragments.getDiscarded();
+  }
+  
+  /**
+   * Returns the number of lost segments that were rebuilt from
+   * parity segments
+   * @return The number of segments
+   */
+  public int getNumberOfRecoveredSegments()
+  {
+    return m_parity.getRecovered();
+  }
+  
   public int getNumberOfRawBits()
   {
     return m_rawBitsReceived;
@@ -302,7 +402,7 @@ public class Receiver
     m_rawBitsReceived += bs.size();
     try
     {
-      f.fromBitSequence(bs);
+      f.fromBitSequence(new BitReader(bs));
     }
     catch (ReadException e)
     {
@@ -346,31 +446,9 @@ public class Receiver
       return null;
     }
     boolean[] out = new boolean[m_totalSegments];
-    int i = 0;
-    for (; i <= m_lastProcessedSequenceNumber; i++)
-    {
-      out[i] = true;
-    }
-    for (Segment seg : m_receivedSegments)
-    {
-      int seq_no = seg.getSequenceNumber();
-      if (i != seq_no)
-      {
-        System.err.println("ERROR: unexpected sequence number");
-      }
-      if (seg instanceof PlaceholderSegment)
-      {
-        out[i] = false;
-      }
-      else
-      {
-        out[i] = true;
-      }
-      i++;
-    }
-    for (int j = i; j < m_totalSegments; j++)
+    for (int i = 0; i < m_totalSegments; i++)
     {
-      out[j] = false;
+      out[i] = i <= m_lastProcessedSequenceNumber || m_receivedSegments.contains(i);
     }
     return out;
   }
@@ -401,23 +479,29 @@ public class Receiver
     m_resourceIdentifier = f.getResourceIdentifier();
     for (Segment seg : f)
     {
-      if (seg instanceof SchemaSegment)
+      if (seg instanceof ParitySegment)
       {
-        // Update schema bank with received schema segment
-        SchemaSegment ss = (SchemaSegment) seg;
-        SchemaElement se = ss.getSchema();
-        int s_number = ss.getSchemaNumber();
-        m_schemas.put(s_number, se);
-        // Update stats
-        m_schemaSegmentsReceived++;
-        m_schemaSegmentBitsReceived += ss.getSize();
-        printMessage("Received schema " + s_number, 2);   
+        m_parity.putParity((ParitySegment) seg);
+        continue;
       }
-      else
+      if (seg instanceof FragmentSegment)
       {
-        // Insert/replace segment in buffer at proper location
-        insertInBuffer(seg);
+        // Keep the fragment until the whole segment is received
+        seg = reassemble((FragmentSegment) seg);
+        if (seg == null)
+        {
+          continue;
+        }
       }
+      putSegment(seg);
+    }
+    // Rebuild the segments that can be computed from parity data
+    Segment recovered = m_parity.recover();
+    while (recovered != null)
+    {
+      printMessage("Recovered segment " + recovered.getSequenceNumber() + " from parity data", 2);
+      insertInBuffer(recovered);
+      recovered = m_parity.recover();
     }
     // Check if some received segments can be processed
     if (m_receivedSegments.isEmpty())
@@ -425,14 +509,24 @@ public class Receiver
       // No
       return;
     }
-    // All segments with number lower than force_send_index still in the buffer
-    // must be sent
-    Segment last_segment = m_receivedSegments.peekLast();
-    int force_send_index = last_segment.getSequenceNumber() - m_lostInterval;
-    Iterator<Segment> seg_it = m_receivedSegments.iterator();
-    while (seg_it.hasNext())
+    // All segments more than m_lostInterval behind the highest sequence
+    // number still in the buffer must be sent
+    for (int seq_no = Segment.nextSequence(m_lastProcessedSequenceNumber); sequenceDistance(seq_no, m_highestSequenceNumber) >= 0; seq_no = Segment.nextSequence(seq_no))
     {
-      Segment seg = seg_it.next();
+      Segment seg = m_receivedSegments.get(seq_no);
+      if (seg == null)
+      {
+        if (mustProcess(seq_no))
+        {
+          // No segment there, but we are forced to process it
+          printMessage("Segment " + seq_no + " (of unknown type) declared lost", 2);
+          m_messagesLost++;
+          m_lastProcessedSequenceNumber = seq_no;
+          continue;
+        }
+        // No need to force sending: stop
+        break;
+      }
       if (seg instanceof BlobSegment)
       {
         // Blob segments are handled separately; their binary contents
@@ -444,7 +538,7 @@ public class Receiver
         m_lastProcessedSequenceNumber = seg_seq_no;
         m_blobSegmentBitsReceived += bs.size();
         printMessage("Processed blob segment " + seg_seq_no, 2);
-        seg_it.remove();
+        m_receivedSegments.remove(seg_seq_no);
       }
       else if (seg instanceof DeltaSegment)
       {
@@ -452,24 +546,17 @@ public class Receiver
         int seg_seq_no = ds.getSequenceNumber();
         int ref_segment_no = ds.getDeltaToWhat();
         // We can process delta segments only if we have the reference segment AND the schema
-        boolean contains_ref_message = m_referenceMessages.containsKey(ref_segment_no);
-        boolean contains_ref_schema = m_referenceSchemas.containsKey(ref_segment_no);
-        if (!contains_ref_message || !contains_ref_schema)
+        SchemaElement reference_element = m_references.getMessage(ref_segment_no);
+        Schema reference_schema = m_references.getSchema(ref_segment_no);
+        if (reference_element == null || reference_schema == null)
         {
-          if (!contains_ref_message)
-          {
-            printMessage("Cannot process delta segment " + ds.getSequenceNumber() + ": missing reference segment " + ref_segment_no, 2);
-          }
-          if (!contains_ref_schema)
-          {
-            printMessage("Cannot process delta segment " + ds.getSequenceNumber() + ": missing reference schema", 2);
-          }
+          printMessage("Cannot process delta segment " + ds.getSequenceNumber() + ": missing reference segment " + ref_segment_no, 2);
           // We can't, because we are missing something
-          if (seg_seq_no < force_send_index)
+          if (mustProcess(seg_seq_no))
           {
             // We must process it right now; declare segment as lost
             printMessage("Delta segment " + seg_seq_no + " declared lost", 2);
-            seg_it.remove();
+            m_receivedSegments.remove(seg_seq_no);
             m_lastProcessedSequenceNumber = seg_seq_no;
             m_messagesLost++;
             continue;
@@ -480,28 +567,23 @@ public class Receiver
             break;
           }
         }
-        SchemaElement reference_schema = m_referenceSchemas.get(ref_segment_no);
-        SchemaElement reference_element = m_referenceMessages.get(ref_segment_no).copy();
-        SchemaElement delta_element = reference_schema.copy();
-        SchemaElement se = reference_schema.copy();
+        SchemaElement se = null;
         BitSequence bs = ds.getContents();
         int bits_received = bs.size();
         try
         {
-          SchemaElement.ElementInt ei = delta_element.readContentsFromBitSequence(bs, true);
-          delta_element = ei.m_element;
-          se.readContentsFromDelta(reference_element, delta_element);
+          se = reference_schema.decodeDelta(reference_element, new BitReader(bs));
         }
         catch (ReadException re)
         {
           printMessage("Failed to decode delta segment " + seg_seq_no, 1);
           re.printStackTrace();
           // We failed to decode the message: perhaps the schema is outdated
-          if (seg_seq_no < force_send_index)
+          if (mustProcess(seg_seq_no))
           {
             // We are forced to handle this segment
             printMessage("Delta segment " + seg_seq_no + " declared lost", 2);
-            seg_it.remove();
+            m_receivedSegments.remove(seg_seq_no);
             m_lastProcessedSequenceNumber = seg_seq_no;
             m_messagesLost++;
             continue;
@@ -510,14 +592,13 @@ public class Receiver
           break;
         }
         // We decoded the segment successfully
-        m_referenceMessages.put(seg_seq_no, se);
-        m_referenceSchemas.put(seg_seq_no, reference_schema);
+        m_references.put(seg_seq_no, se, reference_schema);
         printMessage("Successfully processed delta segment " + seg_seq_no, 2);
         m_deltaSegmentBitsReceived += bits_received;
         m_deltaSegmentsReceived++;
         m_receivedMessages.add(se);
         m_lastProcessedSequenceNumber = seg_seq_no;
-        seg_it.remove();
+        m_receivedSegments.remove(seg_seq_no);
       }
       else if (seg instanceof MessageSegment)
       {
@@ -526,23 +607,23 @@ public class Receiver
         int schema_number = ms.getSchemaNumber();
         if (m_schemas.containsKey(schema_number))
         {
-          SchemaElement ref_schema = m_schemas.get(schema_number).copy();
-          SchemaElement se = m_schemas.get(schema_number).copy();
+          Schema schema = m_schemas.get(schema_number);
+          SchemaElement se = null;
           BitSequence bs = ms.getContents();
           int bits_received = bs.size();
           try
           {
-            se.fromBitSequence(bs);
+            se = schema.decode(new BitReader(bs));
           }
           catch (ReadException re)
           {
             // We failed to decode the message
-            if (seg_seq_no < force_send_index)
+            if (mustProcess(seg_seq_no))
             {
               // We are forced to handle this segment
               printMessage("Message segment " + seg_seq_no + " declared lost", 2);
               m_lastProcessedSequenceNumber = seg_seq_no;
-              seg_it.remove();
+              m_receivedSegments.remove(seg_seq_no);
               m_messagesLost++;
               continue;
             }
@@ -550,24 +631,23 @@ public class Receiver
             break;
           }
           // We decoded the segment successfully
-          m_referenceMessages.put(seg_seq_no, se);
-          m_referenceSchemas.put(seg_seq_no, ref_schema);
+          m_references.put(seg_seq_no, se, schema);
           printMessage("Successfully processed message segment " + seg_seq_no, 2);
           m_messageSegmentBitsReceived += bits_received;
           m_messageSegmentsReceived++;
           m_receivedMessages.add(se);
           m_lastProcessedSequenceNumber = seg_seq_no;
-          seg_it.remove();
+          m_receivedSegments.remove(seg_seq_no);
         }
         else
         {
           // We failed to decode the message
-          if (seg_seq_no < force_send_index)
+          if (mustProcess(seg_seq_no))
           {
             // We are forced to handle this segment
             printMessage("Message segment " + seg_seq_no + " declared lost", 2);
             m_lastProcessedSequenceNumber = seg_seq_no;
-            seg_it.remove();
+            m_receivedSegments.remove(seg_seq_no);
             m_messagesLost++;
             continue;
           }
@@ -575,26 +655,103 @@ public class Receiver
           break;
         }
       }
-      else if (seg instanceof PlaceholderSegment)
+    }
+  }
+  
+  /**
+   * Handles a segment received in a frame, or rebuilt from fragments
+   * @param seg The segment
+   */
+  protected void putSegment(Segment seg)
+  {
+    if (seg instanceof SchemaSegment)
+    {
+      // Update schema bank with received schema segment
+      SchemaSegment ss = (SchemaSegment) seg;
+      SchemaElement se = ss.getSchema();
+      int s_number = ss.getSchemaNumber();
+      m_schemas.put(s_number, new Schema(se));
+      // Update stats
+      m_schemaSegmentsReceived++;
+      m_schemaSegmentBitsReceived += ss.getSize();
+      printMessage("Received schema " + s_number, 2);   
+    }
+    else
+    {
+      // Insert/replace segment in buffer at proper location
+      insertInBuffer(seg);
+      // Remember it, in case it is needed to rebuild a missing segment
+      m_parity.put(seg);
+    }
+  }
+  
+  /**
+   * Adds a fragment to the segments being reassembled
+   * @param fs The fragment
+   * @return The original segment, if all its fragments have now been
+   *   received, null otherwise
+   */
+  protected Segment reassemble(FragmentSegment fs)
+  {
+    int seg_seq_no = fs.getSequenceNumber();
+    if (m_highestSequenceNumber >= 0 && sequenceDistance(m_lastProcessedSequenceNumber, seg_seq_no) <= 0)
+    {
+      // The segment has already been processed, or declared lost
+      m_fragments.remove(seg_seq_no);
+      return null;
+    }
+    if (m_receivedSegments.contains(seg_seq_no))
+    {
+      // The segment has already been reassembled
+      return null;
+    }
+    m_fragmentsReceived++;
+    try
+    {
+      Segment seg = m_fragments.add(fs, System.currentTimeMillis());
+      if (seg != null)
       {
-        int seg_seq_no = seg.getSequenceNumber();
-        if (seg_seq_no < force_send_index)
-        {
-          // No segment there, but we are forced to process it
-          printMessage("Segment " + seg_seq_no + " (of unknown type) declared lost", 2);
-          m_messagesLost++;
-          m_lastProcessedSequenceNumber = seg_seq_no;
-          seg_it.remove();
-        }
-        else
-        {
-          // No need to force sending: stop
-          break;
-        }
+        printMessage("Reassembled segment " + seg_seq_no + " from " + fs.getCount() + " fragments", 2);
       }
+      return seg;
+    }
+    catch (ReadException e)
+    {
+      printMessage("Failed to reassemble segment " + seg_seq_no, 1);
+      return null;
     }
   }
   
+  /**
+   * Computes the distance between two sequence numbers. In stream mode,
+   * sequence numbers wrap around and are compared using serial number
+   * arithmetic; in lake mode, the whole transmission fits within the
+   * sequence space and they are compared as plain integers.
+   * @param from The first sequence number
+   * @param to The second sequence number
+   * @return The number of steps to go from <tt>from</tt> to <tt>to</tt>
+   */
+  protected int sequenceDistance(int from, int to)
+  {
+    if (m_totalSegments > 0)
+    {
+      return to - from;
+    }
+    return Segment.sequenceDistance(from, to);
+  }
+  
+  /**
+   * Determines if a segment still in the buffer is so far behind
+   * the highest sequence number received that it must be processed
+   * (or declared lost) right now
+   * @param seq_no The sequence number of the segment
+   * @return true if the segment must be processed
+   */
+  protected boolean mustProcess(int seq_no)
+  {
+    return sequenceDistance(seq_no, m_highestSequenceNumber) > m_lostInterval;
+  }
+  
   /**
    * Insert a segment at the proper location in the segment buffer, based
    * on its sequential number.
@@ -604,55 +761,26 @@ public class Receiver
   {
     int seg_seq_no = seg.getSequenceNumber();
     m_lastSegmentNumberSeen = seg_seq_no;
-    if (seg_seq_no <= m_lastProcessedSequenceNumber)
+    if (m_highestSequenceNumber < 0 && sequenceDistance(m_lastProcessedSequenceNumber, seg_seq_no) <= 0)
+    {
+      // First segment received, and we joined a stream whose
+      // sequence numbers have already wrapped around: start from here
+      m_lastProcessedSequenceNumber = seg_seq_no - 1;
+    }
+    if (sequenceDistance(m_lastProcessedSequenceNumber, seg_seq_no) <= 0)
     {
       // We have already seen and processed that segment
       printMessage("Segment " + seg_seq_no + " already processed", 2);
       return;
     }
-    if (m_receivedSegments.isEmpty())
+    if (!m_receivedSegments.put(seg))
     {
-      for (int j = m_lastProcessedSequenceNumber + 1; j < seg_seq_no; j++)
-      {
-        // Insert placeholder segments if there is a gap between the
-        // segment to add
-        m_receivedSegments.add(new PlaceholderSegment(j));
-      } 
-      // Insert here
-      m_receivedSegments.add(seg);
+      printMessage("Segment " + seg_seq_no + " already in buffer", 2);
       return;
     }
-    int i = 0;
-    int list_seg_no = 0;
-    for (Segment list_seg : m_receivedSegments)
+    if (m_highestSequenceNumber < 0 || sequenceDistance(m_highestSequenceNumber, seg_seq_no) > 0)
     {
-      list_seg_no = list_seg.getSequenceNumber();
-      if (list_seg_no == seg_seq_no)
-      {
-        // Replace segment currently at that location by the one just received
-        if (list_seg instanceof PlaceholderSegment)
-        {
-          m_receivedSegments.remove(i);
-          m_receivedSegments.add(i, seg);
-        }
-        else
-        {
-          printMessage("Segment " + seg_seq_no + " already in buffer", 2);
-        }
-        break;
-      }
-      i++;
-    }
-    if (seg_seq_no > list_seg_no)
-    {
-      for (int j = list_seg_no + 1; j < seg_seq_no; j++)
-      {
-        // Insert placeholder segments if there is a gap between the
-        // segment to add and the last one received
-        m_receivedSegments.add(new PlaceholderSegment(j));
-      }
-      // Insert here
-      m_receivedSegments.add(seg);      
+      m_highestSequenceNumber = seg_seq_no;
     }
   }
 
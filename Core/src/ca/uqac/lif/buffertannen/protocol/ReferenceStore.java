@@ -0,0 +1,241 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import ca.uqac.lif.buffertannen.message.Schema;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+
+/**
+ * A bounded store of the reference messages used to decode delta
+ * segments. A delta segment always refers to a message sent shortly
+ * before it; hence the store only remembers the messages whose sequence
+ * number lies within a fixed-size window. It is organized as a circular
+ * buffer: the message with sequence number <i>n</i> goes into slot
+ * <i>n</i> mod <i>w</i>, where <i>w</i> is the size of the window, and
+ * evicts whatever message occupied that slot before. So that sequence
+ * numbers keep their slot when they wrap around, <i>w</i> is rounded
+ * up to a power of two no greater than {@link Segment#MAX_SEQUENCE}.
+ * @author sylvain
+ *
+ */
+/*package*/ class ReferenceStore
+{
+  /**
+   * The default number of messages kept in the store
+   */
+  public static final int DEFAULT_WINDOW = 64;
+
+  /**
+   * The sequence number of the message in each slot, or -1 if the
+   * slot is empty
+   */
+  protected int[] m_numbers;
+
+  /**
+   * The message in each slot
+   */
+  protected SchemaElement[] m_messages;
+
+  /**
+   * The schema of the message in each slot
+   */
+  protected Schema[] m_schemas;
+
+  /**
+   * Number of lookups that found the requested message
+   */
+  protected int m_hits = 0;
+
+  /**
+   * Number of lookups that did not find the requested message
+   */
+  protected int m_misses = 0;
+
+  /**
+   * Number of messages removed from the store to make room for a
+   * more recent one
+   */
+  protected int m_evictions = 0;
+
+  public ReferenceStore()
+  {
+    this(DEFAULT_WINDOW);
+  }
+
+  /**
+   * Creates a reference store
+   * @param window The number of messages kept in the store, rounded
+   *   up to a power of two
+   */
+  public ReferenceStore(int window)
+  {
+    super();
+    allocate(window);
+  }
+
+  /**
+   * Allocates empty slots
+   * @param window The minimum number of slots
+   */
+  protected void allocate(int window)
+  {
+    if (window < 1)
+    {
+      throw new IllegalArgumentException("Reference window must be positive");
+    }
+    // The window must divide the sequence space, otherwise two numbers
+    // less than a window apart across the wrap-around share a slot
+    int size = 1;
+    while (size < window && size < Segment.MAX_SEQUENCE)
+    {
+      size *= 2;
+    }
+    window = size;
+    m_numbers = new int[window];
+    m_messages = new SchemaElement[window];
+    m_schemas = new Schema[window];
+    for (int i = 0; i < window; i++)
+    {
+      m_numbers[i] = -1;
+    }
+  }
+
+  /**
+   * Returns the maximum number of messages kept in the store
+   * @return The number of messages
+   */
+  public int getWindow()
+  {
+    return m_numbers.length;
+  }
+
+  /**
+   * Changes the maximum number of messages kept in the store. The
+   * messages currently in the store are kept, unless the new window
+   * is too small to hold them all.
+   * @param window The number of messages, rounded up to a power of two
+   */
+  public void setWindow(int window)
+  {
+    int[] numbers = m_numbers;
+    SchemaElement[] messages = m_messages;
+    Schema[] schemas = m_schemas;
+    allocate(window);
+    for (int i = 0; i < numbers.length; i++)
+    {
+      if (numbers[i] >= 0)
+      {
+        put(numbers[i], messages[i], schemas[i]);
+      }
+    }
+  }
+
+  /**
+   * Computes the slot associated to a sequence number
+   * @param seq_no The sequence number
+   * @return The slot
+   */
+  protected int slot(int seq_no)
+  {
+    return seq_no % m_numbers.length;
+  }
+
+  /**
+   * Adds a message to the store
+   * @param seq_no The sequence number of the segment that carried
+   *   the message
+   * @param message The message
+   * @param schema The schema of the message
+   */
+  public void put(int seq_no, SchemaElement message, Schema schema)
+  {
+    int i = slot(seq_no);
+    if (m_numbers[i] >= 0 && m_numbers[i] != seq_no)
+    {
+      m_evictions++;
+    }
+    m_numbers[i] = seq_no;
+    m_messages[i] = message;
+    m_schemas[i] = schema;
+  }
+
+  /**
+   * Retrieves a message from the store
+   * @param seq_no The sequence number of the segment that carried
+   *   the message
+   * @return The message, or null if it is not (or no longer) in
+   *   the store
+   */
+  public SchemaElement getMessage(int seq_no)
+  {
+    int i = slot(seq_no);
+    if (m_numbers[i] != seq_no)
+    {
+      m_misses++;
+      return null;
+    }
+    m_hits++;
+    return m_messages[i];
+  }
+
+  /**
+   * Retrieves the schema of a message from the store. Contrarily to
+   * {@link #getMessage(int)}, this lookup is not counted in the
+   * store's statistics.
+   * @param seq_no The sequence number of the segment that carried
+   *   the message
+   * @return The schema, or null if the message is not (or no longer)
+   *   in the store
+   */
+  public Schema getSchema(int seq_no)
+  {
+    int i = slot(seq_no);
+    if (m_numbers[i] != seq_no)
+    {
+      return null;
+    }
+    return m_schemas[i];
+  }
+
+  /**
+   * Returns the number of lookups that found the requested message
+   * @return The number of hits
+   */
+  public int getHits()
+  {
+    return m_hits;
+  }
+
+  /**
+   * Returns the number of lookups that did not find the requested message
+   * @return The number of misses
+   */
+  public int getMisses()
+  {
+    return m_misses;
+  }
+
+  /**
+   * Returns the number of messages evicted from the store
+   * @return The number of evictions
+   */
+  public int getEvictions()
+  {
+    return m_evictions;
+  }
+}
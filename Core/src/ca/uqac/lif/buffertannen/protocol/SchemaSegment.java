@@ -18,8 +18,11 @@
 package ca.uqac.lif.buffertannen.protocol;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
 import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.Schema;
 import ca.uqac.lif.buffertannen.message.SchemaElement;
 
 public class SchemaSegment extends Segment
@@ -27,6 +30,12 @@ public class SchemaSegment extends Segment
   
   protected SchemaElement m_schema;
   
+  /**
+   * The binary encoding of the schema, or null if it has not been
+   * computed yet
+   */
+  protected BitSequence m_schemaBits = null;
+  
   protected int m_schemaNumber = -1;
   
   /**
@@ -43,7 +52,21 @@ public class SchemaSegment extends Segment
   @Override
   public int getSize()
   {
-    return SCHEMA_NUMBER_WIDTH + TYPE_WIDTH + SEQUENCE_WIDTH + m_schema.schemaToBitSequence().size();
+    return SCHEMA_NUMBER_WIDTH + TYPE_WIDTH + SEQUENCE_WIDTH + getSchemaBits().size();
+  }
+  
+  /**
+   * Returns the binary encoding of the schema, computing it if
+   * necessary
+   * @return The sequence of bits
+   */
+  protected BitSequence getSchemaBits()
+  {
+    if (m_schemaBits == null)
+    {
+      m_schemaBits = m_schema.schemaToBitSequence();
+    }
+    return m_schemaBits;
   }
   
   /**
@@ -58,6 +81,7 @@ public class SchemaSegment extends Segment
       return;
     }
     m_schemaNumber = number;
+    invalidateEncoding();
   }
   
   /**
@@ -76,6 +100,21 @@ public class SchemaSegment extends Segment
   public void setSchema(SchemaElement e)
   {
     m_schema = e;
+    m_schemaBits = null;
+    invalidateEncoding();
+  }
+  
+  /**
+   * Sets the schema advertised by this segment. Contrarily to
+   * {@link #setSchema(SchemaElement)}, the segment reuses the encoding
+   * already computed by the schema.
+   * @param s The schema
+   */
+  public void setSchema(Schema s)
+  {
+    m_schema = s.getTemplate();
+    m_schemaBits = s.toBitSequence();
+    invalidateEncoding();
   }
   
   /**
@@ -88,59 +127,49 @@ public class SchemaSegment extends Segment
   }
 
   @Override
-  public BitSequence toBitSequence()
+  public void writeTo(BitWriter w) throws BitFormatException
   {
-    BitSequence out = new BitSequence();
     if (m_schemaNumber < 0 || m_schemaNumber >= SCHEMA_NUMBER_MAX)
     {
       // Schema number out of range: fail
-      return null;
-    }
-    try
-    {
-      // Write segment type number
-      out.addAll(new BitSequence(SEGMENT_SCHEMA, TYPE_WIDTH));
-      // Write sequence number
-      out.addAll(new BitSequence(m_sequenceNumber, SEQUENCE_WIDTH));
-      // Write schema number
-      out.addAll(new BitSequence(m_schemaNumber, SCHEMA_NUMBER_WIDTH));
-    }
-    catch (BitFormatException e)
-    {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      throw new BitFormatException("Schema number out of range");
     }
-    out.addAll(m_schema.schemaToBitSequence());
-    return out;
+    // Write segment type number
+    w.writeBits(SEGMENT_SCHEMA, TYPE_WIDTH);
+    // Write sequence number
+    w.writeBits(m_sequenceNumber, SEQUENCE_WIDTH);
+    // Write schema number
+    w.writeBits(m_schemaNumber, SCHEMA_NUMBER_WIDTH);
+    // Write schema
+    w.write(getSchemaBits());
   }
 
   @Override
-  public int fromBitSequence(BitSequence bs) throws ReadException
+  public int fromBitSequence(BitReader r) throws ReadException
   {
+    invalidateEncoding();
     int bits_read = 0;
-    BitSequence data;
     // Segment type number was already consumed by the frame reading method,
     // so we don't need to process it here
     // Read sequence number
-    if (bs.size() < SEQUENCE_WIDTH)
+    if (r.remaining() < SEQUENCE_WIDTH)
     {
       throw new ReadException("Cannot read segment sequence number");
     }
-    data = bs.truncatePrefix(SEQUENCE_WIDTH);
+    m_sequenceNumber = r.readBits(SEQUENCE_WIDTH);
     bits_read += SEQUENCE_WIDTH;
-    m_sequenceNumber = data.intValue();
     // Read schema number
-    if (bs.size() < SCHEMA_NUMBER_WIDTH)
+    if (r.remaining() < SCHEMA_NUMBER_WIDTH)
     {
       throw new ReadException("Cannot read schema number");
     }
-    data = bs.truncatePrefix(SCHEMA_NUMBER_WIDTH);
+    m_schemaNumber = r.readBits(SCHEMA_NUMBER_WIDTH);
     bits_read += SCHEMA_NUMBER_WIDTH;
-    m_schemaNumber = data.intValue();
     // Read schema
-    SchemaElement.ElementInt ei = SchemaElement.bitSequenceToSchema(bs);
+    SchemaElement.ElementInt ei = SchemaElement.bitSequenceToSchema(r);
     bits_read += ei.m_int;
     m_schema = ei.m_element;
+    m_schemaBits = null;
     return bits_read;
   }
   
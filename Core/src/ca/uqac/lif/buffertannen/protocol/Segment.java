@@ -17,7 +17,10 @@
  */
 package ca.uqac.lif.buffertannen.protocol;
 
+import ca.uqac.lif.buffertannen.message.BitFormatException;
+import ca.uqac.lif.buffertannen.message.BitReader;
 import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.ReadException;
 
 public abstract class Segment
@@ -30,7 +33,9 @@ public abstract class Segment
   public static final int SEGMENT_MESSAGE = 1;
   public static final int SEGMENT_SCHEMA = 2;
   public static final int SEGMENT_DELTA = 3;
-  public static final int TYPE_WIDTH = 2;
+  public static final int SEGMENT_FRAGMENT = 4;
+  public static final int SEGMENT_PARITY = 5;
+  public static final int TYPE_WIDTH = 3;
   
   /**
    * The number of bits used to encode the sequence number
@@ -42,23 +47,161 @@ public abstract class Segment
    */
   public static final int MAX_SEQUENCE = (int) Math.pow(2, SEQUENCE_WIDTH);
   
+  /**
+   * Computes the sequence number that follows another one. Sequence
+   * numbers wrap around at {@link #MAX_SEQUENCE}.
+   * @param seq_no The sequence number
+   * @return The next sequence number
+   */
+  public static int nextSequence(int seq_no)
+  {
+    return (seq_no + 1) % MAX_SEQUENCE;
+  }
+  
+  /**
+   * Computes the signed distance between two sequence numbers, using
+   * serial number arithmetic (in the style of RFC 1982). Since sequence
+   * numbers wrap around at {@link #MAX_SEQUENCE}, <tt>to</tt> is
+   * considered to come after <tt>from</tt> if it can be reached by
+   * moving forward less than half the sequence space. For example,
+   * the distance from 4095 to 2 is 3, and the distance from 2 to 4095
+   * is -3.
+   * @param from The first sequence number
+   * @param to The second sequence number
+   * @return The number of steps to go from <tt>from</tt> to
+   *   <tt>to</tt>, between -{@link #MAX_SEQUENCE}/2 (exclusive) and
+   *   {@link #MAX_SEQUENCE}/2 (inclusive)
+   */
+  public static int sequenceDistance(int from, int to)
+  {
+    int d = (to - from) % MAX_SEQUENCE;
+    if (d <= -MAX_SEQUENCE / 2)
+    {
+      d += MAX_SEQUENCE;
+    }
+    else if (d > MAX_SEQUENCE / 2)
+    {
+      d -= MAX_SEQUENCE;
+    }
+    return d;
+  }
+  
+  /**
+   * Creates an empty segment of a given type, to be populated with
+   * {@link #fromBitSequence(BitReader)}
+   * @param type The segment type number
+   * @return The segment, or null if the type number is unknown
+   */
+  public static Segment newSegment(int type)
+  {
+    switch (type)
+    {
+    case SEGMENT_BLOB:
+      return new BlobSegment();
+    case SEGMENT_MESSAGE:
+      return new MessageSegment();
+    case SEGMENT_SCHEMA:
+      return new SchemaSegment();
+    case SEGMENT_DELTA:
+      return new DeltaSegment();
+    case SEGMENT_FRAGMENT:
+      return new FragmentSegment();
+    case SEGMENT_PARITY:
+      return new ParitySegment();
+    default:
+      return null;
+    }
+  }
+  
   /**
    * A sequence number associated to each segment
    */
   protected int m_sequenceNumber;
   
+  /**
+   * The encoding of the segment, computed the first time it is needed
+   * and reused every time the segment is written afterwards (e.g. when
+   * the segment is repeated). It is discarded whenever one of the
+   * segment's fields is changed through a setter.
+   */
+  protected BitSequence m_encoding = null;
+  
   /**
    * Outputs the segment as a sequence of bits
+   * @return The sequence of bits corresponding to that segment, or null
+   *   if the segment cannot be encoded
+   */
+  public BitSequence toBitSequence()
+  {
+    BitSequence out = new BitSequence();
+    try
+    {
+      writeTo(new BitWriter(out));
+    }
+    catch (BitFormatException e)
+    {
+      return null;
+    }
+    return out;
+  }
+  
+  /**
+   * Returns the encoding of the segment. The encoding is computed only
+   * once; hence the returned sequence must not be modified, and neither
+   * should be the contents of the segment once this method has been
+   * called.
    * @return The sequence of bits corresponding to that segment
+   * @throws BitFormatException If the segment cannot be encoded (e.g.
+   *   one of its fields is out of range)
    */
-  public abstract BitSequence toBitSequence();
+  public BitSequence getEncoding() throws BitFormatException
+  {
+    if (m_encoding == null)
+    {
+      BitSequence out = new BitSequence();
+      writeTo(new BitWriter(out));
+      m_encoding = out;
+    }
+    return m_encoding;
+  }
   
   /**
-   * Populates a segment from a bit sequence
+   * Discards the encoding of the segment computed by
+   * {@link #getEncoding()}. Setters must call this method whenever they
+   * change a field of the segment.
+   */
+  protected void invalidateEncoding()
+  {
+    m_encoding = null;
+  }
+  
+  /**
+   * Writes the segment at the end of a bit writer
+   * @param w The writer to write to
+   * @throws BitFormatException If the segment cannot be encoded (e.g.
+   *   one of its fields is out of range)
+   */
+  public abstract void writeTo(BitWriter w) throws BitFormatException;
+  
+  /**
+   * Populates a segment from a bit sequence. The bits read are removed
+   * from the beginning of the sequence.
    * @param bs The bit sequence to read from
    * @return The number of bits read from the bit sequence
    */
-  public abstract int fromBitSequence(BitSequence bs) throws ReadException;
+  public int fromBitSequence(BitSequence bs) throws ReadException
+  {
+    int bits_read = fromBitSequence(new BitReader(bs));
+    bs.truncatePrefix(bits_read);
+    return bits_read;
+  }
+  
+  /**
+   * Populates a segment from the current position of a bit reader
+   * @param r The reader to read from
+   * @return The number of bits read
+   */
+  public abstract int fromBitSequence(BitReader r) throws ReadException;
   
   /**
    * Assigns a sequence number to a segment
@@ -67,6 +210,7 @@ public abstract class Segment
   public void setSequenceNumber(int number)
   {
     m_sequenceNumber = number;
+    invalidateEncoding();
   }
   
   /**
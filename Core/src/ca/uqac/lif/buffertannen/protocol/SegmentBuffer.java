@@ -0,0 +1,174 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2019  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+/**
+ * A fixed-capacity circular buffer of segments, indexed by sequence
+ * number. Since sequence numbers wrap around at
+ * {@link Segment#MAX_SEQUENCE}, the buffer has one slot for each possible
+ * sequence number; slot <i>n</i> holds the segment whose sequence number
+ * is <i>n</i>, if it has been received. An occupancy bitmap records which
+ * slots are filled, so that missing segments do not need to be
+ * represented by objects.
+ * @author sylvain
+ *
+ */
+/*package*/ class SegmentBuffer
+{
+  /**
+   * The number of slots in the buffer
+   */
+  public static final int CAPACITY = Segment.MAX_SEQUENCE;
+
+  /**
+   * The segments, indexed by sequence number
+   */
+  protected final Segment[] m_slots;
+
+  /**
+   * One bit per slot, set when the slot contains a segment
+   */
+  protected final long[] m_occupied;
+
+  /**
+   * The number of segments currently in the buffer
+   */
+  protected int m_size;
+
+  public SegmentBuffer()
+  {
+    super();
+    m_slots = new Segment[CAPACITY];
+    m_occupied = new long[(CAPACITY + 63) / 64];
+    m_size = 0;
+  }
+
+  /**
+   * Computes the slot associated to a sequence number
+   * @param seq_no The sequence number
+   * @return The slot
+   */
+  protected static int slot(int seq_no)
+  {
+    int i = seq_no % CAPACITY;
+    if (i < 0)
+    {
+      i += CAPACITY;
+    }
+    return i;
+  }
+
+  /**
+   * Determines if the buffer contains a segment with given
+   * sequence number
+   * @param seq_no The sequence number
+   * @return true if the segment is in the buffer, false otherwise
+   */
+  public boolean contains(int seq_no)
+  {
+    int i = slot(seq_no);
+    return (m_occupied[i >>> 6] & (1L << (i & 63))) != 0;
+  }
+
+  /**
+   * Puts a segment in the buffer, at the slot corresponding to its
+   * sequence number
+   * @param seg The segment
+   * @return true if the segment was added, false if a segment was
+   *   already present at that slot (in which case the buffer is
+   *   left unchanged)
+   */
+  public boolean put(Segment seg)
+  {
+    int i = slot(seg.getSequenceNumber());
+    long mask = 1L << (i & 63);
+    if ((m_occupied[i >>> 6] & mask) != 0)
+    {
+      return false;
+    }
+    m_occupied[i >>> 6] |= mask;
+    m_slots[i] = seg;
+    m_size++;
+    return true;
+  }
+
+  /**
+   * Gets the segment with given sequence number
+   * @param seq_no The sequence number
+   * @return The segment, or null if no such segment is in the buffer
+   */
+  public Segment get(int seq_no)
+  {
+    return m_slots[slot(seq_no)];
+  }
+
+  /**
+   * Removes the segment with given sequence number
+   * @param seq_no The sequence number
+   * @return The segment removed, or null if no such segment was
+   *   in the buffer
+   */
+  public Segment remove(int seq_no)
+  {
+    int i = slot(seq_no);
+    long mask = 1L << (i & 63);
+    if ((m_occupied[i >>> 6] & mask) == 0)
+    {
+      return null;
+    }
+    Segment seg = m_slots[i];
+    m_occupied[i >>> 6] &= ~mask;
+    m_slots[i] = null;
+    m_size--;
+    return seg;
+  }
+
+  /**
+   * Returns the number of segments in the buffer
+   * @return The number of segments
+   */
+  public int size()
+  {
+    return m_size;
+  }
+
+  /**
+   * Determines if the buffer is empty
+   * @return true if the buffer contains no segment
+   */
+  public boolean isEmpty()
+  {
+    return m_size == 0;
+  }
+
+  /**
+   * Removes all the segments from the buffer
+   */
+  public void clear()
+  {
+    for (int i = 0; i < m_occupied.length; i++)
+    {
+      m_occupied[i] = 0;
+    }
+    for (int i = 0; i < m_slots.length; i++)
+    {
+      m_slots[i] = null;
+    }
+    m_size = 0;
+  }
+}
@@ -17,25 +17,110 @@
  */
 package ca.uqac.lif.buffertannen.protocol;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ca.uqac.lif.buffertannen.message.BitFormatException;
 import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.BitWriter;
 import ca.uqac.lif.buffertannen.message.CannotComputeDeltaException;
+import ca.uqac.lif.buffertannen.message.MessageReader;
 import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.Schema;
 import ca.uqac.lif.buffertannen.message.SchemaElement;
 import ca.uqac.lif.buffertannen.message.TypeMismatchException;
 
+/**
+ * The sender is responsible for encoding messages into segments, and
+ * for packing these segments into frames.
+ * <p>
+ * A sender can be fed by any number of threads at the same time
+ * (the <em>producers</em>), through {@link #addMessage(int, SchemaElement)},
+ * {@link #addBlob(BitSequence)} and their variants, while a single thread
+ * (the <em>consumer</em>) polls frames with {@link #pollBitSequence()} or
+ * {@link #pollBuffer()}. Producers encode their messages on their own,
+ * and simply put the result in a lock-free queue. The consumer takes
+ * elements from that queue in order, gives them their sequence number
+ * and moves them to the buffer of segments to send. This buffer, and all
+ * the statistics about the segments sent, are only touched by the
+ * consumer.
+ * @author sylvain
+ *
+ */
 public class Sender
 {
-  protected LinkedList<Segment> m_segmentBuffer;
+  /**
+   * Priority of the schema segments sent because a schema was defined
+   * or changed, and which the messages that follow need
+   */
+  public static final int PRIORITY_SCHEMA = 0;
+  
+  /**
+   * Priority of the segments sent for the first time
+   */
+  public static final int PRIORITY_FRESH = 1;
+  
+  /**
+   * Priority of the segments sent a second time
+   */
+  public static final int PRIORITY_REPEAT = 2;
+  
+  /**
+   * Priority of the schema segments broadcast periodically
+   */
+  public static final int PRIORITY_BROADCAST = 3;
   
+  /**
+   * The default weight of each priority level
+   */
+  protected static final int[] DEFAULT_PRIORITY_WEIGHTS = {8, 4, 2, 1};
+  
+  /**
+   * The segments waiting to be put in a frame, by priority level.
+   * This buffer is only accessed by the consumer.
+   */
+  protected PriorityBuffer m_segmentBuffer;
+  
+  /**
+   * The segments waiting to be repeated. This buffer is only
+   * accessed by the consumer.
+   */
   protected LinkedList<Segment> m_segmentToRepeatBuffer;
   
-  protected Map<Integer,SchemaElement> m_schemas;
+  /**
+   * The segments and messages added by producers, which have not yet
+   * been given a sequence number by the consumer
+   */
+  protected final ConcurrentLinkedQueue<PendingSegment> m_incoming;
+  
+  /**
+   * The number of elements in {@link #m_incoming}. This is kept
+   * separately, since computing the size of the queue itself is not
+   * a constant-time operation.
+   */
+  protected final AtomicInteger m_incomingCount;
+  
+  /**
+   * The bank of schemas, indexed by schema number
+   */
+  protected Map<Integer,Schema> m_schemas;
+  
+  /**
+   * The numbers of the schemas already put in the buffer with
+   * priority {@link #PRIORITY_SCHEMA}. A schema number is removed from
+   * this set when the schema is changed, so that the new schema is
+   * sent ahead of the messages that use it.
+   */
+  protected Set<Integer> m_schemasAnnounced;
   
   /**
    * A list of segments to display in repetition when the sender is
@@ -78,19 +163,83 @@ public class Sender
   
   /**
    * The number of consecutive delta-segments that can be sent before
-   * transmitting a new message segment.
+   * transmitting a new message segment. Unless it was set explicitly,
+   * this value is adjusted by the consumer as messages are sent (see
+   * {@link #adaptDeltaSegmentInterval()}).
+   */
+  protected volatile int m_deltaSegmentInterval = 10;
+  
+  /**
+   * Whether the delta segment interval is adjusted automatically
+   */
+  protected boolean m_adaptiveDeltaInterval = true;
+  
+  /**
+   * The largest delta segment interval the sender can choose by itself.
+   * This bounds the number of messages that become undecodable when a
+   * single message segment is lost.
+   */
+  protected int m_lossTolerance = 32;
+  
+  /**
+   * The smoothing factor of the moving averages of segment sizes
+   */
+  protected static final double SIZE_SMOOTHING = 0.125;
+  
+  /**
+   * When adjusting the delta segment interval, the largest fraction
+   * of the size of a delta segment that the periodical message segments
+   * may add to each message, on average
+   */
+  protected static final double FULL_MESSAGE_OVERHEAD = 0.1;
+  
+  /**
+   * The moving average of the size of message segments, in bits, or
+   * -1 if no message was sent yet
+   */
+  protected double m_averageFullSize = -1;
+  
+  /**
+   * The moving average of the size of delta segments, in bits, or
+   * -1 if no delta was computed yet
    */
-  protected int m_deltaSegmentInterval = 10;
+  protected double m_averageDeltaSize = -1;
   
   /**
    * The interval after which to repeat a segment a second time.
    * Set to 0 for no repetition at all. This value must not
-   * be greater than {@link Receiver.m_lostInterval}, otherwise the
+   * be greater than {@link Receiver#m_lostInterval}, otherwise the
    * receiver will declare a segment as lost before the sender
    * has had a chance to transmit it again. 
    */
   protected int m_repeatAfterN = 20;
   
+  /**
+   * The number of consecutive segments protected by each parity
+   * segment. Set to 0 to send no parity segments at all. This value
+   * should be lower than {@link Receiver#m_lostInterval}, so that the
+   * parity segment of a group reaches the receiver before the missing
+   * segment is declared lost.
+   */
+  protected int m_parityGroupSize = 0;
+  
+  /**
+   * The exclusive or of the encodings of the segments added since the
+   * last parity segment
+   */
+  protected BitSequence m_parityBits = null;
+  
+  /**
+   * The number of segments added since the last parity segment
+   */
+  protected int m_parityCount = 0;
+  
+  /**
+   * The sequence number of the first segment added since the last
+   * parity segment
+   */
+  protected int m_parityFirst = 0;
+  
   /**
    * A counter to give sequential numbers to segments
    */
@@ -107,24 +256,28 @@ public class Sender
   protected SendingMode m_sendingMode = SendingMode.STREAM;
   
   /**
-   * The number of delta segments sent since the last message segment
+   * The number of delta segments sent since the last message segment.
+   * Only the consumer writes this value; producers read it to decide
+   * whether it is worth computing a delta.
    */
-  protected int m_deltaSegmentsSentSinceLast = -1;
+  protected volatile int m_deltaSegmentsSentSinceLast = -1;
   
   /**
-   * The segment sequence number of the last message sent as a
-   * complete message segment.
+   * The messages that delta-segments can refer to: the last message sent
+   * as a complete message segment, and the messages sent after it, up
+   * to {@link #m_referenceWindow} messages (the most recent last). Only
+   * the consumer changes it, by replacing the array; producers take a
+   * snapshot of it to compute their deltas.
    */
-  protected int m_lastFullMessageSentNumber = -1;
+  protected final AtomicReference<Reference[]> m_references;
   
   /**
-   * A memory of the last message sent as a complete message segment.
-   * Delta-segments will be calculated with respect to this reference
-   * segment.
+   * The maximum number of recent messages a delta-segment can refer to
    */
-  protected SchemaElement m_lastFullMessageSent = null;
+  protected volatile int m_referenceWindow = 4;
   
-  /* --- Various statistics about segments Sent --- */
+  /* --- Various statistics about segments Sent. They are updated by the
+         consumer when it processes the segments added by producers --- */
 
   /**
    * Number of frames sent
@@ -191,6 +344,33 @@ public class Sender
    */
   protected int m_deltaSegmentsSent = 0;
   
+  /**
+   * Number of parity segments sent
+   */
+  protected int m_paritySegmentsSent = 0;
+  
+  /**
+   * Number of bits sent as parity segments
+   */
+  protected int m_paritySegmentBitsSent = 0;
+  
+  /**
+   * Number of segments that had to be split into fragments
+   */
+  protected int m_fragmentedSegments = 0;
+  
+  /**
+   * Number of segments dropped because they could not be encoded, or
+   * could never fit into a frame
+   */
+  protected int m_discardedSegments = 0;
+  
+  /**
+   * The segments dropped by the frame packer while filling the last
+   * frame. Only used by the consumer.
+   */
+  protected final List<Segment> m_discarded = new LinkedList<Segment>();
+  
   /**
    * If set to true, an empty frame buffer means that the
    * transmission is over. Otherwise, an empty buffer simply
@@ -208,6 +388,11 @@ public class Sender
   
   protected int m_dataStreamIndex = 0;
   
+  /**
+   * The strategy used to choose the segments put into each frame
+   */
+  protected FramePacker m_packer = new FifoPacker();
+  
   protected String m_resourceIdentifier = "";
   
   /**
@@ -289,6 +474,32 @@ public class Sender
     return m_deltaSegmentBitsSent;
   }
   
+  public int getNumberOfParitySegments()
+  {
+    return m_paritySegmentsSent;
+  }
+  
+  public int getNumberOfParitySegmentsBits()
+  {
+    return m_paritySegmentBitsSent;
+  }
+  
+  public int getNumberOfFragmentedSegments()
+  {
+    return m_fragmentedSegments;
+  }
+  
+  /**
+   * Gets the number of segments dropped without being sent, because
+   * they could not be encoded or were larger than the maximum frame
+   * size
+   * @return The number of segments
+   */
+  public int getNumberOfDiscardedSegments()
+  {
+    return m_discardedSegments;
+  }
+  
   public int getNumberOfRawBits()
   {
     return m_rawBitsSent;
@@ -304,18 +515,27 @@ public class Sender
     return m_bufferSizeBits;
   }
   
+  /**
+   * Gets the number of segments waiting to be sent, including those
+   * added by producers and not yet processed by the consumer
+   * @return The number of segments
+   */
   public int getBufferSizeSegments()
   {
-    return m_segmentBuffer.size();
+    return m_segmentBuffer.size() + m_incomingCount.get();
   }
   
   
   public Sender()
   {
     super();
-    m_segmentBuffer = new LinkedList<Segment>();
+    m_segmentBuffer = new PriorityBuffer(DEFAULT_PRIORITY_WEIGHTS);
     m_segmentToRepeatBuffer = new LinkedList<Segment>();
-    m_schemas = new HashMap<Integer,SchemaElement>();
+    m_incoming = new ConcurrentLinkedQueue<PendingSegment>();
+    m_incomingCount = new AtomicInteger(0);
+    m_references = new AtomicReference<Reference[]>(new Reference[0]);
+    m_schemas = new ConcurrentHashMap<Integer,Schema>();
+    m_schemasAnnounced = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
     m_lakeFrames = new Vector<BitSequence>();
   }
   
@@ -338,15 +558,79 @@ public class Sender
   }
   
   /**
-   * Sets the interval at which message segments must be sent.
+   * Sets the strategy used to choose the segments put into each frame
+   * @param packer The strategy
+   */
+  public void setFramePacker(FramePacker packer)
+  {
+    m_packer = packer;
+  }
+  
+  /**
+   * Sets the weight of each priority level. When segments of several
+   * levels are waiting, each level gets to fill first a number of
+   * frames proportional to its weight (the room left in these frames
+   * goes to the other levels).
+   * @param weights The weights of levels {@link #PRIORITY_SCHEMA},
+   *   {@link #PRIORITY_FRESH}, {@link #PRIORITY_REPEAT} and
+   *   {@link #PRIORITY_BROADCAST}, in this order
+   */
+  public void setPriorityWeights(int[] weights)
+  {
+    m_segmentBuffer.setWeights(weights);
+  }
+  
+  /**
+   * Sets the interval at which message segments must be sent. Calling
+   * this method stops the sender from adjusting the interval by itself.
    * @param interval Interval at which message segments must be sent.
    *   Set to 0 to disable delta segments completely.
    */
   public void setDeltaSegmentInterval(int interval)
   {
+    m_adaptiveDeltaInterval = false;
     m_deltaSegmentInterval = interval;
   }
   
+  /**
+   * Gets the interval at which message segments are sent
+   * @return The maximum number of consecutive delta segments
+   */
+  public int getDeltaSegmentInterval()
+  {
+    return m_deltaSegmentInterval;
+  }
+  
+  /**
+   * Sets the largest interval between two message segments the sender
+   * may choose when it adjusts this interval by itself. A lost message
+   * segment makes all the delta segments that refer to it undecodable;
+   * this value hence bounds the number of messages lost at once. It
+   * should not exceed the receiver's reference window minus its lost
+   * interval.
+   * @param messages The maximum number of consecutive delta segments
+   */
+  public void setLossTolerance(int messages)
+  {
+    m_lossTolerance = messages;
+  }
+  
+  /**
+   * Sets the number of consecutive segments protected by each parity
+   * segment. A parity segment allows the receiver to rebuild any
+   * single segment of its group that was lost, at the price of one
+   * extra segment (about as large as the largest segment of the
+   * group) every <i>k</i> segments.
+   * @param k The number of segments in a group, at most
+   *   {@link ParitySegment#MAX_COUNT}. Set to 0 to disable parity
+   *   segments.
+   */
+  public void setParityGroupSize(int k)
+  {
+    m_parityGroupSize = Math.min(k, ParitySegment.MAX_COUNT);
+    m_parityCount = 0;
+  }
+  
   /**
    * Polls the sender's output buffer and returns the first
    * frame of that buffer as a sequence of bits, if any exists
@@ -363,6 +647,7 @@ public class Sender
     if (m_lakeFrames.isEmpty())
     {
       // First populate the lake frames
+      processIncoming();
       int total_segments = countNonSchemaSegments();
       Frame f = pollBuffer();
       while (f != null)
@@ -397,11 +682,14 @@ public class Sender
   protected int countNonSchemaSegments()
   {
     int out = 0;
-    for (Segment seg : m_segmentBuffer)
+    for (int level = 0; level < m_segmentBuffer.getLevels(); level++)
     {
-      if (!(seg instanceof SchemaSegment))
+      for (Segment seg : m_segmentBuffer.getQueue(level))
       {
-        out = Math.max(out, seg.getSequenceNumber());
+        if (!(seg instanceof SchemaSegment))
+        {
+          out = Math.max(out, seg.getSequenceNumber());
+        }
       }
     }
     return out + 1; // Since numbering starts at 0
@@ -426,6 +714,7 @@ public class Sender
    */
   public Frame pollBuffer()
   {
+    processIncoming();
     if (m_segmentBuffer.isEmpty())
     {
       if (m_emptyBufferIsEof)
@@ -447,31 +736,20 @@ public class Sender
     }
     // Create a frame by packing as many pending segments as possible
     // within frame size limits
-    int total_size = 0;
     Frame f = newFrame();
-    int actual_content_size = getMaxDataSize();
-    while (total_size < actual_content_size && !m_segmentBuffer.isEmpty())
+    m_segmentBuffer.pack(m_packer, f, getMaxDataSize(), m_discarded);
+    for (Segment seg : m_discarded)
+    {
+      // Segments too large for any frame are dropped
+      m_bufferSizeBits -= seg.getSize();
+      m_discardedSegments++;
+    }
+    m_discarded.clear();
+    for (Segment seg : f)
     {
-      Segment seg = m_segmentBuffer.getFirst();
       int segment_size = seg.getSize();
-      if (segment_size > m_maxFrameLength)
-      {
-        // Problem: this segment will never fit into a frame!
-        System.err.println("ERROR: found a segment larger than max frame size");
-      }
-      total_size += seg.getSize();
-      if (total_size < actual_content_size)
-      {
-        m_segmentBuffer.removeFirst();
-        f.add(seg);
-        m_rawBitsSent += segment_size;
-        m_bufferSizeBits -= segment_size;
-      }
-      if (f.size() == 0)
-      {
-        // Not supposed to happen!
-        System.err.println("ERROR: could not put any frame in segment");
-      }
+      m_rawBitsSent += segment_size;
+      m_bufferSizeBits -= segment_size;
     }
     return f;
   }
@@ -501,18 +779,122 @@ public class Sender
   }
   
   /**
-   * Add a pre-built segment to the sender's segment buffer
+   * Adds the encoding of a segment to the current parity group, and
+   * puts the parity segment of the group in the buffer once the group
+   * is complete. This method must only be called by the consumer.
+   * @param encoding The encoding of the segment, or null if it could
+   *   not be encoded
+   */
+  protected void addToParity(BitSequence encoding)
+  {
+    if (encoding == null)
+    {
+      // The segment will never be sent: the group cannot be used
+      m_parityCount = 0;
+      return;
+    }
+    if (m_parityCount == 0)
+    {
+      m_parityBits = new BitSequence();
+      m_parityFirst = m_sequenceNumber;
+    }
+    m_parityBits.xor(encoding);
+    m_parityCount++;
+    if (m_parityCount < m_parityGroupSize)
+    {
+      return;
+    }
+    m_parityCount = 0;
+    ParitySegment ps = new ParitySegment();
+    ps.setSequenceNumber(m_parityFirst);
+    ps.setCount(m_parityGroupSize);
+    ps.setContents(m_parityBits);
+    int seg_size = ps.getSize();
+    if (m_parityBits.size() > ParitySegment.MAX_LENGTH || seg_size > getMaxDataSize())
+    {
+      // Parity segments are not fragmented: this group goes unprotected
+      return;
+    }
+    m_segmentBuffer.add(ps, PRIORITY_FRESH);
+    m_paritySegmentsSent++;
+    m_paritySegmentBitsSent += seg_size;
+    m_bufferSizeBits += seg_size;
+  }
+  
+  /**
+   * Splits a segment that does not fit in a frame into fragments
+   * @param seg The segment
+   * @return The fragments, or null if the segment cannot be split (in
+   *   which case it will be discarded by the frame packer)
+   */
+  protected List<FragmentSegment> fragment(Segment seg)
+  {
+    try
+    {
+      return FragmentSegment.split(seg, getMaxDataSize());
+    }
+    catch (BitFormatException e)
+    {
+      return null;
+    }
+  }
+  
+  /**
+   * Add a pre-built segment to the sender's segment buffer, giving it
+   * the next sequence number. Segments larger than the data size of
+   * a frame are split into fragments. A segment that cannot be encoded
+   * is dropped, and does not use up a sequence number. This method must
+   * only be called by the consumer.
    * @param ms The segment to add
+   * @return true if the segment was added, false if it was dropped
    */
-  protected void addSegment(Segment ms)
+  protected boolean addSegment(Segment ms)
   {
     ms.setSequenceNumber(m_sequenceNumber);
-    // Add to buffer
-    m_segmentBuffer.add(ms);
-    // Add to repeat buffer
-    m_segmentToRepeatBuffer.add(ms);
+    BitSequence encoding = null;
+    try
+    {
+      // Encode the segment once and for all: frames, and repetitions
+      // of the segment, will simply copy these bits
+      encoding = ms.getEncoding();
+    }
+    catch (BitFormatException e)
+    {
+      // The segment can never be sent (e.g. its contents are too long)
+      m_bufferSizeBits -= ms.getSize();
+      m_discardedSegments++;
+      return false;
+    }
+    List<FragmentSegment> fragments = null;
+    if (ms.getSize() > getMaxDataSize())
+    {
+      // Segment too large for a frame: send it in fragments
+      fragments = fragment(ms);
+    }
+    if (fragments == null)
+    {
+      // Add to buffer
+      m_segmentBuffer.add(ms, PRIORITY_FRESH);
+      // Add to repeat buffer
+      m_segmentToRepeatBuffer.add(ms);
+    }
+    else
+    {
+      m_bufferSizeBits -= ms.getSize();
+      for (FragmentSegment fs : fragments)
+      {
+        m_segmentBuffer.add(fs, PRIORITY_FRESH);
+        m_segmentToRepeatBuffer.add(fs);
+        m_bufferSizeBits += fs.getSize();
+      }
+      m_fragmentedSegments++;
+    }
+    if (m_parityGroupSize > 0)
+    {
+      addToParity(encoding);
+    }
     // Update sequence number
-    m_sequenceNumber = (m_sequenceNumber + 1) % Segment.MAX_SEQUENCE;
+    m_sequenceNumber = Segment.nextSequence(m_sequenceNumber);
     if (m_broadcastSchemasEveryN > 0 && m_sequenceNumber % m_broadcastSchemasEveryN == 1)
     {
       // It's time to broadcast a schema
@@ -524,10 +906,10 @@ public class Sender
       {
         Segment seg_to_rep = m_segmentToRepeatBuffer.peekFirst();
         int seq_num = seg_to_rep.getSequenceNumber();
-        if (m_sequenceNumber - seq_num > m_repeatAfterN)
+        if (Segment.sequenceDistance(seq_num, m_sequenceNumber) > m_repeatAfterN)
         {
           // Time to repeat the segment
-          m_segmentBuffer.add(seg_to_rep);
+          m_segmentBuffer.add(seg_to_rep, PRIORITY_REPEAT);
           m_bufferSizeBits += seg_to_rep.getSize();
           m_segmentToRepeatBuffer.removeFirst();
         }
@@ -538,7 +920,8 @@ public class Sender
           break;
         }
       }
-    }    
+    }
+    return true;
   }
   
   public void setResourceIdentifier(String s)
@@ -559,11 +942,67 @@ public class Sender
   {
     BlobSegment blob = new BlobSegment();
     blob.setContents(bs);
-    int blob_size = blob.getSize();
-    m_blobSegmentsSent++;
-    m_blobSegmentsBitsSent += blob_size;
-    m_bufferSizeBits += blob_size;
-    addSegment(blob);
+    PendingSegment p = new PendingSegment();
+    p.m_segment = blob;
+    enqueue(p);
+  }
+  
+  /**
+   * Puts a segment or a message in the queue of elements waiting to be
+   * processed by the consumer
+   * @param p The element
+   */
+  protected void enqueue(PendingSegment p)
+  {
+    m_incomingCount.incrementAndGet();
+    m_incoming.add(p);
+  }
+  
+  /**
+   * Moves the segments and messages added by producers to the buffer
+   * of segments to send, in the order in which they were added. This
+   * method must only be called by the consumer.
+   */
+  protected void processIncoming()
+  {
+    PendingSegment p = m_incoming.poll();
+    while (p != null)
+    {
+      m_incomingCount.decrementAndGet();
+      if (p.m_segment instanceof SchemaSegment)
+      {
+        insertSchemaSegment((SchemaSegment) p.m_segment, PRIORITY_SCHEMA);
+      }
+      else if (p.m_segment != null)
+      {
+        int blob_size = p.m_segment.getSize();
+        m_bufferSizeBits += blob_size;
+        if (addSegment(p.m_segment))
+        {
+          m_blobSegmentsSent++;
+          m_blobSegmentsBitsSent += blob_size;
+        }
+      }
+      else if (p.m_full == null || p.m_full.size() >= MessageSegment.MAX_LENGTH)
+      {
+        // The message cannot be encoded, or does not fit in a message
+        // segment; it is dropped before becoming a reference for the
+        // messages that follow
+        m_discardedSegments++;
+      }
+      else
+      {
+        announceSchema(p.m_schemaNumber);
+        MessageSegment ms = createMessageSegment(p);
+        m_bufferSizeBits += ms.getSize();
+        if (addSegment(ms))
+        {
+          // Only a segment actually queued can serve as a reference
+          messageSegmentAdded(p, ms);
+        }
+      }
+      p = m_incoming.poll();
+    }
   }
   
   public int getMaxDataSize()
@@ -582,93 +1021,356 @@ public class Sender
    * @param number The schema number associated to that message
    * @param e The message to send
    * @param force_full Set to true to force the message to be sent
-   *   in a full message segment, instead of as a delta segment
+   *   in a full message segment, instead of as a delta segment. A
+   *   message that cannot be encoded is dropped, and counted in
+   *   {@link #getNumberOfDiscardedSegments()}.
    */
   public void addMessage(int number, SchemaElement e, boolean force_full)
   {
-    // Create frame with message
-    MessageSegment ms = null; 
-    if (!(force_full || m_deltaSegmentsSentSinceLast == -1 || m_deltaSegmentsSentSinceLast > m_deltaSegmentInterval || m_lastFullMessageSent == null))
+    PendingSegment p = new PendingSegment();
+    p.m_schemaNumber = number;
+    p.m_message = e;
+    p.m_forceFull = force_full;
+    p.m_full = encodeMessage(number, e);
+    Reference[] refs = m_references.get();
+    if (p.m_full != null && !force_full && canSendDelta(refs))
+    {
+      // We can probably afford to send a delta-segment: compute it now,
+      // with respect to the current reference messages
+      computeDelta(p, refs);
+    }
+    enqueue(p);
+  }
+  
+  /**
+   * Determines if the next message can be sent as a delta-segment
+   * @param refs The reference messages
+   * @return true if a delta-segment can be sent
+   */
+  protected boolean canSendDelta(Reference[] refs)
+  {
+    int sent_since_last = m_deltaSegmentsSentSinceLast;
+    return refs.length > 0 && sent_since_last != -1 && sent_since_last <= m_deltaSegmentInterval;
+  }
+  
+  /**
+   * Computes the smallest delta of a message with respect to a set of
+   * reference messages
+   * @param p The message. The reference chosen and the delta are
+   *   stored in it; the delta is null if the message cannot be
+   *   expressed as a delta of any of the references.
+   * @param refs The reference messages
+   */
+  protected void computeDelta(PendingSegment p, Reference[] refs)
+  {
+    p.m_references = refs;
+    p.m_reference = null;
+    p.m_delta = null;
+    // Start from the most recent message, which is usually the closest
+    for (int i = refs.length - 1; i >= 0; i--)
     {
-      // We can afford to send a delta-segment instead
-      ms = new DeltaSegment();
-      ((DeltaSegment) ms).setDeltaToWhat(m_lastFullMessageSentNumber);
-      SchemaElement delta = null;
-      try
+      BitSequence delta = encodeDelta(refs[i], p.m_message);
+      if (delta != null && (p.m_delta == null || delta.size() < p.m_delta.size()))
       {
-        delta = SchemaElement.createFromDelta(m_lastFullMessageSent, e);
+        p.m_reference = refs[i];
+        p.m_delta = delta;
       }
-      catch (TypeMismatchException e1)
+    }
+  }
+  
+  /**
+   * Determines if a reference message is still among the current
+   * reference messages
+   * @param refs The reference messages
+   * @param ref The reference message, or null
+   * @return true if <tt>ref</tt> is one of <tt>refs</tt>
+   */
+  protected static boolean isReference(Reference[] refs, Reference ref)
+  {
+    if (ref == null)
+    {
+      return false;
+    }
+    for (Reference r : refs)
+    {
+      if (r == ref)
       {
-        // Set ms back to null so as to force creation of a message segment
-        // (below)
-        ms = null;
+        return true;
       }
-      catch (CannotComputeDeltaException e1)
+    }
+    return false;
+  }
+  
+  /**
+   * Sets the number of recent messages that delta-segments can refer
+   * to. The sender expresses each message as a delta with respect to
+   * the one of these messages that gives the smallest delta. All of
+   * them have been sent since the last complete message segment, so
+   * that the loss of a segment does not affect the messages sent after
+   * the next complete message segment.
+   * @param n The number of messages; 1 to always refer to the previous
+   *   message
+   */
+  public void setDeltaReferences(int n)
+  {
+    m_referenceWindow = Math.max(1, n);
+  }
+  
+  /**
+   * Creates the segment for a message added by a producer. The message
+   * is sent as a delta-segment if possible, and as a message segment
+   * otherwise. The references and the statistics are only updated by
+   * {@link #messageSegmentAdded(PendingSegment, MessageSegment)}, once
+   * the segment has been added to the buffer. This method must only be
+   * called by the consumer.
+   * @param p The message
+   * @return The segment
+   */
+  protected MessageSegment createMessageSegment(PendingSegment p)
+  {
+    MessageSegment ms = null;
+    int full_size = MessageSegment.HEADER_SIZE + p.m_full.size();
+    Reference[] refs = m_references.get();
+    if (!p.m_forceFull && canSendDelta(refs))
+    {
+      if (p.m_references != refs && !isReference(refs, p.m_reference))
       {
-        // Set ms back to null so as to force creation of a message segment
-        // (below)
-        ms = null;
+        // The reference chosen by the producer is no longer available.
+        // Otherwise the delta is kept, even though a reference added in
+        // the meantime might give a smaller one: computing the deltas
+        // again for every queued message would defeat the purpose of
+        // computing them in the producers.
+        computeDelta(p, refs);
       }
-      BitSequence out = null;
-      try
+      BitSequence out = p.m_delta;
+      Reference ref = p.m_reference;
+      if (out != null)
       {
-        out = delta.toBitSequence(true);
+        int delta_size = DeltaSegment.HEADER_SIZE + out.size();
+        m_averageDeltaSize = smooth(m_averageDeltaSize, delta_size);
+        if (delta_size < full_size)
+        {
+          ms = new DeltaSegment();
+          ((DeltaSegment) ms).setDeltaToWhat(ref.m_sequenceNumber);
+          ms.setContents(out);
+        }
       }
-      catch (BitFormatException e1)
+    }
+    m_averageFullSize = smooth(m_averageFullSize, full_size);
+    if (ms == null)
+    {
+      // It is time to create a message segment (or the delta would
+      // not be smaller than the complete message)
+      ms = new MessageSegment();
+      ms.setSchemaNumber(p.m_schemaNumber);
+      ms.setContents(p.m_full);
+    }
+    return ms;
+  }
+  
+  /**
+   * Makes a message the most recent reference, and updates the
+   * statistics, once its segment has been added to the buffer. This
+   * method must only be called by the consumer.
+   * @param p The message
+   * @param ms The segment created for the message by
+   *   {@link #createMessageSegment(PendingSegment)}; its sequence number
+   *   is set
+   */
+  protected void messageSegmentAdded(PendingSegment p, MessageSegment ms)
+  {
+    if (ms instanceof DeltaSegment)
+    {
+      Reference ref = p.m_reference;
+      m_deltaSegmentsSentSinceLast++;
+      m_deltaSegmentsSent++;
+      m_deltaSegmentBitsSent += ms.getContents().size();
+      SchemaElement new_ref = toReference(ref.m_schema, ref.m_message, p.m_message);
+      addReference(m_references.get(), new Reference(new_ref, ref.m_schema, ms.getSequenceNumber()));
+    }
+    else
+    {
+      m_deltaSegmentsSentSinceLast = 0;
+      Schema schema = m_schemas.get(p.m_schemaNumber);
+      SchemaElement new_ref = toReference(schema, null, p.m_message);
+      m_references.set(new Reference[] {new Reference(new_ref, schema, ms.getSequenceNumber())});
+      m_messageSegmentsSent++;
+      m_messageSegmentBitsSent += ms.getSize();
+    }
+    if (m_adaptiveDeltaInterval)
+    {
+      adaptDeltaSegmentInterval();
+    }
+  }
+  
+  /**
+   * Gets the message to keep as a reference once a message is sent. It
+   * records its difference with the message it is sent as a delta of,
+   * as the receiver does when it decodes it; the message given by the
+   * user is never modified.
+   * @param schema The schema of the message, or null if it is not
+   *   registered
+   * @param reference The reference message, or null if the message is
+   *   sent in full
+   * @param e The message
+   * @return The message to keep as a reference
+   */
+  protected static SchemaElement toReference(Schema schema, SchemaElement reference, SchemaElement e)
+  {
+    if (schema != null)
+    {
+      return schema.toReference(reference, e);
+    }
+    return e.toReference(reference);
+  }
+  
+  /**
+   * Adds a message sent as a delta-segment to the reference messages,
+   * forgetting the oldest one if the window is full. This method must
+   * only be called by the consumer.
+   * @param refs The current reference messages
+   * @param ref The new reference message
+   */
+  protected void addReference(Reference[] refs, Reference ref)
+  {
+    int keep = Math.min(refs.length, m_referenceWindow - 1);
+    Reference[] new_refs = new Reference[keep + 1];
+    System.arraycopy(refs, refs.length - keep, new_refs, 0, keep);
+    new_refs[keep] = ref;
+    m_references.set(new_refs);
+  }
+  
+  /**
+   * Updates a moving average with a new value
+   * @param average The current average, or a negative value if there
+   *   is none yet
+   * @param value The new value
+   * @return The new average
+   */
+  protected static double smooth(double average, double value)
+  {
+    if (average < 0)
+    {
+      return value;
+    }
+    return average + SIZE_SMOOTHING * (value - average);
+  }
+  
+  /**
+   * Adjusts the delta segment interval to the sizes of the segments
+   * observed so far. Sending a message segment every <i>n</i>
+   * messages costs, on average, (<i>F</i>-<i>D</i>)/(<i>n</i>+1) bits
+   * per message on top of the size <i>D</i> of a delta segment, where
+   * <i>F</i> is the size of a message segment. The sender picks the
+   * smallest interval that keeps this cost below a fraction of
+   * <i>D</i>, since longer intervals save little more while making
+   * more messages depend on the same reference; the interval never
+   * exceeds the loss tolerance. This method must only be called by the
+   * consumer.
+   */
+  protected void adaptDeltaSegmentInterval()
+  {
+    if (m_averageFullSize < 0 || m_averageDeltaSize < 0)
+    {
+      // Not enough observations yet
+      return;
+    }
+    double gain = m_averageFullSize - m_averageDeltaSize;
+    int interval = 0;
+    if (gain > 0)
+    {
+      interval = (int) Math.ceil(gain / (FULL_MESSAGE_OVERHEAD * m_averageDeltaSize)) - 1;
+    }
+    // Keep trying deltas once in a while, to notice when they get smaller
+    m_deltaSegmentInterval = Math.max(1, Math.min(interval, m_lossTolerance));
+  }
+  
+  /**
+   * Encodes the contents of a message, using its registered schema
+   * when there is one
+   * @param number The schema number associated to that message
+   * @param e The message
+   * @return The bits of the message, or null if the message cannot be
+   *   encoded
+   */
+  protected BitSequence encodeMessage(int number, SchemaElement e)
+  {
+    BitSequence out = new BitSequence();
+    Schema schema = m_schemas.get(number);
+    try
+    {
+      if (schema != null)
       {
-        // Cannot output delta as a bit sequence: happens when some
-        // integer element varies by more than its allowed range
-        // Set ms back to null so as to force creation of a complete message segment
-        ms = null;
+        schema.encode(e, new BitWriter(out));
       }
-      if (ms != null)
+      else
       {
-        ms.setContents(out);
-        m_deltaSegmentsSentSinceLast++;
-        m_deltaSegmentsSent++;
-        m_deltaSegmentBitsSent += out.size();
-        m_bufferSizeBits += ms.getSize();
+        e.writeTo(new BitWriter(out));
       }
     }
-    if (ms == null)
+    catch (BitFormatException e1)
     {
-      // It is time to create a message segment
-      ms = new MessageSegment();
-      ms.setSchemaNumber(number);
-      try
+      // The message does not conform to the schema
+      return null;
+    }
+    return out;
+  }
+  
+  /**
+   * Encodes a message as a difference with respect to a message
+   * sent as a complete message segment
+   * @param ref The reference message
+   * @param e The message
+   * @return The bits of the delta, or null if the message cannot be
+   *   expressed as a delta
+   */
+  protected BitSequence encodeDelta(Reference ref, SchemaElement e)
+  {
+    BitSequence out = new BitSequence();
+    try
+    {
+      if (ref.m_schema != null)
       {
-        ms.setContents(e.toBitSequence());
-      } catch (BitFormatException e1)
+        ref.m_schema.encodeDelta(ref.m_message, e, new BitWriter(out));
+      }
+      else
       {
-        // TODO Auto-generated catch block
-        e1.printStackTrace();
+        SchemaElement delta = SchemaElement.createFromDelta(ref.m_message, e);
+        delta.writeTo(new BitWriter(out), true);
       }
-      m_deltaSegmentsSentSinceLast = 0;
-      m_lastFullMessageSent = e;
-      m_lastFullMessageSentNumber = m_sequenceNumber;
-      m_messageSegmentsSent++;
-      int mssize = ms.getSize();
-      m_messageSegmentBitsSent += mssize;
-      m_bufferSizeBits += mssize;
     }
-    addSegment(ms);
+    catch (TypeMismatchException e1)
+    {
+      return null;
+    }
+    catch (CannotComputeDeltaException e1)
+    {
+      return null;
+    }
+    catch (BitFormatException e1)
+    {
+      // Cannot output delta as a bit sequence: happens when some
+      // integer element varies by more than its allowed range
+      return null;
+    }
+    return out;
   }
   
   /**
    * Inserts a schema message, by cycling every time through every
-   * schema
+   * schema. This method must only be called by the consumer.
    */
   protected void insertPeriodicalSchemaMessage()
   {
     while (!m_schemas.isEmpty())
     {
       m_lastSchemaSent = (m_lastSchemaSent + 1) % SchemaSegment.SCHEMA_NUMBER_MAX;
-      if (!m_schemas.containsKey(m_lastSchemaSent))
+      SchemaSegment ss = createSchemaSegment(m_lastSchemaSent);
+      if (ss == null)
       {
         continue;
       }
-      addSchemaMessage(m_lastSchemaSent);
+      insertSchemaSegment(ss, PRIORITY_BROADCAST);
       break;
     }
   }
@@ -680,31 +1382,107 @@ public class Sender
       // Schema number does not exist: fail
       throw new UnknownSchemaException();
     }
-    SchemaElement se = m_schemas.get(number).copy();
+    SchemaElement se = m_schemas.get(number).newInstance();
     se.readContentsFromString(contents);
     addMessage(number, se);
   }
   
+  /**
+   * Reads the next message of a stream and adds it to the sender's
+   * buffer. Since a single message is read per call, the caller can
+   * interleave calls to this method with calls to {@link #pollBitSequence()},
+   * and replay a stream of any length in constant memory.
+   * @param number The number of the schema the messages follow
+   * @param in The reader to read the message from
+   * @return true if a message was added, false if the end of the stream
+   *   was reached
+   * @throws IOException If reading from the stream fails
+   * @throws ReadException If the message cannot be parsed
+   * @throws UnknownSchemaException If no schema has this number
+   */
+  public boolean addMessage(int number, MessageReader in) throws IOException, ReadException, UnknownSchemaException
+  {
+    if (!m_schemas.containsKey(number))
+    {
+      // Schema number does not exist: fail
+      throw new UnknownSchemaException();
+    }
+    SchemaElement se = m_schemas.get(number).newInstance();
+    if (!in.readNext(se))
+    {
+      return false;
+    }
+    addMessage(number, se);
+    return true;
+  }
+  
   /**
    * Adds a schema message to the sender's segment buffer
    * @param number The schema to send
    */
   protected void addSchemaMessage(int number)
   {
-    if (!m_schemas.containsKey(number))
+    SchemaSegment ss = createSchemaSegment(number);
+    if (ss == null)
     {
       // Schema number undefined: fail
       return;
     }
+    PendingSegment p = new PendingSegment();
+    p.m_segment = ss;
+    enqueue(p);
+  }
+  
+  /**
+   * Creates a schema segment
+   * @param number The schema to send
+   * @return The segment, or null if no schema has this number
+   */
+  protected SchemaSegment createSchemaSegment(int number)
+  {
+    Schema schema = m_schemas.get(number);
+    if (schema == null)
+    {
+      return null;
+    }
     // Create segment with schema
     SchemaSegment ss = new SchemaSegment();
+    ss.setSchemaNumber(number);
+    ss.setSchema(schema);
+    return ss;
+  }
+  
+  /**
+   * Puts a schema segment in the buffer, with priority
+   * {@link #PRIORITY_SCHEMA}, if the schema has not been sent since it
+   * was last changed. This method must only be called by the consumer.
+   * @param number The schema number
+   */
+  protected void announceSchema(int number)
+  {
+    if (!m_schemasAnnounced.add(number))
+    {
+      return;
+    }
+    SchemaSegment ss = createSchemaSegment(number);
+    if (ss != null)
+    {
+      insertSchemaSegment(ss, PRIORITY_SCHEMA);
+    }
+  }
+  
+  /**
+   * Puts a schema segment in the sender's segment buffer. This method
+   * must only be called by the consumer.
+   * @param ss The segment
+   * @param level The priority level of the segment
+   */
+  protected void insertSchemaSegment(SchemaSegment ss, int level)
+  {
     // The sequence number is unused in schema segments in the current version of the protocol
     ss.setSequenceNumber(m_sequenceNumber);
-    //m_sequenceNumber = (m_sequenceNumber + 1) % Segment.MAX_SEQUENCE;
-    ss.setSchemaNumber(number);
-    ss.setSchema(m_schemas.get(number));
     // Add to buffer
-    m_segmentBuffer.add(ss);
+    m_segmentBuffer.add(ss, level);
     m_schemaSegmentsSent++;
     int seg_size = ss.getSize();
     m_schemaSegmentBitsSent += seg_size;
@@ -717,13 +1495,34 @@ public class Sender
    * @param se The schema to put
    */
   public void setSchema(int number, SchemaElement se)
+  {
+    setSchema(number, new Schema(se));
+  }
+  
+  /**
+   * Assigns a given schema to a schema number
+   * @param number The number to put the schema in the bank
+   * @param s The schema to put
+   */
+  public void setSchema(int number, Schema s)
   {
     if (number < 0 || number >= SchemaSegment.SCHEMA_NUMBER_MAX)
     {
       // Invalid schema number: fail
       return;
     }
-    m_schemas.put(number, se);
+    m_schemas.put(number, s);
+    m_schemasAnnounced.remove(number);
+  }
+  
+  /**
+   * Gets the schema assigned to a schema number
+   * @param number The schema number
+   * @return The schema, or null if no schema has this number
+   */
+  public Schema getSchema(int number)
+  {
+    return m_schemas.get(number);
   }
   
   /**
@@ -737,4 +1536,87 @@ public class Sender
     SchemaElement se = SchemaElement.parseSchemaFromString(contents);
     setSchema(number, se);
   }
+  
+  /**
+   * One of the recent messages that delta-segments can refer to. The
+   * sender keeps a window of the last few messages sent since the last
+   * complete message segment (included), whether they were sent as
+   * message segments or as delta-segments.
+   */
+  protected static class Reference
+  {
+    /**
+     * The message
+     */
+    protected final SchemaElement m_message;
+    
+    /**
+     * The schema of the message, if it is registered
+     */
+    protected final Schema m_schema;
+    
+    /**
+     * The sequence number of the segment that carries the message
+     */
+    protected final int m_sequenceNumber;
+    
+    public Reference(SchemaElement message, Schema schema, int sequence_number)
+    {
+      super();
+      m_message = message;
+      m_schema = schema;
+      m_sequenceNumber = sequence_number;
+    }
+  }
+  
+  /**
+   * A segment or a message added by a producer, waiting to be given a
+   * sequence number by the consumer
+   */
+  protected static class PendingSegment
+  {
+    /**
+     * A segment ready to be sent (blob or schema), or null if this is
+     * a message
+     */
+    protected Segment m_segment;
+    
+    /**
+     * The schema number of the message
+     */
+    protected int m_schemaNumber;
+    
+    /**
+     * The message
+     */
+    protected SchemaElement m_message;
+    
+    /**
+     * Whether the message must be sent as a complete message segment
+     */
+    protected boolean m_forceFull;
+    
+    /**
+     * The bits of the complete message
+     */
+    protected BitSequence m_full;
+    
+    /**
+     * The bits of the message expressed as a delta with respect to
+     * {@link #m_reference}, or null if the delta could not be computed
+     */
+    protected BitSequence m_delta;
+    
+    /**
+     * The reference message used to compute the delta, or null if no
+     * delta was computed
+     */
+    protected Reference m_reference;
+    
+    /**
+     * The reference messages among which {@link #m_reference} was
+     * chosen
+     */
+    protected Reference[] m_references;
+  }
 }
@@ -0,0 +1,68 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BitReaderTest
+{
+  @Test
+  public void testRead() throws ReadException
+  {
+    BitSequence bs = new BitSequence("1011001110");
+    BitReader r = new BitReader(bs);
+    assertEquals(10, r.remaining());
+    assertTrue(r.readBit());
+    assertEquals(1, r.position());
+    assertEquals(3, r.readBits(3));
+    assertEquals("0011", r.readSequence(4).toString());
+    assertEquals(2, r.readBits(2));
+    assertEquals(0, r.remaining());
+    // The underlying sequence is never modified
+    assertEquals("1011001110", bs.toString());
+  }
+
+  @Test(expected=ReadException.class)
+  public void testPastEnd() throws ReadException
+  {
+    BitReader r = new BitReader(new BitSequence("101"));
+    r.readBits(2);
+    r.readBits(2);
+  }
+
+  @Test
+  public void testSchemaAndMessage() throws ReadException, BitFormatException, TypeMismatchException
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString("FixedMap { \"a\" : Integer(8), \"b\" : Smallscii }");
+    SchemaElement el = schema.copy();
+    el.put("[a]", 42);
+    el.put("[b]", "hello");
+    BitSequence bs = schema.schemaToBitSequence();
+    bs.addAll(el.toBitSequence());
+    BitReader r = new BitReader(bs);
+    SchemaElement.ElementInt ei = SchemaElement.bitSequenceToSchema(r);
+    SchemaElement read = ei.m_element;
+    int bits_read = read.fromBitSequence(r);
+    assertEquals(bs.size(), ei.m_int + bits_read);
+    assertEquals(0, r.remaining());
+    assertEquals("42", read.get("[a]").toString());
+    assertEquals("\"hello\"", read.get("[b]").toString());
+  }
+}
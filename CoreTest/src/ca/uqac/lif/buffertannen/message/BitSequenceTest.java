@@ -48,4 +48,74 @@ public class BitSequenceTest
     }
   }
 
+  @Test
+  public void testIntValue() throws BitFormatException
+  {
+    BitSequence bs = new BitSequence(14, 4);
+    assertEquals("1110", bs.toString());
+    assertEquals(14, bs.intValue());
+    bs = new BitSequence(0, 0);
+    assertEquals(0, bs.size());
+    assertEquals(0, bs.intValue());
+  }
+
+  @Test(expected=BitFormatException.class)
+  public void testValueTooLarge() throws BitFormatException
+  {
+    new BitSequence(16, 4);
+  }
+
+  @Test
+  public void testWordBoundaries() throws BitFormatException
+  {
+    // Build a sequence spanning several words, with fields that
+    // straddle word boundaries
+    StringBuilder expected = new StringBuilder();
+    BitSequence bs = new BitSequence();
+    for (int i = 0; i < 40; i++)
+    {
+      int value = (i * 37) % 128;
+      BitSequence field = new BitSequence(value, 7);
+      bs.addAll(field);
+      expected.append(field.toString());
+    }
+    assertEquals(280, bs.size());
+    assertEquals(expected.toString(), bs.toString());
+    assertEquals(expected.substring(60, 130), bs.subSequence(60, 70).toString());
+    BitSequence prefix = bs.truncatePrefix(67);
+    assertEquals(expected.substring(0, 67), prefix.toString());
+    assertEquals(expected.substring(67), bs.toString());
+    bs.add(true);
+    assertEquals(expected.substring(67) + "1", bs.toString());
+  }
+
+  @Test
+  public void testXor()
+  {
+    BitSequence bs = new BitSequence("1100");
+    bs.xor(new BitSequence("1010011"));
+    assertEquals("0110011", bs.toString());
+    StringBuilder longer = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+    {
+      longer.append(i % 3 == 0 ? '1' : '0');
+    }
+    BitSequence other = new BitSequence(longer.toString());
+    bs.xor(other);
+    bs.xor(other);
+    assertEquals("0110011", bs.subSequence(0, 7).toString());
+    assertEquals(100, bs.size());
+    assertEquals(-1, bs.toString().indexOf('1', 7));
+  }
+
+  @Test
+  public void testBase64() throws BitFormatException
+  {
+    BitSequence bs = new BitSequence("110100111000101011110000");
+    BitSequence bs2 = new BitSequence();
+    bs2.fromBase64(bs.toBase64());
+    assertEquals(bs, bs2);
+    assertEquals(bs.hashCode(), bs2.hashCode());
+  }
+
 }
@@ -0,0 +1,62 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BitWriterTest
+{
+  @Test
+  public void testWrite() throws BitFormatException
+  {
+    BitWriter w = new BitWriter();
+    w.writeBit(true);
+    w.writeBits(5, 4);
+    w.writeZeros(3);
+    w.write(new BitSequence("11"));
+    assertEquals(10, w.size());
+    assertEquals("1010100011", w.toBitSequence().toString());
+    w.reset();
+    assertEquals(0, w.size());
+    w.writeBits(0x123456789L, 36);
+    assertEquals(0x123456789L, w.getSequence().read(0, 36));
+  }
+
+  @Test(expected=BitFormatException.class)
+  public void testValueTooLarge() throws BitFormatException
+  {
+    BitWriter w = new BitWriter();
+    w.writeBits(8, 3);
+  }
+
+  @Test
+  public void testSharedBuffer() throws BitFormatException, ReadException, TypeMismatchException
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString("FixedMap { \"a\" : Integer(8), \"b\" : List [ Smallscii ] }");
+    SchemaElement el = schema.copy();
+    el.put("[a]", 42);
+    BitWriter w = new BitWriter();
+    schema.writeSchemaTo(w);
+    el.writeTo(w);
+    BitSequence expected = schema.schemaToBitSequence();
+    expected.addAll(el.toBitSequence());
+    assertEquals(expected, w.getSequence());
+  }
+}
@@ -0,0 +1,92 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CompiledPathTest
+{
+  protected static final String SCHEMA = "FixedMap { \"title\" : Smallscii, \"type\" : Enum { \"a\", \"b\" }, \"chapters\" : List [ FixedMap { \"name\" : Smallscii, \"length\" : Integer(8) } ] }";
+
+  protected static final String MESSAGE = "{ \"title\" : \"book\", \"type\" : \"a\", \"chapters\" : [ { \"name\" : \"one\", \"length\" : 3 }, { \"name\" : \"two\", \"length\" : 5 } ] }";
+
+  @Test
+  public void testGetSet() throws Exception
+  {
+    Schema schema = Schema.parse(SCHEMA);
+    CompiledPath length = schema.compilePath("[chapters][1][length]");
+    CompiledPath name = schema.compilePath("[chapters][0].[name]");
+    CompiledPath type = schema.compilePath("[type]");
+    SchemaElement se = schema.newInstance();
+    se.readContentsFromString(MESSAGE);
+    assertEquals(5, length.getInt(se));
+    assertEquals("one", name.getString(se));
+    assertEquals("a", type.getString(se));
+    length.setInt(se, 42);
+    name.setString(se, "first");
+    type.setString(se, "b");
+    // Same as with path expressions
+    assertEquals("42", se.get("[chapters][1][length]").toString());
+    assertEquals(42, length.getInt(se));
+    assertEquals("first", name.getString(se));
+    assertEquals("b", type.getString(se));
+    assertSame(se.get("[chapters][1]"), schema.compilePath("[chapters][1]").get(se));
+  }
+
+  @Test
+  public void testInvalid() throws Exception
+  {
+    Schema schema = Schema.parse(SCHEMA);
+    SchemaElement se = schema.newInstance();
+    se.readContentsFromString(MESSAGE);
+    // No such list element in this message
+    assertNull(schema.compilePath("[chapters][2][length]").get(se));
+    try
+    {
+      schema.compilePath("[chapters][0][length]").setInt(se, 256);
+      fail();
+    }
+    catch (TypeMismatchException e)
+    {
+      // Out of range
+    }
+    try
+    {
+      schema.compilePath("[title]").getInt(se);
+      fail();
+    }
+    catch (TypeMismatchException e)
+    {
+      // Not an integer
+    }
+    for (String path : new String[] {"[nothing]", "[chapters][x]", "[title][0]", "chapters"})
+    {
+      try
+      {
+        schema.compilePath(path);
+        fail(path);
+      }
+      catch (ReadException e)
+      {
+        // Expected
+      }
+    }
+  }
+}
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.buffertannen.message;
 
+import static org.junit.Assert.*;
+
 import org.junit.Test;
 
 public class MapTest
@@ -28,4 +30,36 @@ public class MapTest
     // Not yet implemented
   }
 
+  @Test
+  public void testKeyIndex() throws Exception
+  {
+    StringBuilder schema_string = new StringBuilder("FixedMap { ");
+    for (int i = 0; i < 48; i++)
+    {
+      schema_string.append(i > 0 ? ", " : "").append("\"k").append(i).append("\" : Integer(8)");
+    }
+    schema_string.append(" }");
+    Schema schema = Schema.parse(schema_string.toString());
+    FixedMapElement se = (FixedMapElement) schema.newInstance();
+    FixedMapElement other = (FixedMapElement) schema.newInstance();
+    // The index is shared by all the messages of the schema
+    assertSame(se.m_keyIndex, other.m_keyIndex);
+    assertSame(se.m_keyIndex, ((FixedMapElement) se.copy()).m_keyIndex);
+    for (int i = 0; i < 48; i++)
+    {
+      assertEquals(i, se.indexOfKey("k" + i));
+      se.put("[k" + i + "]", i);
+    }
+    assertEquals(-1, se.indexOfKey("k48"));
+    assertEquals("47", se.get("[k47]").toString());
+    // Keys keep their order in the decoded messages
+    SchemaElement decoded = schema.decode(new BitReader(se.toBitSequence()));
+    assertSame(se.m_keyIndex, ((FixedMapElement) decoded).m_keyIndex);
+    assertEquals(se.toString(), decoded.toString());
+    // Adding a key does not change the index of the schema
+    other.addToSchema("k48", new IntegerElement(0));
+    assertEquals(48, other.indexOfKey("k48"));
+    assertEquals(-1, se.indexOfKey("k48"));
+  }
+
 }
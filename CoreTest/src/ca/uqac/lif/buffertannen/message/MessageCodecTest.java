@@ -0,0 +1,199 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.util.FileHelper;
+
+public class MessageCodecTest
+{
+  protected static final String SCHEMA = "FixedMap { \"a\" : Integer*(8,5), \"b\" : Enum { \"x\", \"y\", \"z\" }, \"c\" : List [ Integer(5) ], \"d\" : Smallscii }";
+
+  @Test
+  public void testNestedMap() throws Exception
+  {
+    SchemaElement schema = MessageParseTest.getSchema("data/Schema-2.txt");
+    SchemaElement se = schema.copy();
+    se.readContentsFromString(FileHelper.internalFileToString(this.getClass(), "data/Message-1.txt"));
+    checkRoundTrip(schema, se);
+  }
+
+  @Test
+  public void testList() throws Exception
+  {
+    SchemaElement schema = MessageParseTest.getSchema("data/Schema-3.txt");
+    SchemaElement se = schema.copy();
+    se.readContentsFromString(FileHelper.internalFileToString(this.getClass(), "data/Message-2.txt"));
+    checkRoundTrip(schema, se);
+  }
+
+  @Test
+  public void testDelta() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString(SCHEMA);
+    SchemaElement ref = schema.copy();
+    ref.readContentsFromString("{ \"a\" : 10, \"b\" : \"x\", \"c\" : [1, 2, 3], \"d\" : \"abc\" }");
+    SchemaElement se = schema.copy();
+    se.readContentsFromString("{ \"a\" : 3, \"b\" : \"z\", \"c\" : [1, 4, 3], \"d\" : \"abc\" }");
+    checkRoundTrip(schema, ref);
+    MessageCodec codec = MessageCodec.compile(schema);
+    BitWriter w = new BitWriter();
+    codec.encodeDelta(ref, se, w);
+    assertEquals(SchemaElement.createFromDelta(ref, se).toBitSequence(true), w.getSequence());
+    SchemaElement decoded = codec.decodeDelta(ref, new BitReader(w.getSequence()));
+    assertEquals(se.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testNoChange() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString(SCHEMA);
+    SchemaElement ref = schema.copy();
+    ref.readContentsFromString("{ \"a\" : 10, \"b\" : \"y\", \"c\" : [1, 2], \"d\" : \"abc\" }");
+    MessageCodec codec = MessageCodec.compile(schema);
+    BitWriter w = new BitWriter();
+    codec.encodeDelta(ref, ref.copy(), w);
+    assertEquals("0", w.getSequence().toString());
+    SchemaElement decoded = codec.decodeDelta(ref, new BitReader(w.getSequence()));
+    assertEquals(ref.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testListLengthChange() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString(SCHEMA);
+    SchemaElement ref = schema.copy();
+    ref.readContentsFromString("{ \"a\" : 10, \"b\" : \"y\", \"c\" : [1, 2], \"d\" : \"abc\" }");
+    // Appended element
+    checkListDelta(schema, ref, "[1, 2, 3]");
+    // Truncated list
+    checkListDelta(schema, ref, "[1]");
+    checkListDelta(schema, ref, "[]");
+    // Rolling window: first element removed, one element appended
+    checkListDelta(schema, ref, "[2, 7]");
+    // Element added at the beginning
+    checkListDelta(schema, ref, "[5, 1, 2]");
+    // Element replaced
+    checkListDelta(schema, ref, "[1, 9]");
+  }
+
+  @Test
+  public void testRollingWindow() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString("List [ Integer(16) ]");
+    SchemaElement ref = schema.copy();
+    ref.readContentsFromString("[1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000]");
+    SchemaElement se = schema.copy();
+    se.readContentsFromString("[2000, 3000, 4000, 5000, 6000, 7000, 8000, 9000]");
+    BitWriter w = new BitWriter();
+    MessageCodec.compile(schema).encodeDelta(ref, se, w);
+    // Remove 1, keep 7 (1 bit each), append 1 (16 bits)
+    assertEquals(2 + 10 + 10 + 7 + 10 + 16 + 2, w.size());
+    assertTrue(w.size() < se.toBitSequence().size());
+  }
+
+  protected static void checkListDelta(SchemaElement schema, SchemaElement ref, String list) throws Exception
+  {
+    SchemaElement se = schema.copy();
+    se.readContentsFromString("{ \"a\" : 10, \"b\" : \"y\", \"c\" : " + list + ", \"d\" : \"abc\" }");
+    MessageCodec codec = MessageCodec.compile(schema);
+    BitWriter w = new BitWriter();
+    codec.encodeDelta(ref, se, w);
+    assertEquals(SchemaElement.createFromDelta(ref, se).toBitSequence(true), w.getSequence());
+    assertEquals(se.toString(), codec.decodeDelta(ref, new BitReader(w.getSequence())).toString());
+    // The tree of the schema reads the same bits
+    SchemaElement delta = schema.copy().readContentsFromBitSequence(w.getSequence(), true).m_element;
+    SchemaElement decoded = ref.copy();
+    decoded.readContentsFromDelta(ref, delta);
+    assertEquals(se.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testDeltaEncodings() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString("FixedMap { \"a\" : Integer*(8,3,xor), \"b\" : Integer(16,4,varint), \"c\" : Integer(16,4,dod) }");
+    assertTrue(schema.schemaToString().contains("Integer*(8,3,xor)"));
+    assertTrue(schema.schemaToString().contains("Integer(16,4,varint)"));
+    assertTrue(schema.schemaToString().contains("Integer(16,4,dod)"));
+    // The encodings are part of the binary representation of the schema
+    SchemaElement read = SchemaElement.bitSequenceToSchema(schema.schemaToBitSequence()).m_element;
+    assertEquals(schema.schemaToString(), read.schemaToString());
+    MessageCodec codec = MessageCodec.compile(schema);
+    SchemaElement ref = schema.copy();
+    ref.readContentsFromString("{ \"a\" : -100, \"b\" : 10, \"c\" : 1000 }");
+    SchemaElement se = schema.copy();
+    // Differences beyond the delta range
+    se.readContentsFromString("{ \"a\" : 100, \"b\" : 5000, \"c\" : 1003 }");
+    BitWriter w = new BitWriter();
+    codec.encodeDelta(ref, se, w);
+    assertEquals(SchemaElement.createFromDelta(ref, se).toBitSequence(true), w.getSequence());
+    assertEquals(se.toString(), codec.decodeDelta(ref, new BitReader(w.getSequence())).toString());
+    // The tree of the schema reads the same bits
+    SchemaElement delta = schema.copy().readContentsFromBitSequence(w.getSequence(), true).m_element;
+    SchemaElement decoded = schema.copy();
+    decoded.readContentsFromDelta(ref, delta);
+    assertEquals(se.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testDeltaOfDelta() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString("FixedMap { \"t\" : Integer(16,4,dod), \"s\" : Smallscii }");
+    MessageCodec codec = MessageCodec.compile(schema);
+    assertTrue(codec.isPredictive());
+    SchemaElement sent = schema.copy();
+    sent.readContentsFromString("{ \"t\" : 1000, \"s\" : \"abc\" }");
+    sent = sent.toReference(null);
+    SchemaElement received = codec.decode(new BitReader(sent.toBitSequence()));
+    for (int i = 1; i <= 10; i++)
+    {
+      SchemaElement se = schema.copy();
+      se.readContentsFromString("{ \"t\" : " + (1000 + 5 * i) + ", \"s\" : \"abc\" }");
+      BitWriter w = new BitWriter();
+      codec.encodeDelta(sent, se, w);
+      if (i > 1)
+      {
+        // The counter goes at the same pace: nothing changed
+        assertEquals("0", w.getSequence().toString());
+      }
+      sent = se.toReference(sent);
+      // The delta is recorded in the reference, not in the message sent
+      assertEquals(0, ((IntegerElement) se.get("[t]")).m_lastDelta);
+      assertEquals(5, ((IntegerElement) sent.get("[t]")).m_lastDelta);
+      received = codec.decodeDelta(received, new BitReader(w.getSequence()));
+      assertEquals(Integer.toString(1000 + 5 * i), received.get("[t]").toString());
+    }
+  }
+
+  protected static void checkRoundTrip(SchemaElement schema, SchemaElement se) throws Exception
+  {
+    MessageCodec codec = MessageCodec.compile(schema);
+    BitWriter w = new BitWriter();
+    codec.encode(se, w);
+    assertEquals(se.toBitSequence(), w.getSequence());
+    SchemaElement decoded = codec.decode(new BitReader(w.getSequence()));
+    // Compare with the message decoded from its tree, since Smallscii
+    // strings do not preserve case
+    SchemaElement expected = schema.copy();
+    expected.fromBitSequence(se.toBitSequence());
+    assertEquals(expected.toString(), decoded.toString());
+  }
+}
@@ -0,0 +1,137 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class MessageReaderTest
+{
+  @Test
+  public void testRead() throws IOException, ReadException
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(8), \"b\" : List [ Smallscii ] }");
+    String text = "{ \"a\" : 1, \"b\" : [ \"x\" ] }\n{\"a\":2,\"b\":[\"y]\",\"z\"]}\n\n  { \"a\" : 3, \"b\" : [] }";
+    // Feed the characters one at a time, so that messages span many reads
+    MessageReader reader = new MessageReader(new SlowReader(text));
+    SchemaElement se = schema.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("1", se.get("[a]").toString());
+    se = schema.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("2", se.get("[a]").toString());
+    assertEquals("\"y]\"", se.get("[b][0]").toString());
+    assertEquals("\"z\"", se.get("[b][1]").toString());
+    se = schema.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("3", se.get("[a]").toString());
+    assertFalse(reader.readNext(schema.newInstance()));
+    assertEquals(3, reader.getMessagesRead());
+  }
+
+  @Test
+  public void testScalars() throws IOException, ReadException
+  {
+    MessageReader reader = new MessageReader(new ByteArrayInputStream("12 -3\n\"abc\"".getBytes("UTF-8")));
+    Schema integers = Schema.parse("Integer*(8)");
+    SchemaElement se = integers.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("12", se.toString());
+    se = integers.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("-3", se.toString());
+    se = Schema.parse("Smallscii").newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("\"abc\"", se.toString());
+    assertFalse(reader.readNext(se));
+  }
+
+  @Test
+  public void testLargeMessage() throws IOException, ReadException
+  {
+    // A message larger than the buffer
+    StringBuilder text = new StringBuilder("[");
+    for (int i = 0; i < 3000; i++)
+    {
+      text.append(i == 0 ? "" : ", ").append(i % 256);
+    }
+    text.append("] [ 1 ]");
+    Schema schema = Schema.parse("List [ Integer(8) ]");
+    MessageReader reader = new MessageReader(new StringReader(text.toString()));
+    SchemaElement se = schema.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("255", se.get("[2815]").toString());
+    se = schema.newInstance();
+    assertTrue(reader.readNext(se));
+    assertEquals("1", se.get("[0]").toString());
+    assertFalse(reader.readNext(se));
+  }
+
+  @Test
+  public void testInvalid() throws IOException, ReadException
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(8) }");
+    // The second one has a valid message followed by a stray brace
+    String[] texts = {"{ \"a\" : 1 ", "{ \"a\" : 1 }}", "{ \"z\" : 1 }"};
+    for (String text : texts)
+    {
+      MessageReader reader = new MessageReader(new StringReader(text));
+      try
+      {
+        while (reader.readNext(schema.newInstance()));
+        fail("Read " + text);
+      }
+      catch (ReadException e)
+      {
+        // Expected
+      }
+    }
+  }
+
+  /**
+   * A reader that returns a single character per call
+   */
+  protected static class SlowReader extends Reader
+  {
+    protected StringReader m_reader;
+
+    public SlowReader(String s)
+    {
+      super();
+      m_reader = new StringReader(s);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+      return m_reader.read(cbuf, off, Math.min(len, 1));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      m_reader.close();
+    }
+  }
+}
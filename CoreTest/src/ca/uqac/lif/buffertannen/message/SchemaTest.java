@@ -0,0 +1,66 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SchemaTest
+{
+  protected static final String SCHEMA = "FixedMap { \"a\" : Integer(8), \"b\" : Enum { \"x\", \"y\" }, \"c\" : List [ Smallscii ] }";
+
+  @Test
+  public void testSharedSchemaData() throws Exception
+  {
+    Schema schema = Schema.parse(SCHEMA);
+    FixedMapElement m1 = (FixedMapElement) schema.newInstance();
+    FixedMapElement m2 = (FixedMapElement) schema.newInstance();
+    assertSame(m1.m_keys, m2.m_keys);
+    assertSame(((EnumElement) m1.get("[b]")).m_constants, ((EnumElement) m2.get("[b]")).m_constants);
+    assertSame(((ListElement) m1.get("[c]")).m_elementType, ((ListElement) m2.get("[c]")).m_elementType);
+    // Values are not shared
+    m1.put("[a]", 12);
+    assertEquals("0", m2.get("[a]").toString());
+    assertEquals("0", schema.newInstance().get("[a]").toString());
+  }
+
+  @Test
+  public void testCopyOnWrite()
+  {
+    FixedMapElement map = new FixedMapElement();
+    map.addToSchema("a", new IntegerElement(0));
+    FixedMapElement copy = (FixedMapElement) map.copy();
+    map.addToSchema("b", new IntegerElement(0));
+    assertEquals(1, copy.m_keys.size());
+    assertEquals(2, map.m_keys.size());
+  }
+
+  @Test
+  public void testDecodeSharesSchemaData() throws Exception
+  {
+    Schema schema = Schema.parse(SCHEMA);
+    SchemaElement se = schema.newInstance();
+    se.readContentsFromString("{ \"a\" : 3, \"b\" : \"y\", \"c\" : [ \"abc\" ] }");
+    BitWriter w = new BitWriter();
+    schema.encode(se, w);
+    FixedMapElement decoded = (FixedMapElement) schema.decode(new BitReader(w.getSequence()));
+    assertSame(((FixedMapElement) schema.getTemplate()).m_keys, decoded.m_keys);
+    assertEquals(se.toString(), decoded.toString());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TextCursorTest
+{
+  @Test
+  public void testRead() throws ReadException
+  {
+    TextCursor c = new TextCursor("  -42, \"abc\" \"x y\" : 7)");
+    c.skipWhitespace();
+    assertEquals(2, c.position());
+    assertTrue(c.startsWith("-4"));
+    assertEquals(-42, c.readInt());
+    assertTrue(c.consume(','));
+    assertFalse(c.consume(','));
+    c.skipWhitespace();
+    assertEquals("abc", c.readQuoted());
+    assertEquals("x y", c.readUntil(":"));
+    assertTrue(c.consume(':'));
+    assertNull(c.readUntil("]"));
+    c.skipWhitespace();
+    assertEquals(7, c.readInt());
+    assertTrue(c.consume(')'));
+    assertTrue(c.atEnd());
+  }
+
+  @Test(expected=ReadException.class)
+  public void testNotAnInteger() throws ReadException
+  {
+    new TextCursor("abc").readInt();
+  }
+
+  @Test
+  public void testSchema() throws ReadException
+  {
+    String schema = "FixedMap {\n  \"a\" : Integer*(8, 4, dod),\n  b:List[ Smallscii ]\n  \"c\" : FixedMap{\"d\":Integer(3)}\n}";
+    SchemaElement se = SchemaElement.parseSchemaFromString(schema);
+    assertEquals("FixedMap {\n  a : Integer*(8,4,dod),\n  b : List [Smallscii],\n  c : FixedMap {\n    d : Integer(3,3)\n  }\n}", se.schemaToString());
+    // Parsing the printed schema yields the same schema
+    assertEquals(se.schemaToString(), SchemaElement.parseSchemaFromString(se.schemaToString()).schemaToString());
+    se = SchemaElement.parseSchemaFromString("Enum { \"x\", y }");
+    assertEquals("EnumElement [x, y]", se.schemaToString());
+  }
+
+  @Test
+  public void testMessage() throws ReadException
+  {
+    SchemaElement se = SchemaElement.parseSchemaFromString("FixedMap { \"a\" : Integer*(8), \"b\" : List [ Smallscii ], \"c\" : List [ FixedMap { \"d\" : Integer(4) } ] }");
+    se.readContentsFromString("{ \"a\" : -3 , \"b\" : [ \"x]\", \"}y\" ], \"c\" : [ { \"d\" : 1 }, { \"d\" : 2 } ] }");
+    assertEquals("-3", se.get("[a]").toString());
+    assertEquals("\"x]\"", se.get("[b][0]").toString());
+    assertEquals("\"}y\"", se.get("[b][1]").toString());
+    assertEquals("2", se.get("[c][1][d]").toString());
+    SchemaElement copy = SchemaElement.parseSchemaFromString(se.schemaToString());
+    copy.readContentsFromString(se.toString());
+    assertEquals(se.toString(), copy.toString());
+  }
+
+  @Test
+  public void testInvalid()
+  {
+    String[] schemas = {"Float", "List [ Integer", "FixedMap { \"a\" Integer }", "Integer(0)", "Integer(8", "Enum { a, , b }"};
+    for (String s : schemas)
+    {
+      try
+      {
+        SchemaElement.parseSchemaFromString(s);
+        fail("Parsed " + s);
+      }
+      catch (ReadException e)
+      {
+        // Expected
+      }
+    }
+    SchemaElement se = null;
+    try
+    {
+      se = SchemaElement.parseSchemaFromString("FixedMap { \"a\" : Integer(8), \"b\" : List [ Smallscii ] }");
+    }
+    catch (ReadException e)
+    {
+      fail(e.getMessage());
+    }
+    String[] messages = {"{ \"a\" : x }", "{ \"z\" : 1 }", "{ \"b\" : [ \"x\" ", "{ \"b\" : [ x ] }", "{ \"a\" : 1"};
+    for (String s : messages)
+    {
+      try
+      {
+        se.copy().readContentsFromString(s);
+        fail("Parsed " + s);
+      }
+      catch (ReadException e)
+      {
+        // Expected
+      }
+    }
+  }
+}
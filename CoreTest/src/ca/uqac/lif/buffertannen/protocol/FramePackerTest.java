@@ -0,0 +1,239 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.Schema;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+
+public class FramePackerTest
+{
+  @Test
+  public void testFifo()
+  {
+    LinkedList<Segment> buffer = buffer(blob(0, 60), blob(1, 50), blob(2, 30));
+    Frame f = new Frame();
+    int used = new FifoPacker().pack(buffer, f, 100);
+    assertEquals(1, f.size());
+    assertEquals(60, used);
+    assertEquals(2, buffer.size());
+  }
+
+  @Test
+  public void testBestFit()
+  {
+    LinkedList<Segment> buffer = buffer(blob(0, 60), blob(1, 50), blob(2, 30), blob(3, 40));
+    Frame f = new Frame();
+    int used = new BestFitPacker().pack(buffer, f, 100);
+    assertEquals(100, used);
+    assertEquals(2, f.size());
+    assertEquals(0, f.get(0).getSequenceNumber());
+    assertEquals(3, f.get(1).getSequenceNumber());
+    assertEquals(2, buffer.size());
+    assertEquals(1, buffer.get(0).getSequenceNumber());
+  }
+
+  @Test
+  public void testDeltaAfterReference()
+  {
+    DeltaSegment ds = new DeltaSegment();
+    ds.setSequenceNumber(2);
+    ds.setDeltaToWhat(1);
+    ds.setContents(new BitSequence());
+    int delta_size = ds.getSize();
+    LinkedList<Segment> buffer = buffer(blob(0, 50), message(1, 60), ds, blob(3, 20));
+    Frame f = new Frame();
+    new BestFitPacker().pack(buffer, f, 50 + delta_size + 20);
+    // The delta fits, but its reference does not
+    assertEquals(2, f.size());
+    assertEquals(3, f.get(1).getSequenceNumber());
+    // Once the reference is sent, the delta can follow
+    f = new Frame();
+    new BestFitPacker().pack(buffer, f, 60 + delta_size);
+    assertEquals(2, f.size());
+    assertEquals(2, f.get(1).getSequenceNumber());
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void testOversized()
+  {
+    LinkedList<Segment> buffer = buffer(blob(0, 200), blob(1, 50));
+    Frame f = new Frame();
+    List<Segment> discarded = new LinkedList<Segment>();
+    new BestFitPacker().pack(buffer, f, 100, discarded);
+    assertEquals(1, f.size());
+    assertEquals(1, f.get(0).getSequenceNumber());
+    assertEquals(1, discarded.size());
+    assertEquals(0, discarded.get(0).getSequenceNumber());
+  }
+
+  @Test
+  public void testSenderOversized()
+  {
+    Sender sender = new Sender();
+    sender.addBlob(new BitSequence("10110"));
+    // The blob no longer fits once frames are made this small
+    sender.setFrameMaxLength(8);
+    Frame f = sender.pollBuffer();
+    assertEquals(0, f.size());
+    assertEquals(0, sender.getBufferSizeBits());
+    assertEquals(1, sender.getNumberOfDiscardedSegments());
+  }
+
+  @Test
+  public void testSenderBestFit() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(12), \"b\" : Smallscii }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setFramePacker(new BestFitPacker());
+    Receiver recv = new Receiver();
+    int received = 0;
+    for (int i = 0; i < 300; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[a]", i);
+      se.put("[b]", (i % 7 == 0) ? "a much longer string" : "x");
+      sender.addMessage(0, se);
+      if (i % 3 == 0)
+      {
+        BitSequence bs = sender.pollBitSequence();
+        recv.putBitSequence(bs);
+      }
+      while (recv.pollMessage() != null)
+      {
+        received++;
+      }
+    }
+    BitSequence bs = sender.pollBitSequence();
+    while (bs != null)
+    {
+      recv.putBitSequence(bs);
+      bs = sender.pollBitSequence();
+    }
+    while (recv.pollMessage() != null)
+    {
+      received++;
+    }
+    assertEquals(300, received);
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testPriorityBuffer()
+  {
+    PriorityBuffer pb = new PriorityBuffer(new int[] {2, 1});
+    for (int i = 0; i < 6; i++)
+    {
+      pb.add(blob(i, 60), 0);
+      pb.add(blob(100 + i, 60), 1);
+    }
+    assertEquals(12, pb.size());
+    // Each level leads a number of frames proportional to its weight
+    StringBuilder leads = new StringBuilder();
+    for (int i = 0; i < 6; i++)
+    {
+      Frame f = new Frame();
+      pb.pack(new FifoPacker(), f, 100, null);
+      assertEquals(1, f.size());
+      leads.append(f.get(0).getSequenceNumber() < 100 ? "A" : "B");
+    }
+    assertEquals("AABAAB", leads.toString());
+    // The room left in a frame goes to the other levels
+    pb.clear();
+    pb.add(blob(0, 60), 0);
+    pb.add(blob(1, 30), 1);
+    Frame f = new Frame();
+    pb.pack(new FifoPacker(), f, 100, null);
+    assertEquals(2, f.size());
+    assertTrue(pb.isEmpty());
+  }
+
+  @Test
+  public void testSchemaFirst() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(12) }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    for (int i = 0; i < 40; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[a]", i);
+      sender.addMessage(0, se);
+    }
+    // The schema needed by the messages goes ahead of them
+    Frame f = sender.pollBuffer();
+    assertTrue(f.get(0) instanceof SchemaSegment);
+    assertEquals(0, f.get(1).getSequenceNumber());
+  }
+
+  /**
+   * Creates a blob segment of a given total size
+   */
+  protected static BlobSegment blob(int seq_no, int size)
+  {
+    BlobSegment bs = new BlobSegment();
+    bs.setSequenceNumber(seq_no);
+    bs.setContents(new BitSequence());
+    int header = bs.getSize();
+    StringBuilder bits = new StringBuilder();
+    for (int i = header; i < size; i++)
+    {
+      bits.append("1");
+    }
+    bs.setContents(new BitSequence(bits.toString()));
+    return bs;
+  }
+
+  /**
+   * Creates a message segment of a given total size
+   */
+  protected static MessageSegment message(int seq_no, int size)
+  {
+    MessageSegment ms = new MessageSegment();
+    ms.setSequenceNumber(seq_no);
+    ms.setSchemaNumber(0);
+    ms.setContents(new BitSequence());
+    int header = ms.getSize();
+    StringBuilder bits = new StringBuilder();
+    for (int i = header; i < size; i++)
+    {
+      bits.append("0");
+    }
+    ms.setContents(new BitSequence(bits.toString()));
+    return ms;
+  }
+
+  protected static LinkedList<Segment> buffer(Segment ... segments)
+  {
+    LinkedList<Segment> out = new LinkedList<Segment>();
+    for (Segment seg : segments)
+    {
+      out.add(seg);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,178 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Test;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+
+public class FrameSchedulerTest
+{
+  protected static final long MS = 1000000L;
+
+  @Test
+  public void testFrameRate()
+  {
+    Sender sender = new Sender();
+    for (int i = 0; i < 20; i++)
+    {
+      sender.addBlob(blobContents(400));
+    }
+    CollectingSink sink = new CollectingSink();
+    FrameScheduler fs = new FrameScheduler(sender, sink);
+    fs.setFrameRate(10);
+    fs.tick(0);
+    assertEquals(1, sink.m_frames.size());
+    fs.tick(50 * MS);
+    assertEquals(1, sink.m_frames.size());
+    fs.tick(100 * MS);
+    assertEquals(2, sink.m_frames.size());
+    // An idle period does not let frames accumulate beyond the burst size
+    fs.tick(1100 * MS);
+    assertEquals(3, sink.m_frames.size());
+    fs.setBurstSize(5);
+    fs.tick(2100 * MS);
+    assertEquals(8, sink.m_frames.size());
+    // 12 blobs left, one per frame, at 10 frames per second
+    assertEquals(1200, fs.getQueueDelay());
+  }
+
+  @Test
+  public void testBitRate()
+  {
+    Sender sender = new Sender();
+    for (int i = 0; i < 20; i++)
+    {
+      sender.addBlob(blobContents(400));
+    }
+    CollectingSink sink = new CollectingSink();
+    FrameScheduler fs = new FrameScheduler(sender, sink);
+    fs.setBitRate(5120);
+    fs.setBurstSize(5120);
+    fs.tick(0);
+    for (int i = 1; i <= 10; i++)
+    {
+      fs.tick(i * 100 * MS);
+    }
+    // About 1 second worth of data, plus the initial frame
+    long bits = fs.getNumberOfBits();
+    assertTrue(bits <= 5120 + 512);
+    assertTrue(bits > 5120 - 512);
+    assertEquals(sink.m_frames.size(), fs.getNumberOfFrames());
+  }
+
+  @Test
+  public void testNegativeClock()
+  {
+    Sender sender = new Sender();
+    for (int i = 0; i < 5; i++)
+    {
+      sender.addBlob(blobContents(400));
+    }
+    CollectingSink sink = new CollectingSink();
+    FrameScheduler fs = new FrameScheduler(sender, sink);
+    fs.setFrameRate(10);
+    // The values of System.nanoTime() can be negative
+    long start = -5000 * MS;
+    fs.tick(start);
+    fs.tick(start + 50 * MS);
+    assertEquals(1, sink.m_frames.size());
+    fs.tick(start + 100 * MS);
+    assertEquals(2, sink.m_frames.size());
+  }
+
+  @Test
+  public void testStartStop() throws Exception
+  {
+    Sender sender = new Sender();
+    CollectingSink sink = new CollectingSink();
+    FrameScheduler fs = new FrameScheduler(sender, sink);
+    fs.setFrameRate(1000);
+    fs.setPeriod(1);
+    fs.start();
+    for (int i = 0; i < 10; i++)
+    {
+      sender.addBlob(blobContents(400));
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sink.m_frames.size() < 10 && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(5);
+    }
+    fs.stop();
+    assertEquals(10, sink.m_frames.size());
+    Receiver recv = new Receiver();
+    for (BitSequence bs : sink.m_frames)
+    {
+      recv.putBitSequence(bs);
+    }
+    assertEquals(4000, recv.pollBinaryBuffer(-1).size());
+  }
+
+  @Test
+  public void testSinkError() throws Exception
+  {
+    Sender sender = new Sender();
+    sender.addBlob(blobContents(400));
+    FrameScheduler fs = new FrameScheduler(sender, new FrameSink()
+    {
+      @Override
+      public void send(BitSequence frame)
+      {
+        throw new IllegalStateException("Channel closed");
+      }
+    });
+    fs.setFrameRate(1000);
+    fs.setPeriod(1);
+    fs.start();
+    // Changing the period reschedules the running ticks
+    fs.setPeriod(2);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (fs.getLastError() == null && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(5);
+    }
+    fs.stop();
+    assertEquals("Channel closed", fs.getLastError().getMessage());
+  }
+
+  protected static BitSequence blobContents(int size)
+  {
+    BitSequence bs = new BitSequence();
+    for (int i = 0; i < size; i++)
+    {
+      bs.add(i % 2 == 0);
+    }
+    return bs;
+  }
+
+  protected static class CollectingSink implements FrameSink
+  {
+    protected final ConcurrentLinkedQueue<BitSequence> m_frames = new ConcurrentLinkedQueue<BitSequence>();
+
+    @Override
+    public void send(BitSequence frame)
+    {
+      m_frames.add(frame);
+    }
+  }
+}
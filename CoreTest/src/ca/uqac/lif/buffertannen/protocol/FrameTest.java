@@ -0,0 +1,93 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.ReadException;
+
+public class FrameTest
+{
+  @Test
+  public void testReadWrite() throws ReadException
+  {
+    Frame f = new Frame();
+    f.setMaxLength(512);
+    f.setResourceIdentifier("abc");
+    MessageSegment ms = new MessageSegment();
+    ms.setSchemaNumber(3);
+    ms.setSequenceNumber(10);
+    ms.setContents(new BitSequence("00100010111011010110"));
+    f.add(ms);
+    BlobSegment bs = new BlobSegment();
+    bs.setSequenceNumber(11);
+    bs.setContents(new BitSequence("101"));
+    f.add(bs);
+    BitSequence seq = f.toBitSequence();
+    assertEquals(512, seq.size());
+    Frame f2 = new Frame();
+    f2.fromBitSequence(seq);
+    assertEquals(2, f2.size());
+    assertEquals("abc", f2.getResourceIdentifier());
+    MessageSegment ms2 = (MessageSegment) f2.get(0);
+    assertEquals(10, ms2.getSequenceNumber());
+    assertEquals(ms.getContents(), ms2.getContents());
+    BlobSegment bs2 = (BlobSegment) f2.get(1);
+    assertEquals(11, bs2.getSequenceNumber());
+    assertEquals("101", bs2.getContents().toString());
+  }
+
+  @Test
+  public void testCachedEncoding() throws Exception
+  {
+    MessageSegment ms = new MessageSegment();
+    ms.setSchemaNumber(3);
+    ms.setSequenceNumber(10);
+    ms.setContents(new BitSequence("0010"));
+    BitSequence enc = ms.getEncoding();
+    assertSame(enc, ms.getEncoding());
+    assertEquals(enc, ms.toBitSequence());
+    // Changing a field discards the cached encoding
+    ms.setSequenceNumber(11);
+    BitSequence enc2 = ms.getEncoding();
+    assertNotSame(enc, enc2);
+    assertEquals(ms.toBitSequence(), enc2);
+    // Writing a frame twice gives the same bits
+    Frame f = new Frame();
+    f.setMaxLength(128);
+    f.add(ms);
+    assertEquals(f.toBitSequence(), f.toBitSequence());
+    Frame f2 = new Frame();
+    f2.fromBitSequence(f.toBitSequence());
+    assertEquals(11, f2.get(0).getSequenceNumber());
+  }
+
+  @Test
+  public void testTooLong()
+  {
+    Frame f = new Frame();
+    f.setMaxLength(64);
+    BlobSegment bs = new BlobSegment();
+    bs.setContents(new BitSequence("10101010101010101010101010101010"));
+    f.add(bs);
+    assertNull(f.toBitSequence());
+  }
+}
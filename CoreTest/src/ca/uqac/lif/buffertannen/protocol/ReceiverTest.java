@@ -0,0 +1,390 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.FixedMapElement;
+import ca.uqac.lif.buffertannen.message.IntegerElement;
+import ca.uqac.lif.buffertannen.message.Schema;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+import ca.uqac.lif.buffertannen.message.SmallsciiElement;
+
+public class ReceiverTest
+{
+  @Test
+  public void testSegmentBuffer()
+  {
+    SegmentBuffer buf = new SegmentBuffer();
+    assertTrue(buf.isEmpty());
+    assertTrue(buf.put(blob(3, "1")));
+    assertFalse(buf.put(blob(3, "0")));
+    assertTrue(buf.contains(3));
+    assertFalse(buf.contains(2));
+    assertEquals("1", ((BlobSegment) buf.get(3)).getContents().toString());
+    assertEquals(1, buf.size());
+    assertNotNull(buf.remove(3));
+    assertNull(buf.remove(3));
+    assertTrue(buf.isEmpty());
+    // Slots wrap around at the maximum sequence number
+    buf.put(blob(Segment.MAX_SEQUENCE - 1, "1"));
+    assertTrue(buf.contains(-1));
+  }
+
+  @Test
+  public void testReorder()
+  {
+    Receiver recv = new Receiver();
+    recv.putFrame(frame(blob(2, "11")));
+    assertEquals(0, recv.pollBinaryBuffer(-1).size());
+    recv.putFrame(frame(blob(0, "0")));
+    assertEquals("0", recv.pollBinaryBuffer(-1).toString());
+    // Duplicate of a segment already buffered
+    recv.putFrame(frame(blob(2, "00")));
+    recv.putFrame(frame(blob(1, "1")));
+    assertEquals("111", recv.pollBinaryBuffer(-1).toString());
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testLost()
+  {
+    Receiver recv = new Receiver();
+    recv.putFrame(frame(blob(30, "1")));
+    // Segments 0 to 8 are too far behind and are declared lost
+    assertEquals(9, recv.getMessageLostCount());
+    recv.putFrame(frame(blob(5, "0")));
+    assertEquals(0, recv.pollBinaryBuffer(-1).size());
+    recv.putFrame(frame(blob(9, "0")));
+    assertEquals("0", recv.pollBinaryBuffer(-1).toString());
+  }
+
+  @Test
+  public void testReferenceStore()
+  {
+    ReferenceStore store = new ReferenceStore(4);
+    SchemaElement e = new IntegerElement(3);
+    Schema schema = new Schema(e);
+    store.put(1, e, schema);
+    assertSame(e, store.getMessage(1));
+    assertSame(schema, store.getSchema(1));
+    assertNull(store.getMessage(2));
+    store.put(5, e, schema);
+    assertNull(store.getMessage(1));
+    assertNotNull(store.getMessage(5));
+    assertEquals(2, store.getHits());
+    assertEquals(2, store.getMisses());
+    assertEquals(1, store.getEvictions());
+    store.setWindow(8);
+    assertNotNull(store.getMessage(5));
+  }
+
+  @Test
+  public void testReferenceStoreWrap()
+  {
+    // 100 does not divide the sequence space
+    ReferenceStore store = new ReferenceStore(100);
+    assertEquals(128, store.getWindow());
+    SchemaElement e1 = new IntegerElement(1);
+    SchemaElement e2 = new IntegerElement(2);
+    Schema schema = new Schema(e1);
+    store.put(4050, e1, schema);
+    // Less than a window after 4050, once the sequence numbers wrap around
+    store.put(50, e2, schema);
+    assertSame(e1, store.getMessage(4050));
+    assertSame(e2, store.getMessage(50));
+    assertEquals(0, store.getEvictions());
+    store.setWindow(Segment.MAX_SEQUENCE + 1);
+    assertEquals(Segment.MAX_SEQUENCE, store.getWindow());
+    assertSame(e1, store.getMessage(4050));
+  }
+
+  @Test
+  public void testReferencesBounded() throws Exception
+  {
+    FixedMapElement schema = new FixedMapElement();
+    schema.addToSchema("a", new IntegerElement(0));
+    // A field that does not change, so that deltas are worth sending
+    schema.addToSchema("b", new SmallsciiElement());
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setDeltaSegmentInterval(2);
+    Receiver recv = new Receiver();
+    recv.setReferenceWindow(8);
+    for (int i = 0; i < 50; i++)
+    {
+      SchemaElement msg = schema.copy();
+      msg.put("[a]", i);
+      msg.put("[b]", "constant");
+      sender.addMessage(0, msg);
+      BitSequence bs = sender.pollBitSequence();
+      recv.putBitSequence(bs);
+      assertEquals(Integer.toString(i), recv.pollMessage().get("[a]").toString());
+    }
+    assertTrue(recv.getReferenceHits() > 0);
+    assertEquals(0, recv.getReferenceMisses());
+    assertTrue(recv.getReferenceEvictions() > 0);
+  }
+
+  @Test
+  public void testSequenceDistance()
+  {
+    assertEquals(3, Segment.sequenceDistance(4095, 2));
+    assertEquals(-3, Segment.sequenceDistance(2, 4095));
+    assertEquals(0, Segment.sequenceDistance(7, 7));
+    assertEquals(1, Segment.sequenceDistance(-1, 0));
+    assertEquals(0, Segment.nextSequence(Segment.MAX_SEQUENCE - 1));
+  }
+
+  @Test
+  public void testWraparound()
+  {
+    Receiver recv = new Receiver();
+    // Joining a stream that has already wrapped
+    recv.putFrame(frame(blob(4093, "0")));
+    assertEquals("0", recv.pollBinaryBuffer(-1).toString());
+    recv.putFrame(frame(blob(4095, "1")));
+    recv.putFrame(frame(blob(1, "1")));
+    assertEquals(0, recv.pollBinaryBuffer(-1).size());
+    recv.putFrame(frame(blob(0, "0")));
+    recv.putFrame(frame(blob(4094, "0")));
+    assertEquals("0101", recv.pollBinaryBuffer(-1).toString());
+    // Retransmission of a segment from before the wrap
+    recv.putFrame(frame(blob(4095, "1")));
+    assertEquals(0, recv.pollBinaryBuffer(-1).size());
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testLongStream() throws Exception
+  {
+    FixedMapElement schema = new FixedMapElement();
+    schema.addToSchema("a", new IntegerElement(0));
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    Receiver recv = new Receiver();
+    int received = 0;
+    for (int i = 0; i < 2 * Segment.MAX_SEQUENCE + 100; i++)
+    {
+      SchemaElement msg = schema.copy();
+      msg.put("[a]", i % 1000);
+      sender.addMessage(0, msg);
+      BitSequence bs = sender.pollBitSequence();
+      while (bs != null)
+      {
+        recv.putBitSequence(bs);
+        bs = sender.pollBitSequence();
+      }
+      SchemaElement se = recv.pollMessage();
+      while (se != null)
+      {
+        assertEquals(Integer.toString(received % 1000), se.get("[a]").toString());
+        received++;
+        se = recv.pollMessage();
+      }
+    }
+    assertEquals(2 * Segment.MAX_SEQUENCE + 100, received);
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testFragmentRoundTrip() throws Exception
+  {
+    BlobSegment big = blob(7, repeat("10110", 400));
+    List<FragmentSegment> fragments = FragmentSegment.split(big, 512);
+    assertEquals(5, fragments.size());
+    for (FragmentSegment fs : fragments)
+    {
+      assertTrue(fs.getSize() <= 512);
+      assertEquals(7, fs.getSequenceNumber());
+    }
+    Frame f = new Frame();
+    f.add(fragments.get(2));
+    Frame f2 = new Frame();
+    f2.fromBitSequence(f.toBitSequence());
+    FragmentSegment fs = (FragmentSegment) f2.get(0);
+    assertEquals(2, fs.getIndex());
+    assertEquals(5, fs.getCount());
+    assertEquals(fragments.get(2).getContents().toString(), fs.getContents().toString());
+  }
+
+  @Test
+  public void testReassembly() throws Exception
+  {
+    BlobSegment big = blob(0, repeat("10110", 400));
+    List<FragmentSegment> fragments = FragmentSegment.split(big, 512);
+    Receiver recv = new Receiver();
+    // Fragments arrive out of order, some of them twice
+    for (int i = fragments.size() - 1; i >= 0; i--)
+    {
+      recv.putFrame(frame(fragments.get(i)));
+      recv.putFrame(frame(fragments.get(fragments.size() - 1)));
+    }
+    assertEquals(repeat("10110", 400), recv.pollBinaryBuffer(-1).toString());
+    // Repetitions of an already processed segment are ignored
+    recv.putFrame(frame(fragments.get(0)));
+    assertEquals(0, recv.pollBinaryBuffer(-1).size());
+    assertEquals(0, recv.getFragmentedSegmentsLost());
+  }
+
+  @Test
+  public void testReassemblyBounded() throws Exception
+  {
+    FragmentAssembler fa = new FragmentAssembler(2);
+    fa.setTimeout(100);
+    List<FragmentSegment> a = FragmentSegment.split(blob(1, repeat("1", 1000)), 512);
+    List<FragmentSegment> b = FragmentSegment.split(blob(2, repeat("0", 1000)), 512);
+    List<FragmentSegment> c = FragmentSegment.split(blob(3, repeat("1", 1000)), 512);
+    assertNull(fa.add(a.get(0), 0));
+    assertNull(fa.add(b.get(0), 10));
+    // Assembler full: the oldest segment is abandoned
+    assertNull(fa.add(c.get(0), 20));
+    assertEquals(1, fa.getDiscarded());
+    assertNull(fa.add(a.get(1), 30));
+    assertEquals(2, fa.getDiscarded());
+    // The first fragments of segments 1 and 3 were received too long ago
+    assertNull(fa.add(c.get(1), 200));
+    assertEquals(4, fa.getDiscarded());
+    assertEquals(1, fa.size());
+    assertNull(fa.add(c.get(0), 210));
+    Segment seg = fa.add(c.get(2), 220);
+    assertEquals(3, seg.getSequenceNumber());
+    assertEquals(repeat("1", 1000), ((BlobSegment) seg).getContents().toString());
+    assertEquals(0, fa.size());
+  }
+
+  @Test
+  public void testLargeMessage() throws Exception
+  {
+    SchemaElement schema = SchemaElement.parseSchemaFromString("FixedMap { \"a\" : Smallscii, \"b\" : Integer(8) }");
+    Sender sender = new Sender();
+    sender.setFrameMaxLength(512);
+    sender.setSchema(0, schema);
+    Receiver recv = new Receiver();
+    String text = repeat("the quick brown fox jumps over the lazy dog ", 6);
+    for (int i = 0; i < 10; i++)
+    {
+      SchemaElement msg = schema.copy();
+      msg.put("[a]", text);
+      msg.put("[b]", i);
+      sender.addMessage(0, msg, true);
+    }
+    List<BitSequence> frames = new ArrayList<BitSequence>();
+    BitSequence bs = sender.pollBitSequence();
+    while (bs != null)
+    {
+      assertTrue(bs.size() <= 512);
+      frames.add(bs);
+      bs = sender.pollBitSequence();
+    }
+    assertEquals(10, sender.getNumberOfFragmentedSegments());
+    // Swap every two frames, but keep the schema in front
+    for (int i = 1; i + 1 < frames.size(); i += 2)
+    {
+      Collections.swap(frames, i, i + 1);
+    }
+    for (BitSequence frame : frames)
+    {
+      recv.putBitSequence(frame);
+    }
+    for (int i = 0; i < 10; i++)
+    {
+      SchemaElement se = recv.pollMessage();
+      assertNotNull(se);
+      assertEquals("\"" + text + "\"", se.get("[a]").toString());
+      assertEquals(Integer.toString(i), se.get("[b]").toString());
+    }
+    assertTrue(recv.getNumberOfFragments() > 10);
+  }
+
+  @Test
+  public void testParity() throws Exception
+  {
+    FixedMapElement schema = new FixedMapElement();
+    schema.addToSchema("a", new IntegerElement(0));
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setParityGroupSize(4);
+    sender.m_repeatAfterN = 0;
+    Receiver recv = new Receiver();
+    for (int i = 0; i < 12; i++)
+    {
+      SchemaElement msg = schema.copy();
+      msg.put("[a]", i);
+      sender.addMessage(0, msg);
+    }
+    Frame f = sender.pollBuffer();
+    while (f != null)
+    {
+      Frame received = new Frame();
+      for (Segment seg : f)
+      {
+        // Segment 5 is lost
+        if (seg instanceof ParitySegment || seg.getSequenceNumber() != 5 || seg instanceof SchemaSegment)
+        {
+          received.add(seg);
+        }
+      }
+      // Go through the wire format
+      Frame decoded = new Frame();
+      decoded.fromBitSequence(received.toBitSequence());
+      recv.putFrame(decoded);
+      f = sender.pollBuffer();
+    }
+    assertEquals(3, sender.getNumberOfParitySegments());
+    assertEquals(1, recv.getNumberOfRecoveredSegments());
+    assertEquals(0, recv.getMessageLostCount());
+    for (int i = 0; i < 12; i++)
+    {
+      assertEquals(Integer.toString(i), recv.pollMessage().get("[a]").toString());
+    }
+    assertNull(recv.pollMessage());
+  }
+
+  protected static String repeat(String s, int times)
+  {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < times; i++)
+    {
+      out.append(s);
+    }
+    return out.toString();
+  }
+
+  protected static BlobSegment blob(int seq_no, String bits)
+  {
+    BlobSegment bs = new BlobSegment();
+    bs.setSequenceNumber(seq_no);
+    bs.setContents(new BitSequence(bits));
+    return bs;
+  }
+
+  protected static Frame frame(Segment seg)
+  {
+    Frame f = new Frame();
+    f.add(seg);
+    return f;
+  }
+}
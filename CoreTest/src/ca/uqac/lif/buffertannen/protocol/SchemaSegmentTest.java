@@ -23,6 +23,7 @@ import org.junit.Test;
 
 import ca.uqac.lif.buffertannen.message.BitSequence;
 import ca.uqac.lif.buffertannen.message.ReadException;
+import ca.uqac.lif.buffertannen.message.Schema;
 import ca.uqac.lif.buffertannen.message.SchemaElement;
 import ca.uqac.lif.buffertannen.protocol.SchemaSegment;
 import ca.uqac.lif.buffertannen.protocol.Segment;
@@ -87,4 +88,23 @@ public class SchemaSegmentTest
     }
   }
 
+  @Test
+  public void testSchemaBits() throws ReadException
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Smallscii, \"b\" : Integer(3) }");
+    assertSame(schema.toBitSequence(), schema.toBitSequence());
+    assertEquals(schema.getTemplate().schemaToBitSequence(), schema.toBitSequence());
+    SchemaSegment ms = new SchemaSegment();
+    ms.setSchemaNumber(3);
+    ms.setSequenceNumber(10);
+    ms.setSchema(schema);
+    assertSame(schema.toBitSequence(), ms.getSchemaBits());
+    SchemaSegment ms2 = new SchemaSegment();
+    ms2.setSchemaNumber(3);
+    ms2.setSequenceNumber(10);
+    ms2.setSchema(schema.getTemplate());
+    assertEquals(ms2.toBitSequence(), ms.toBitSequence());
+    assertEquals(ms.toBitSequence().size(), ms.getSize());
+  }
+
 }
@@ -0,0 +1,455 @@
+/*
+    Buffer Tannen, a binary message protocol
+    Copyright (C) 2013-2018  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.buffertannen.protocol;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import ca.uqac.lif.buffertannen.message.BitSequence;
+import ca.uqac.lif.buffertannen.message.MessageReader;
+import ca.uqac.lif.buffertannen.message.Schema;
+import ca.uqac.lif.buffertannen.message.SchemaElement;
+import ca.uqac.lif.buffertannen.message.TypeMismatchException;
+
+public class SenderTest
+{
+  protected static final int NUM_PRODUCERS = 4;
+
+  protected static final int NUM_MESSAGES = 500;
+
+  @Test
+  public void testConcurrentProducers() throws Exception
+  {
+    final Schema schema = Schema.parse("FixedMap { \"p\" : Integer(4), \"i\" : Integer(12) }");
+    final Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    Receiver recv = new Receiver();
+    Thread[] producers = new Thread[NUM_PRODUCERS];
+    for (int p = 0; p < NUM_PRODUCERS; p++)
+    {
+      final int producer = p;
+      producers[p] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          for (int i = 0; i < NUM_MESSAGES; i++)
+          {
+            SchemaElement se = schema.newInstance();
+            try
+            {
+              se.put("[p]", producer);
+              se.put("[i]", i);
+            }
+            catch (TypeMismatchException e)
+            {
+              throw new RuntimeException(e);
+            }
+            sender.addMessage(0, se);
+          }
+        }
+      });
+      producers[p].start();
+    }
+    int[] next = new int[NUM_PRODUCERS];
+    int received = 0;
+    boolean producing = true;
+    while (producing || sender.getBufferSizeSegments() > 0)
+    {
+      producing = false;
+      for (Thread t : producers)
+      {
+        producing |= t.isAlive();
+      }
+      BitSequence bs = sender.pollBitSequence();
+      while (bs != null)
+      {
+        recv.putBitSequence(bs);
+        bs = sender.pollBitSequence();
+      }
+      SchemaElement se = recv.pollMessage();
+      while (se != null)
+      {
+        // Messages from a given producer arrive in the order they were added
+        int p = Integer.parseInt(se.get("[p]").toString());
+        assertEquals(next[p], Integer.parseInt(se.get("[i]").toString()));
+        next[p]++;
+        received++;
+        se = recv.pollMessage();
+      }
+    }
+    assertEquals(NUM_PRODUCERS * NUM_MESSAGES, received);
+    assertEquals(0, recv.getMessageLostCount());
+    assertEquals(NUM_PRODUCERS * NUM_MESSAGES, sender.getNumberOfMessageSegments() + sender.getNumberOfDeltaSegments());
+  }
+
+  @Test
+  public void testSequenceNumbers()
+  {
+    Sender sender = new Sender();
+    sender.setEmptyBufferIsEof(true);
+    sender.addBlob(new BitSequence("1"));
+    sender.addBlob(new BitSequence("0"));
+    assertEquals(2, sender.getBufferSizeSegments());
+    Frame f = sender.pollBuffer();
+    assertEquals(2, f.size());
+    assertEquals(0, f.get(0).getSequenceNumber());
+    assertEquals(1, f.get(1).getSequenceNumber());
+    assertEquals(0, sender.getBufferSizeSegments());
+  }
+
+  @Test
+  public void testTooLong() throws Exception
+  {
+    Sender sender = new Sender();
+    sender.setEmptyBufferIsEof(true);
+    StringBuilder bits = new StringBuilder();
+    for (int i = 0; i <= BlobSegment.MAX_LENGTH; i++)
+    {
+      bits.append("1");
+    }
+    sender.addBlob(new BitSequence(bits.toString()));
+    Schema schema = Schema.parse("Smallscii");
+    sender.setSchema(0, schema);
+    SchemaElement se = schema.newInstance();
+    se.readContentsFromString("\"" + bits + "\"");
+    sender.addMessage(0, se);
+    sender.addBlob(new BitSequence("1"));
+    // Segments that cannot be encoded are dropped without a sequence number
+    Frame f = sender.pollBuffer();
+    for (Segment seg : f)
+    {
+      assertTrue(seg instanceof BlobSegment || seg instanceof SchemaSegment);
+      if (seg instanceof BlobSegment)
+      {
+        assertEquals(0, seg.getSequenceNumber());
+      }
+    }
+    assertEquals(2, sender.getNumberOfDiscardedSegments());
+    assertEquals(1, sender.getNumberOfBlobSegments());
+    assertEquals(0, sender.getNumberOfMessageSegments());
+    assertEquals(0, sender.getBufferSizeBits());
+  }
+
+  @Test
+  public void testMaxLength() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(8), \"b\" : List [ Integer(16) ] }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    // The contents of this message are exactly MessageSegment.MAX_LENGTH
+    // bits long, which the length field of the segment cannot hold
+    StringBuilder contents = new StringBuilder("{ \"a\" : 1, \"b\" : [");
+    for (int i = 0; i < 255; i++)
+    {
+      contents.append(i == 0 ? "" : ",").append(i);
+    }
+    contents.append("] }");
+    SchemaElement se = schema.newInstance();
+    se.readContentsFromString(contents.toString());
+    sender.addMessage(0, se, true);
+    for (int i = 0; i < 4; i++)
+    {
+      se = schema.newInstance();
+      se.readContentsFromString("{ \"a\" : " + i + ", \"b\" : [" + i + "] }");
+      sender.addMessage(0, se);
+    }
+    Receiver recv = new Receiver();
+    BitSequence bs = sender.pollBitSequence();
+    while (bs != null)
+    {
+      recv.putBitSequence(bs);
+      bs = sender.pollBitSequence();
+    }
+    // The other messages must not refer to the message that was dropped
+    for (int i = 0; i < 4; i++)
+    {
+      SchemaElement received = recv.pollMessage();
+      assertNotNull(received);
+      assertEquals(Integer.toString(i), received.get("[a]").toString());
+    }
+    assertNull(recv.pollMessage());
+    assertEquals(0, recv.getMessageLostCount());
+    assertEquals(1, sender.getNumberOfDiscardedSegments());
+  }
+
+  @Test
+  public void testCannotEncode() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(4) }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    SchemaElement se = schema.newInstance();
+    // The value is out of the range of the schema
+    se.readContentsFromString("{ \"a\" : 100 }");
+    sender.addMessage(0, se);
+    se = schema.newInstance();
+    se.put("[a]", 3);
+    sender.addMessage(0, se);
+    Receiver recv = new Receiver();
+    BitSequence bs = sender.pollBitSequence();
+    while (bs != null)
+    {
+      recv.putBitSequence(bs);
+      bs = sender.pollBitSequence();
+    }
+    assertEquals("3", recv.pollMessage().get("[a]").toString());
+    assertNull(recv.pollMessage());
+    assertEquals(1, sender.getNumberOfDiscardedSegments());
+    assertEquals(1, sender.getNumberOfMessageSegments());
+  }
+
+  @Test
+  public void testDeltaNotLarger() throws Exception
+  {
+    // Deltas of such small messages are larger than the messages
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(4) }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setDeltaSegmentInterval(10);
+    for (int i = 0; i < 20; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[a]", i % 16);
+      sender.addMessage(0, se);
+    }
+    while (sender.pollBitSequence() != null);
+    assertEquals(20, sender.getNumberOfMessageSegments());
+    assertEquals(0, sender.getNumberOfDeltaSegments());
+  }
+
+  @Test
+  public void testAdaptiveInterval() throws Exception
+  {
+    Sender fixed = new Sender();
+    fixed.setDeltaSegmentInterval(10);
+    Sender adaptive = new Sender();
+    assertEquals(10, sendSlowlyChanging(fixed));
+    int interval = sendSlowlyChanging(adaptive);
+    // Deltas are much smaller than messages: longer intervals pay off
+    assertTrue(interval > 10);
+    assertTrue(interval <= 32);
+    assertTrue(bitsSent(adaptive) < bitsSent(fixed));
+    // A lower loss tolerance bounds the interval
+    Sender bounded = new Sender();
+    bounded.setLossTolerance(5);
+    assertEquals(5, sendSlowlyChanging(bounded));
+  }
+
+  @Test
+  public void testRecentReferences() throws Exception
+  {
+    // The value drifts too fast to be expressed as a delta with respect
+    // to a message sent more than two messages before
+    Schema schema = Schema.parse("FixedMap { \"t\" : Integer(16,4), \"s\" : Smallscii }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setDeltaSegmentInterval(10);
+    Receiver recv = new Receiver();
+    for (int i = 0; i < 200; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[t]", 1000 + 3 * i);
+      se.put("[s]", "sensor");
+      sender.addMessage(0, se);
+      Frame f = sender.pollBuffer();
+      while (f != null)
+      {
+        for (Segment seg : f)
+        {
+          if (seg instanceof DeltaSegment)
+          {
+            assertEquals(seg.getSequenceNumber() - 1, ((DeltaSegment) seg).getDeltaToWhat());
+          }
+        }
+        recv.putBitSequence(f.toBitSequence());
+        f = sender.pollBuffer();
+      }
+      assertEquals(Integer.toString(1000 + 3 * i), recv.pollMessage().get("[t]").toString());
+    }
+    // Apart from the periodical message segments, all messages are deltas
+    assertEquals(17, sender.getNumberOfMessageSegments());
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testDeltaOfDelta() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"t\" : Integer(16,4,dod), \"s\" : Smallscii }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setDeltaSegmentInterval(10);
+    Receiver recv = new Receiver();
+    for (int i = 0; i < 100; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[t]", 1000 + 3 * i);
+      se.put("[s]", "sensor");
+      sender.addMessage(0, se);
+      BitSequence bs = sender.pollBitSequence();
+      while (bs != null)
+      {
+        recv.putBitSequence(bs);
+        bs = sender.pollBitSequence();
+      }
+      assertEquals(Integer.toString(1000 + 3 * i), recv.pollMessage().get("[t]").toString());
+    }
+    // After the first delta of each cycle, the counter takes a single bit
+    assertTrue(sender.getNumberOfDeltaSegments() > 80);
+    assertTrue(sender.getNumberOfDeltaSegmentsBits() < 2 * sender.getNumberOfDeltaSegments());
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testQueuedDeltas() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(8), \"s\" : Smallscii }");
+    final int[] computed = new int[1];
+    Sender sender = new Sender()
+    {
+      @Override
+      protected void computeDelta(PendingSegment p, Reference[] refs)
+      {
+        computed[0]++;
+        super.computeDelta(p, refs);
+      }
+    };
+    sender.setSchema(0, schema);
+    sender.setDeltaSegmentInterval(10);
+    Receiver recv = new Receiver();
+    for (int i = 0; i < 4; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[a]", i);
+      se.put("[s]", "constant");
+      sender.addMessage(0, se);
+      if (i == 0)
+      {
+        recv.putBitSequence(sender.pollBitSequence());
+      }
+    }
+    // The deltas computed by the producer against the first message
+    // are still valid once the other queued messages are sent
+    assertEquals(3, computed[0]);
+    BitSequence bs = sender.pollBitSequence();
+    while (bs != null)
+    {
+      recv.putBitSequence(bs);
+      bs = sender.pollBitSequence();
+    }
+    assertEquals(3, computed[0]);
+    assertEquals(3, sender.getNumberOfDeltaSegments());
+    for (int i = 0; i < 4; i++)
+    {
+      assertEquals(Integer.toString(i), recv.pollMessage().get("[a]").toString());
+    }
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  @Test
+  public void testRollingWindow() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"w\" : List [ Integer(12) ], \"s\" : Smallscii }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    sender.setDeltaSegmentInterval(10);
+    Receiver recv = new Receiver();
+    StringBuilder window = new StringBuilder();
+    for (int i = 0; i < 50; i++)
+    {
+      // The window grows up to 8 values, then slides
+      window.setLength(0);
+      for (int j = Math.max(0, i - 7); j <= i; j++)
+      {
+        window.append(j == Math.max(0, i - 7) ? "" : ", ").append(100 + 7 * j);
+      }
+      SchemaElement se = schema.newInstance();
+      se.readContentsFromString("{ \"w\" : [" + window + "], \"s\" : \"sensor\" }");
+      sender.addMessage(0, se);
+      BitSequence bs = sender.pollBitSequence();
+      while (bs != null)
+      {
+        recv.putBitSequence(bs);
+        bs = sender.pollBitSequence();
+      }
+      assertEquals(se.toString(), recv.pollMessage().toString());
+    }
+    // Apart from the periodical message segments, all messages are deltas
+    assertTrue(sender.getNumberOfDeltaSegments() > 40);
+  }
+
+  @Test
+  public void testMessageReader() throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(12), \"s\" : Smallscii }");
+    Sender sender = new Sender();
+    sender.setSchema(0, schema);
+    Receiver recv = new Receiver();
+    StringBuilder log = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+    {
+      log.append("{ \"a\" : ").append(i).append(", \"s\" : \"sensor\" }\n");
+    }
+    MessageReader reader = new MessageReader(new StringReader(log.toString()));
+    int i = 0;
+    while (sender.addMessage(0, reader))
+    {
+      // Draining the sender after each message bounds its buffer
+      BitSequence bs = sender.pollBitSequence();
+      while (bs != null)
+      {
+        recv.putBitSequence(bs);
+        bs = sender.pollBitSequence();
+      }
+      assertEquals(Integer.toString(i), recv.pollMessage().get("[a]").toString());
+      i++;
+    }
+    assertEquals(100, i);
+    assertEquals(0, recv.getMessageLostCount());
+  }
+
+  protected static int sendSlowlyChanging(Sender sender) throws Exception
+  {
+    Schema schema = Schema.parse("FixedMap { \"a\" : Integer(8), \"b\" : Smallscii }");
+    sender.setSchema(0, schema);
+    Receiver recv = new Receiver();
+    for (int i = 0; i < 200; i++)
+    {
+      SchemaElement se = schema.newInstance();
+      se.put("[a]", i % 200);
+      se.put("[b]", "a string that never changes");
+      sender.addMessage(0, se);
+      BitSequence bs = sender.pollBitSequence();
+      while (bs != null)
+      {
+        recv.putBitSequence(bs);
+        bs = sender.pollBitSequence();
+      }
+      assertEquals(Integer.toString(i % 200), recv.pollMessage().get("[a]").toString());
+    }
+    return sender.getDeltaSegmentInterval();
+  }
+
+  protected static int bitsSent(Sender sender)
+  {
+    return sender.getNumberOfMessageSegmentsBits() + sender.getNumberOfDeltaSegmentsBits();
+  }
+}